@@ -31,10 +31,15 @@ import com.android.builder.internal.compiler.AidlProcessor;
 import com.android.builder.internal.compiler.FileGatherer;
 import com.android.builder.internal.compiler.LeafFolderGatherer;
 import com.android.builder.internal.compiler.SourceSearcher;
-import com.android.builder.internal.packaging.JavaResourceProcessor;
+import com.android.builder.internal.packaging.ApkSigner;
+import com.android.builder.internal.packaging.DuplicateFileScanner;
+import com.android.builder.internal.packaging.IncrementalPackager;
+import com.android.builder.internal.packaging.JarResourceIndex;
 import com.android.builder.internal.packaging.Packager;
+import com.android.builder.internal.packaging.PackagingCache;
 import com.android.builder.model.AaptOptions;
 import com.android.builder.model.SigningConfig;
+import com.android.builder.packaging.CompressionPolicy;
 import com.android.builder.packaging.DuplicateFileException;
 import com.android.builder.packaging.PackagerException;
 import com.android.builder.packaging.SealedPackageException;
@@ -55,6 +60,7 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 
 import java.io.File;
@@ -65,6 +71,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -84,7 +91,10 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * {@link #processResources(java.io.File, java.io.File, java.io.File, java.util.List, String, String, String, String, String, com.android.builder.VariantConfiguration.Type, boolean, com.android.builder.model.AaptOptions)}
  * {@link #compileAllAidlFiles(java.util.List, java.io.File, java.util.List, com.android.builder.compiling.DependencyFileProcessor)}
  * {@link #convertByteCode(Iterable, Iterable, File, String, DexOptions, boolean)}
- * {@link #packageApk(String, String, java.util.List, String, String, boolean, SigningConfig, String)}
+ * {@link #packageApk(String, String, java.util.List, java.util.List, String, String, String, boolean, boolean, boolean, SigningConfig, CompressionPolicy, File, String)}
+ * {@link #packageApk(String, String, java.util.List, java.util.List, String, String, String, boolean, boolean, boolean, SigningConfig, CompressionPolicy, File, java.util.Map, String)}
+ * {@link #updateApk(String, String, java.util.List, java.util.List, String, String, String, boolean, boolean, boolean, SigningConfig, CompressionPolicy, File, java.util.Collection, String)}
+ * {@link #signApk(String, SigningConfig, String)}
  *
  * Java compilation is not handled but the builder provides the bootclasspath with
  * {@link #getBootClasspath(SdkParser)}.
@@ -991,10 +1001,22 @@ public class AndroidBuilder {
      * @param androidResPkgLocation the location of the packaged resource file
      * @param classesDexLocation the location of the classes.dex file
      * @param packagedJars the jars that are packaged (libraries + jar dependencies)
-     * @param javaResourcesLocation the processed Java resource folder
+     * @param javaResourceFolders the java resource folders of the source sets, in ascending
+     *                            order of importance: a file replaces the file at the same
+     *                            path in the folders before it
+     * @param assetsLocation the merged assets folder, to package directly rather than through
+     *                       aapt, or null if aapt packaged the assets
+     * @param ignoreAssets the patterns of the assets to ignore, as given to aapt, or null for
+     *                     the default ones
      * @param jniLibsLocation the location of the compiled JNI libraries
      * @param jniDebugBuild whether the app should include jni debug data
+     * @param zipAlign whether the stored entries of the APK are aligned, as zipalign would do
+     * @param deterministic whether all the entries get the same fixed time, so that the same
+     *                      inputs always give the same apk
      * @param signingConfig the signing configuration
+     * @param compressionPolicy how the entries of the APK are compressed
+     * @param cacheFolder an optional folder where compressed entries and their digests are
+     *                    cached from one packaging to the next
      * @param outApkLocation location of the APK.
      * @throws DuplicateFileException
      * @throws FileNotFoundException if the store location was not found
@@ -1008,52 +1030,387 @@ public class AndroidBuilder {
             @NonNull String androidResPkgLocation,
             @NonNull String classesDexLocation,
             @NonNull List<File> packagedJars,
-            @Nullable String javaResourcesLocation,
+            @NonNull List<File> javaResourceFolders,
+            @Nullable String assetsLocation,
+            @Nullable String ignoreAssets,
             @Nullable String jniLibsLocation,
             boolean jniDebugBuild,
+            boolean zipAlign,
+            boolean deterministic,
             @Nullable SigningConfig signingConfig,
+            @NonNull CompressionPolicy compressionPolicy,
+            @Nullable File cacheFolder,
             @NonNull String outApkLocation) throws DuplicateFileException, FileNotFoundException,
             KeytoolException, PackagerException, SigningException {
+        checkNotNull(outApkLocation, "outApkLocation cannot be null.");
+
+        packageApk(androidResPkgLocation, classesDexLocation, packagedJars,
+                javaResourceFolders, assetsLocation, ignoreAssets, jniLibsLocation,
+                jniDebugBuild, zipAlign, deterministic, signingConfig, compressionPolicy,
+                cacheFolder, Collections.<String, String>emptyMap(),
+                outApkLocation);
+    }
+
+    /**
+     * Packages one apk per ABI, and optionally an apk containing all the ABIs.
+     *
+     * All the apks are packaged together, so that the entries they share are compressed and
+     * hashed only once. Each per-ABI apk only contains the native libraries of its ABI.
+     *
+     * @param androidResPkgLocation the location of the packaged resource file
+     * @param classesDexLocation the location of the classes.dex file
+     * @param packagedJars the jars that are packaged (libraries + jar dependencies)
+     * @param javaResourceFolders the java resource folders of the source sets, in ascending
+     *                            order of importance: a file replaces the file at the same
+     *                            path in the folders before it
+     * @param assetsLocation the merged assets folder, to package directly rather than through
+     *                       aapt, or null if aapt packaged the assets
+     * @param ignoreAssets the patterns of the assets to ignore, as given to aapt, or null for
+     *                     the default ones
+     * @param jniLibsLocation the location of the compiled JNI libraries
+     * @param jniDebugBuild whether the app should include jni debug data
+     * @param zipAlign whether the stored entries of the APKs are aligned, as zipalign would do
+     * @param deterministic whether all the entries get the same fixed time, so that the same
+     *                      inputs always give the same apks
+     * @param signingConfig the signing configuration
+     * @param compressionPolicy how the entries of the APKs are compressed
+     * @param cacheFolder an optional folder where compressed entries and their digests are
+     *                    cached from one packaging to the next
+     * @param abiApkLocations the location of the per-ABI APKs, by ABI.
+     * @param outApkLocation location of the APK containing all the ABIs, or null.
+     * @throws DuplicateFileException
+     * @throws FileNotFoundException if the store location was not found
+     * @throws KeytoolException
+     * @throws PackagerException
+     * @throws SigningException when the key cannot be read from the keystore
+     *
+     * @see com.android.builder.VariantConfiguration#getPackagedJars()
+     */
+    public void packageApk(
+            @NonNull String androidResPkgLocation,
+            @NonNull String classesDexLocation,
+            @NonNull List<File> packagedJars,
+            @NonNull List<File> javaResourceFolders,
+            @Nullable String assetsLocation,
+            @Nullable String ignoreAssets,
+            @Nullable String jniLibsLocation,
+            boolean jniDebugBuild,
+            boolean zipAlign,
+            boolean deterministic,
+            @Nullable SigningConfig signingConfig,
+            @NonNull CompressionPolicy compressionPolicy,
+            @Nullable File cacheFolder,
+            @NonNull Map<String, String> abiApkLocations,
+            @Nullable String outApkLocation) throws DuplicateFileException,
+            FileNotFoundException, KeytoolException, PackagerException, SigningException {
         checkNotNull(androidResPkgLocation, "androidResPkgLocation cannot be null.");
         checkNotNull(classesDexLocation, "classesDexLocation cannot be null.");
-        checkNotNull(outApkLocation, "outApkLocation cannot be null.");
+        checkNotNull(compressionPolicy, "compressionPolicy cannot be null.");
+        checkNotNull(abiApkLocations, "abiApkLocations cannot be null.");
 
-        CertificateInfo certificateInfo = null;
-        if (signingConfig != null && signingConfig.isSigningReady()) {
-            certificateInfo = KeystoreHelper.getCertificateInfo(signingConfig);
-            if (certificateInfo == null) {
-                throw new SigningException("Failed to read key from keystore");
-            }
+        // the location of each apk, with the ABIs it contains. null means all of them.
+        Map<String, Collection<String>> apks = Maps.newLinkedHashMap();
+        for (Map.Entry<String, String> entry : abiApkLocations.entrySet()) {
+            apks.put(entry.getValue(), Collections.singleton(entry.getKey()));
+        }
+        if (outApkLocation != null) {
+            apks.put(outApkLocation, null);
         }
 
+        CertificateInfo certificateInfo = getCertificateInfo(signingConfig);
+        compressionPolicy = getCompressionPolicy(compressionPolicy, assetsLocation);
+
+        // the cache shares its entries in memory with the other packagings of the build, so
+        // that the entries shared by the apks, or by other variants, are compressed and hashed
+        // only once.
+        PackagingCache cache = new PackagingCache(cacheFolder);
+        JarResourceIndex jarIndex = new JarResourceIndex(
+                cache.getExtraFile(JarResourceIndex.FN_JAR_INDEX));
+
+        // find all the conflicts before writing anything.
+        createScanner(androidResPkgLocation, classesDexLocation, packagedJars,
+                javaResourceFolders, assetsLocation, ignoreAssets, jniLibsLocation,
+                jniDebugBuild, outApkLocation != null ? null : abiApkLocations.keySet(),
+                jarIndex).check();
+
         try {
-            Packager packager = new Packager(
-                    outApkLocation, androidResPkgLocation, classesDexLocation,
-                    certificateInfo, mCreatedBy, mLogger);
+            for (Map.Entry<String, Collection<String>> apk : apks.entrySet()) {
+                Packager packager = new Packager(
+                        apk.getKey(), androidResPkgLocation, classesDexLocation,
+                        certificateInfo, compressionPolicy, zipAlign, deterministic, cache,
+                        mCreatedBy, mLogger);
 
-            packager.setJniDebugMode(jniDebugBuild);
+                packager.setJniDebugMode(jniDebugBuild);
+                packager.setJarIndex(jarIndex);
 
-            // figure out conflicts!
-            JavaResourceProcessor resProcessor = new JavaResourceProcessor(packager);
+                if (assetsLocation != null) {
+                    packager.addAssets(assetsLocation, ignoreAssets);
+                }
 
-            if (javaResourcesLocation != null) {
-                resProcessor.addSourceFolder(javaResourcesLocation);
-            }
+                // figure out conflicts!
+                packager.addSourceFolders(javaResourceFolders);
 
-            // add the resources from the jar files.
-            for (File jar : packagedJars) {
-                packager.addResourcesFromJar(jar);
-            }
+                // add the resources from the jar files.
+                for (File jar : packagedJars) {
+                    packager.addResourcesFromJar(jar);
+                }
+
+                // also add resources from library projects and jars
+                if (jniLibsLocation != null) {
+                    packager.addNativeLibraries(jniLibsLocation, apk.getValue());
+                }
 
-            // also add resources from library projects and jars
-            if (jniLibsLocation != null) {
-                packager.addNativeLibraries(jniLibsLocation);
+                packager.sealApk();
+
+                writePackagingReport(packager, new File(apk.getKey()));
             }
 
-            packager.sealApk();
+            cache.removeUnusedRecords();
+            jarIndex.save();
         } catch (SealedPackageException e) {
             // shouldn't happen since we control the package from start to end.
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Updates an apk packaged by
+     * {@link #packageApk(String, String, java.util.List, java.util.List, String, String, String, boolean, boolean, boolean, SigningConfig, CompressionPolicy, File, String)}
+     * with the same parameters, by rewriting only the entries whose input changed.
+     *
+     * The entries that did not change are kept in place in the apk, and are neither read nor
+     * hashed again. Only the changed entries, the signature files and the central directory
+     * are written.
+     *
+     * Deterministic apks are never updated, since the layout of an updated apk depends on the
+     * previous builds: this returns false, and the apk must be packaged again.
+     *
+     * @param androidResPkgLocation the location of the packaged resource file
+     * @param classesDexLocation the location of the classes.dex file
+     * @param packagedJars the jars that are packaged (libraries + jar dependencies)
+     * @param javaResourceFolders the java resource folders of the source sets, in ascending
+     *                            order of importance: a file replaces the file at the same
+     *                            path in the folders before it
+     * @param assetsLocation the merged assets folder, to package directly rather than through
+     *                       aapt, or null if aapt packaged the assets
+     * @param ignoreAssets the patterns of the assets to ignore, as given to aapt, or null for
+     *                     the default ones
+     * @param jniLibsLocation the location of the compiled JNI libraries
+     * @param jniDebugBuild whether the app should include jni debug data
+     * @param zipAlign whether the stored entries of the APK are aligned, as zipalign would do
+     * @param deterministic whether all the entries get the same fixed time, so that the same
+     *                      inputs always give the same apk
+     * @param signingConfig the signing configuration
+     * @param compressionPolicy how the entries of the APK are compressed
+     * @param cacheFolder an optional folder where compressed entries and their digests are
+     *                    cached from one packaging to the next
+     * @param changedFiles the inputs, or the files inside the input folders, that were added,
+     *                     changed or removed since the apk was packaged.
+     * @param outApkLocation location of the APK.
+     * @return true if the apk was updated, false if it could not be, and must be packaged
+     *          again. In that case the apk was not modified.
+     * @throws DuplicateFileException
+     * @throws FileNotFoundException if the store location was not found
+     * @throws KeytoolException
+     * @throws PackagerException
+     * @throws SigningException when the key cannot be read from the keystore
+     */
+    public boolean updateApk(
+            @NonNull String androidResPkgLocation,
+            @NonNull String classesDexLocation,
+            @NonNull List<File> packagedJars,
+            @NonNull List<File> javaResourceFolders,
+            @Nullable String assetsLocation,
+            @Nullable String ignoreAssets,
+            @Nullable String jniLibsLocation,
+            boolean jniDebugBuild,
+            boolean zipAlign,
+            boolean deterministic,
+            @Nullable SigningConfig signingConfig,
+            @NonNull CompressionPolicy compressionPolicy,
+            @Nullable File cacheFolder,
+            @NonNull Collection<File> changedFiles,
+            @NonNull String outApkLocation) throws DuplicateFileException,
+            FileNotFoundException, KeytoolException, PackagerException, SigningException {
+        checkNotNull(androidResPkgLocation, "androidResPkgLocation cannot be null.");
+        checkNotNull(classesDexLocation, "classesDexLocation cannot be null.");
+        checkNotNull(compressionPolicy, "compressionPolicy cannot be null.");
+        checkNotNull(changedFiles, "changedFiles cannot be null.");
+        checkNotNull(outApkLocation, "outApkLocation cannot be null.");
+
+        CertificateInfo certificateInfo = getCertificateInfo(signingConfig);
+        compressionPolicy = getCompressionPolicy(compressionPolicy, assetsLocation);
+
+        // the unused records of the cache are only removed by full packagings, since most
+        // entries are not read here.
+        PackagingCache cache = new PackagingCache(cacheFolder);
+        JarResourceIndex jarIndex = new JarResourceIndex(
+                cache.getExtraFile(JarResourceIndex.FN_JAR_INDEX));
+
+        // the content of the new apk.
+        Map<String, File> files = createScanner(androidResPkgLocation, classesDexLocation,
+                packagedJars, javaResourceFolders, assetsLocation, ignoreAssets,
+                jniLibsLocation, jniDebugBuild, null, jarIndex).check();
+        jarIndex.save();
+        List<File> archives = Lists.newArrayList(packagedJars);
+        archives.add(new File(androidResPkgLocation));
+
+        IncrementalPackager packager = new IncrementalPackager(new File(outApkLocation),
+                certificateInfo, compressionPolicy, zipAlign, deterministic, cache, mCreatedBy,
+                mLogger);
+        return packager.update(files, archives,
+                getOverlaidFiles(javaResourceFolders, changedFiles));
+    }
+
+    /**
+     * Signs an apk that is already packaged, without compressing its entries again.
+     *
+     * This is meant for an unsigned apk packaged by
+     * {@link #packageApk(String, String, java.util.List, java.util.List, String, String, String, boolean, boolean, boolean, SigningConfig, CompressionPolicy, File, String)},
+     * which records the digests of its entries, so that it can be signed with several keys
+     * at little cost. The entries keep their alignment.
+     *
+     * @param inApkLocation the location of the apk to sign. It is not modified, unless it is
+     *                      the same as <var>outApkLocation</var>.
+     * @param signingConfig the signing configuration
+     * @param outApkLocation location of the signed apk.
+     * @throws FileNotFoundException if the store location was not found
+     * @throws KeytoolException
+     * @throws PackagerException
+     * @throws SigningException when the key cannot be read from the keystore
+     */
+    public void signApk(
+            @NonNull String inApkLocation,
+            @NonNull SigningConfig signingConfig,
+            @NonNull String outApkLocation) throws FileNotFoundException, KeytoolException,
+            PackagerException, SigningException {
+        checkNotNull(inApkLocation, "inApkLocation cannot be null.");
+        checkNotNull(signingConfig, "signingConfig cannot be null.");
+        checkNotNull(outApkLocation, "outApkLocation cannot be null.");
+
+        CertificateInfo certificateInfo = getCertificateInfo(signingConfig);
+        if (certificateInfo == null) {
+            throw new SigningException("Signing config is not complete");
+        }
+
+        File inApk = new File(inApkLocation);
+        File outApk = new File(outApkLocation);
+        if (!inApk.getAbsoluteFile().equals(outApk.getAbsoluteFile())) {
+            try {
+                Files.copy(inApk, outApk);
+            } catch (IOException e) {
+                throw new PackagerException(e, "Failed to copy %1$s to %2$s", inApk, outApk);
+            }
+        }
+
+        new ApkSigner(outApk, certificateInfo, mCreatedBy, mLogger).sign();
+    }
+
+    /**
+     * Adds to the changed files the java resources at the same path in the other resource
+     * folders. When the file of an overlay is added or removed, the entry of the apk comes
+     * from another folder, whose file did not change itself.
+     */
+    @NonNull
+    private static Collection<File> getOverlaidFiles(
+            @NonNull List<File> javaResourceFolders,
+            @NonNull Collection<File> changedFiles) {
+        Set<File> files = Sets.newHashSet(changedFiles);
+        for (File file : changedFiles) {
+            String path = file.getAbsolutePath();
+            for (File folder : javaResourceFolders) {
+                String folderPath = folder.getAbsolutePath() + File.separatorChar;
+                if (path.startsWith(folderPath)) {
+                    String relativePath = path.substring(folderPath.length());
+                    for (File overlay : javaResourceFolders) {
+                        files.add(new File(overlay, relativePath));
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns the compression policy of an apk. When the assets are packaged directly, they
+     * are stored like aapt would store them. Stored assets are copied from file to file, and
+     * are never kept in the packaging cache.
+     */
+    @NonNull
+    private static CompressionPolicy getCompressionPolicy(
+            @NonNull CompressionPolicy compressionPolicy,
+            @Nullable String assetsLocation) {
+        if (assetsLocation == null) {
+            return compressionPolicy;
+        }
+        return compressionPolicy.withNoCompress(CompressionPolicy.AAPT_NO_COMPRESS);
+    }
+
+    @Nullable
+    private static CertificateInfo getCertificateInfo(@Nullable SigningConfig signingConfig)
+            throws KeytoolException, FileNotFoundException, SigningException {
+        CertificateInfo certificateInfo = null;
+        if (signingConfig != null && signingConfig.isSigningReady()) {
+            certificateInfo = KeystoreHelper.getCertificateInfo(signingConfig);
+            if (certificateInfo == null) {
+                throw new SigningException("Failed to read key from keystore");
+            }
+        }
+        return certificateInfo;
+    }
+
+    /**
+     * Creates a scanner of the files packaged in an apk, from the same inputs as the
+     * {@link Packager}.
+     * @param abis the ABIs whose native libraries are packaged, or null for all of them.
+     * @param jarIndex the index of the java resources of the jars.
+     */
+    @NonNull
+    private static DuplicateFileScanner createScanner(
+            @NonNull String androidResPkgLocation,
+            @NonNull String classesDexLocation,
+            @NonNull List<File> packagedJars,
+            @NonNull List<File> javaResourceFolders,
+            @Nullable String assetsLocation,
+            @Nullable String ignoreAssets,
+            @Nullable String jniLibsLocation,
+            boolean jniDebugBuild,
+            @Nullable Collection<String> abis,
+            @NonNull JarResourceIndex jarIndex) {
+        DuplicateFileScanner scanner = new DuplicateFileScanner();
+        scanner.setJarIndex(jarIndex);
+        scanner.addZipFile(new File(androidResPkgLocation));
+        scanner.addFile(new File(classesDexLocation), SdkConstants.FN_APK_CLASSES_DEX);
+        if (assetsLocation != null) {
+            scanner.addAssets(assetsLocation, ignoreAssets);
+        }
+        scanner.addJavaResourceFolders(javaResourceFolders);
+        for (File jar : packagedJars) {
+            scanner.addResourcesFromJar(jar);
+        }
+        if (jniLibsLocation != null) {
+            scanner.addNativeLibraries(jniLibsLocation, jniDebugBuild, abis);
+        }
+        return scanner;
+    }
+
+    /**
+     * Writes the counters of the packaging of an apk in a JSON file next to it, named after
+     * the apk with a .packaging.json extension.
+     */
+    private void writePackagingReport(@NonNull Packager packager, @NonNull File apk) {
+        String name = apk.getName();
+        if (name.endsWith(SdkConstants.DOT_ANDROID_PACKAGE)) {
+            name = name.substring(0, name.length() - SdkConstants.DOT_ANDROID_PACKAGE.length());
+        }
+        File report = new File(apk.getParentFile(), name + ".packaging.json");
+
+        try {
+            packager.getMetrics().writeReport(apk, report);
+        } catch (IOException e) {
+            // the report is not worth failing the build.
+            mLogger.warning("Failed to write packaging report %1$s: %2$s", report,
+                    e.getMessage());
+        }
+    }
 }
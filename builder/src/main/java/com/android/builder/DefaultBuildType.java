@@ -21,6 +21,7 @@ import com.android.annotations.Nullable;
 import com.android.builder.internal.BaseConfigImpl;
 import com.android.builder.model.BuildType;
 import com.android.builder.model.SigningConfig;
+import com.android.builder.packaging.CompressionPolicy;
 import com.google.common.base.Objects;
 
 public class DefaultBuildType extends BaseConfigImpl implements BuildType {
@@ -37,6 +38,7 @@ public class DefaultBuildType extends BaseConfigImpl implements BuildType {
     private SigningConfig mSigningConfig = null;
 
     private boolean mZipAlign = true;
+    private int mCompressionLevel = CompressionPolicy.MAX;
 
     public DefaultBuildType(@NonNull String name) {
         mName = name;
@@ -53,6 +55,7 @@ public class DefaultBuildType extends BaseConfigImpl implements BuildType {
         setVersionNameSuffix(that.getVersionNameSuffix());
         setRunProguard(that.isRunProguard());
         setZipAlign(that.isZipAlign());
+        setCompressionLevel(that.getCompressionLevel());
         setSigningConfig(that.getSigningConfig());
 
         return this;
@@ -148,6 +151,23 @@ public class DefaultBuildType extends BaseConfigImpl implements BuildType {
         return mZipAlign;
     }
 
+    /**
+     * Sets the level used to compress the entries of the APK, from
+     * {@link CompressionPolicy#STORE} to {@link CompressionPolicy#MAX}.
+     */
+    @NonNull
+    public BuildType setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < CompressionPolicy.STORE || compressionLevel > CompressionPolicy.MAX) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+        mCompressionLevel = compressionLevel;
+        return this;
+    }
+
+    public int getCompressionLevel() {
+        return mCompressionLevel;
+    }
+
     @NonNull
     public BuildType setSigningConfig(@Nullable SigningConfig signingConfig) {
         mSigningConfig = signingConfig;
@@ -174,6 +194,7 @@ public class DefaultBuildType extends BaseConfigImpl implements BuildType {
         if (mRenderscriptOptimLevel != buildType.mRenderscriptOptimLevel) return false;
         if (mRunProguard != buildType.mRunProguard) return false;
         if (mZipAlign != buildType.mZipAlign) return false;
+        if (mCompressionLevel != buildType.mCompressionLevel) return false;
         if (mPackageNameSuffix != null ?
                 !mPackageNameSuffix.equals(buildType.mPackageNameSuffix) :
                 buildType.mPackageNameSuffix != null)
@@ -202,6 +223,7 @@ public class DefaultBuildType extends BaseConfigImpl implements BuildType {
         result = 31 * result + (mVersionNameSuffix != null ? mVersionNameSuffix.hashCode() : 0);
         result = 31 * result + (mRunProguard ? 1 : 0);
         result = 31 * result + (mZipAlign ? 1 : 0);
+        result = 31 * result + mCompressionLevel;
         result = 31 * result + (mSigningConfig != null ? mSigningConfig.hashCode() : 0);
         return result;
     }
@@ -219,6 +241,7 @@ public class DefaultBuildType extends BaseConfigImpl implements BuildType {
                 .add("versionNameSuffix", mVersionNameSuffix)
                 .add("runProguard", mRunProguard)
                 .add("zipAlign", mZipAlign)
+                .add("compressionLevel", mCompressionLevel)
                 .add("signingConfig", mSigningConfig)
                 .toString();
     }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder;
+
+import java.util.List;
+
+public interface PackagingOptions {
+
+    /**
+     * Returns the patterns of the APK entries that are stored without compression.
+     *
+     * @see com.android.builder.packaging.CompressionPolicy
+     */
+    List<String> getNoCompress();
+
+    /**
+     * Returns the ABIs for which an APK containing only the native libraries of that ABI
+     * is packaged, next to the APK containing all of them.
+     */
+    List<String> getAbiSplits();
+
+    /**
+     * Returns whether the merged assets are added to the APK directly, rather than by aapt
+     * along with the resources.
+     */
+    boolean isDirectAssets();
+
+    /**
+     * Returns whether the APKs and the library archives are written in a deterministic way,
+     * with a fixed time for all their entries, so that the same inputs always give the same
+     * archive. Deterministic APKs are always packaged from scratch, rather than updated.
+     */
+    boolean isDeterministic();
+}
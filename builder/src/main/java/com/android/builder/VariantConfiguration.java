@@ -727,6 +727,33 @@ public class VariantConfiguration implements TestData {
         return sourceList;
     }
 
+    /**
+     * Returns all the java resource folders from the main config, the build type and the
+     * flavors.
+     *
+     * The list is ordered in ascending order of importance: the files of a folder replace
+     * the files at the same path in the folders before it. All the files of the folders are
+     * listed: the include and exclude patterns of the source sets are not applied.
+     *
+     * @return a list of folders.
+     */
+    @NonNull
+    public List<File> getJavaResourcesSourceList() {
+        List<File> sourceList = Lists.newArrayList();
+        sourceList.addAll(mDefaultSourceProvider.getResourcesDirectories());
+        if (mType != Type.TEST && mBuildTypeSourceProvider != null) {
+            sourceList.addAll(mBuildTypeSourceProvider.getResourcesDirectories());
+        }
+
+        if (hasFlavors()) {
+            for (SourceProvider flavorSourceSet : mFlavorSourceProviders) {
+                sourceList.addAll(flavorSourceSet.getResourcesDirectories());
+            }
+        }
+
+        return sourceList;
+    }
+
     /**
      * Returns all the aidl import folder that are outside of the current project.
      */
@@ -41,10 +41,21 @@ public class ChangeManager {
     private static final String FN_INPUTS_DATA = "inputs.data";
     private static final String FN_OUTPUTS_DATA = "outputs.data";
 
-    private FileManager mInputs = new FileManager();
-    private FileManager mOutputs = new FileManager();
+    private final FileManager mInputs;
+    private final FileManager mOutputs;
 
     public ChangeManager() {
+        this(ContentHash.DEFAULT);
+    }
+
+    /**
+     * Creates a manager.
+     * @param contentHash the hash used to check whether the files whose date changed were
+     *                    really modified.
+     */
+    public ChangeManager(@NonNull ContentHash contentHash) {
+        mInputs = new FileManager(contentHash);
+        mOutputs = new FileManager(contentHash);
     }
 
     /**
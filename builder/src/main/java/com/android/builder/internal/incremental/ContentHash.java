@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.incremental;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * The hash of the content of the files, used to check whether a file whose date changed was
+ * really modified.
+ *
+ * The hash is recorded in the state of the files. The hashes of a state written with another
+ * algorithm are ignored.
+ */
+public enum ContentHash {
+    /** SHA-1, as used by the older states. */
+    SHA1(1, Hashing.sha1()),
+    /** 128-bit MurmurHash3, much faster than SHA-1. */
+    MURMUR3_128(2, Hashing.murmur3_128());
+
+    /** The hash used by default. There is no need for a cryptographic hash here. */
+    public static final ContentHash DEFAULT = MURMUR3_128;
+
+    private final int mId;
+    @NonNull
+    private final HashFunction mFunction;
+
+    ContentHash(int id, @NonNull HashFunction function) {
+        mId = id;
+        mFunction = function;
+    }
+
+    /**
+     * Returns the id of the hash, as recorded in the state files.
+     */
+    int getId() {
+        return mId;
+    }
+
+    @NonNull
+    HashFunction getFunction() {
+        return mFunction;
+    }
+
+    /**
+     * Returns the size of a hash, in bytes.
+     */
+    int getSize() {
+        return mFunction.bits() / 8;
+    }
+
+    /**
+     * Returns the hash with the given id, or null if it is unknown.
+     */
+    @Nullable
+    static ContentHash forId(int id) {
+        for (ContentHash hash : values()) {
+            if (hash.mId == id) {
+                return hash;
+            }
+        }
+        return null;
+    }
+}
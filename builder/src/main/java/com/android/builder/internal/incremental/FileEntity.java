@@ -16,33 +16,43 @@
 
 package com.android.builder.internal.incremental;
 
-import com.google.common.hash.HashCode;
-import com.google.common.hash.Hashing;
-import com.google.common.io.ByteStreams;
-import com.google.common.io.Files;
+import com.google.common.hash.Hasher;
+import com.google.common.io.Closeables;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 
 /**
  * A {@link File} and its associated data needed to figure out if a file changed or not.
+ *
+ * The hash of different entities can be computed in parallel, each thread using its own buffer.
  */
 class FileEntity {
 
-    private static final byte[] sBuffer = new byte[4096];
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
 
     private final File mFile;
+    private final ContentHash mContentHash;
     private final long mLastModified;
     private long mLength;
-    private String mSha1;
+    private String mHash;
 
     /**
      * Exception to indicate a failure to check a jar file's content.
      */
-    private static final class Sha1Exception extends Exception {
+    private static final class HashException extends Exception {
         private static final long serialVersionUID = 1L;
         private final File file;
 
-        public Sha1Exception(File jarFile, Throwable cause) {
+        public HashException(File jarFile, Throwable cause) {
             super(cause);
             file = jarFile;
         }
@@ -58,24 +68,29 @@ class FileEntity {
      * @param file the file
      * @param lastModified when it was last modified
      * @param length its length
-     * @param sha1 its sha1
+     * @param hash its hash, or null if it is not known
+     * @param contentHash the hash algorithm of the hash.
      */
-    FileEntity(File file, long lastModified, long length, String sha1) {
+    FileEntity(File file, long lastModified, long length, String hash,
+            ContentHash contentHash) {
         mFile = file;
+        mContentHash = contentHash;
         mLastModified = lastModified;
         mLength = length;
-        mSha1 = sha1;
+        mHash = hash;
     }
 
     /**
      * Creates an entity from a {@link File}.
      *
-     * The sha1 is not computed yet, it'll be done on demand when {@link #getSha1()} is called.
+     * The hash is not computed yet, it'll be done on demand when {@link #getHash()} is called.
      *
      * @param file the file.
+     * @param contentHash the hash algorithm of the file's content.
      */
-    FileEntity(File file) {
+    FileEntity(File file, ContentHash contentHash) {
         mFile = file;
+        mContentHash = contentHash;
         mLastModified = file.lastModified();
         mLength = file.length();
     }
@@ -105,41 +120,75 @@ class FileEntity {
     }
 
     /**
-     * Returns the file's sha1, computing it if necessary.
+     * Returns the hash algorithm of the file's content.
+     * @return the hash algorithm.
+     */
+    ContentHash getContentHash() {
+        return mContentHash;
+    }
+
+    /**
+     * Returns the file's hash if it is already known, without computing it.
+     *
+     * @return the hash or null if it was not computed.
+     */
+    String getKnownHash() {
+        return mHash;
+    }
+
+    /**
+     * Returns the file's hash, computing it if necessary.
      *
-     * @return the fha1 or null if it couldn't be computed.
+     * @return the hash or null if it couldn't be computed.
      */
-    String getSha1() {
+    String getHash() {
         try {
-            return computeAndReturnSha1();
-        } catch (Sha1Exception e) {
+            return computeAndReturnHash();
+        } catch (HashException e) {
             return null;
         }
     }
 
     /**
      * Checks whether the {@link File#lastModified()} matches the cached value. If not, length
-     * is updated and the sha1 is reset (but not recomputed, this is done on demand).
+     * is updated and the hash is reset (but not recomputed, this is done on demand).
      *
      * @return return whether the file was changed.
      */
     private boolean checkValidity() {
         if (mLastModified != mFile.lastModified()) {
             mLength = mFile.length();
-            mSha1 = null;
+            mHash = null;
             return true;
         }
 
         return false;
     }
 
+    /**
+     * Returns whether comparing this entity to another one requires its hash, because their
+     * dates differ but not their sizes.
+     *
+     * @param fileEntity the file to compare to.
+     * @return true if {@link #isDifferentThan(FileEntity)} will compute the hashes.
+     */
+    boolean needsHash(FileEntity fileEntity) {
+        return mLastModified != fileEntity.mLastModified && mLength == fileEntity.mLength;
+    }
+
     /**
      * Returns whether the two entity are different files.
      *
-     * This will compute the files' sha1 if they are not yet computed.
+     * This will compute the hash of this entity if it is not yet computed, but only if the
+     * dates differ and the sizes do not. The other entity is the previous state of the file,
+     * so its hash is never computed: if it is not known, the files are considered different.
      *
-     * @param fileEntity the file to compare to.
-     * @return true if the files are the same, false otherwise.
+     * If the other entity was hashed with another algorithm, the file is also hashed with that
+     * algorithm to compare them, so that changing the algorithm does not make all the touched
+     * files look changed.
+     *
+     * @param fileEntity the previous state of the file to compare to.
+     * @return true if the files are different, false otherwise.
      */
     public boolean isDifferentThan(FileEntity fileEntity) {
         assert fileEntity.mFile.equals(mFile);
@@ -151,44 +200,58 @@ class FileEntity {
 
         try {
             // different date doesn't necessarily mean different file.
-            // start with size, less computing intensive than sha1.
-            return mLength != fileEntity.mLength ||
-                    !computeAndReturnSha1().equals(fileEntity.computeAndReturnSha1());
-        } catch (Sha1Exception e) {
-            // if we can't compute the sha1, we consider the files different.
+            // start with size, less computing intensive than hash.
+            if (mLength != fileEntity.mLength || fileEntity.mHash == null) {
+                return true;
+            }
+
+            String hash = computeAndReturnHash();
+            if (fileEntity.mContentHash != mContentHash) {
+                hash = getHash(mFile, fileEntity.mContentHash);
+            }
+            return !hash.equals(fileEntity.mHash);
+        } catch (HashException e) {
+            // if we can't compute the hash, we consider the files different.
             return true;
         }
     }
 
     /**
-     * Returns the file's sha1, computing it if necessary.
+     * Returns the file's hash, computing it if necessary.
      *
-     * @return the sha1
-     * @throws Sha1Exception
+     * @return the hash
+     * @throws HashException
      */
-    private String computeAndReturnSha1() throws Sha1Exception {
-        if (mSha1 == null) {
-            mSha1 = getSha1(mFile);
+    private String computeAndReturnHash() throws HashException {
+        if (mHash == null) {
+            mHash = getHash(mFile, mContentHash);
         }
-        return mSha1;
+        return mHash;
     }
 
     /**
-     * Computes the sha1 of a file and returns it.
+     * Computes the hash of a file and returns it.
      *
-     * @param f the file to compute the sha1 for.
-     * @return the sha1 value
-     * @throws Sha1Exception if the sha1 value cannot be computed.
+     * @param f the file to compute the hash for.
+     * @param contentHash the hash algorithm.
+     * @return the hash value
+     * @throws HashException if the hash value cannot be computed.
      */
-    static String getSha1(File f) throws Sha1Exception {
-        synchronized (sBuffer) {
-
-            try {
-                HashCode value = ByteStreams.hash(Files.newInputStreamSupplier(f), Hashing.sha1());
-                return value.toString();
-            } catch (Exception e) {
-                throw new Sha1Exception(f, e);
+    static String getHash(File f, ContentHash contentHash) throws HashException {
+        byte[] buffer = sBuffer.get();
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(f);
+            Hasher hasher = contentHash.getFunction().newHasher();
+            int count;
+            while ((count = fis.read(buffer)) != -1) {
+                hasher.putBytes(buffer, 0, count);
             }
+            return hasher.hash().toString();
+        } catch (IOException e) {
+            throw new HashException(f, e);
+        } finally {
+            Closeables.closeQuietly(fis);
         }
     }
 
@@ -198,7 +261,7 @@ class FileEntity {
                 "mFile=" + mFile +
                 ", mLastModified=" + mLastModified +
                 ", mLength=" + mLength +
-                ", mSha1='" + mSha1 + '\'' +
+                ", mHash='" + mHash + '\'' +
                 '}';
     }
 }
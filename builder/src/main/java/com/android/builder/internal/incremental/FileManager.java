@@ -17,23 +17,32 @@
 package com.android.builder.internal.incremental;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
 import com.android.ide.common.res2.FileStatus;
 import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -43,18 +52,67 @@ import java.util.regex.Pattern;
  * The class can store the state of the files, and later reload it and compare it to the
  * previous known state.
  *
+ * The state is written as a {@link FileStateTable}, in which the files are looked up as they
+ * are processed, without reading the whole state. The older text format is still read.
+ *
+ * The files whose date changed but not their size are compared by the hash of their content,
+ * see {@link ContentHash}. The hashes are computed in parallel once all the files are added,
+ * when the changes are first requested or the state is written.
+ * No other hash is computed: the state only records the ones that are known, so a run where
+ * no date changed only reads the metadata of the files.
+ *
+ * The state also records the dates of the directories. A directory whose date did not change
+ * has the same content, so it is not listed again, but the files inside it are still checked,
+ * since modifying a file does not change the date of its directory.
  */
 class FileManager {
 
     private static final Pattern READ_PATTERN = Pattern.compile(
             "^(\\d+)\\s+(\\d+)\\s+([0-9a-f]+)\\s+(.+)$");
 
+    /**
+     * How much older than the scan that recorded it a directory must be to be trusted, as file
+     * systems can have a coarse resolution and a directory could change again within the same
+     * time unit.
+     */
+    private static final long DIRECTORY_DATE_MARGIN = 2000;
+
+    /** The SHA-1 written in the text format for the files whose SHA-1 was not known. */
+    private static final String UNKNOWN_SHA1 = "0123456789012345678901234567890123456789";
+
+    @NonNull
+    private final ContentHash mContentHash;
     private Map<File, FileEntity> mLoadedFiles = Maps.newHashMap();
+    /** The loaded state, if it was in the binary format. */
+    @Nullable
+    private FileStateTable mLoadedTable = null;
+    /** The indices of the files of {@link #mLoadedTable} that were processed. */
+    @Nullable
+    private BitSet mFoundInTable = null;
+    /** The time the scan of the loaded state started. */
+    private long mLoadedScanTime = 0;
+    /** The time the scan of the files started, or 0 if no file was processed yet. */
+    private long mScanTime = 0;
     private Map<File, FileEntity> mProcessedFiles = Maps.newHashMap();
+    /** The dates of the processed directories. */
+    private final Map<File, Long> mProcessedDirectories = Maps.newHashMap();
+    /** The files to compare by their hash, as pairs of new and loaded entities. */
+    private final List<FileEntity[]> mHashChecks = Lists.newArrayList();
+    /** The number of times hashes were computed, see {@link #checkHashes()}. */
+    private int mHashBatchCount = 0;
     private Map<File, FileStatus> mResults = Maps.newHashMap();
     private Map<File, FileStatus> mReturnedMap = null;
 
     public FileManager() {
+        this(ContentHash.DEFAULT);
+    }
+
+    /**
+     * Creates a manager.
+     * @param contentHash the hash used to compare the content of the files.
+     */
+    public FileManager(@NonNull ContentHash contentHash) {
+        mContentHash = contentHash;
     }
 
     /**
@@ -70,6 +128,18 @@ class FileManager {
             return false;
         }
 
+        if (FileStateTable.isStateFile(stateFile)) {
+            try {
+                mLoadedTable = FileStateTable.open(stateFile);
+                mFoundInTable = new BitSet(mLoadedTable.size());
+                mLoadedScanTime = mLoadedTable.getScanTime();
+                return true;
+            } catch (IOException ignored) {
+                // a broken state is the same as no state.
+                return false;
+            }
+        }
+
         BufferedReader reader = null;
         try {
             reader = new BufferedReader(new InputStreamReader(
@@ -88,11 +158,14 @@ class FileManager {
                     String path = m.group(4);
                     File f = new File(path);
 
+                    // the text format only had SHA-1 hashes.
+                    String sha1 = m.group(3);
                     FileEntity entity = new FileEntity(
                             f,
                             Long.parseLong(m.group(1)),
                             Long.parseLong(m.group(2)),
-                            m.group(3));
+                            UNKNOWN_SHA1.equals(sha1) ? null : sha1,
+                            ContentHash.SHA1);
 
                     mLoadedFiles.put(f, entity);
                 }
@@ -121,36 +194,17 @@ class FileManager {
      * @see #load(java.io.File)
      */
     public void write(File stateFile) throws IOException {
-        OutputStreamWriter writer = null;
-        try {
-            // first make sure the folders exist!
-            File parentFolder = stateFile.getParentFile();
-            if (!parentFolder.isDirectory() && !parentFolder.mkdirs()) {
-                throw new IOException("Failed to create directory " + parentFolder);
-            }
-
-            // then write the file.
-            writer = new OutputStreamWriter(new FileOutputStream(stateFile), Charsets.UTF_8);
-
-            writer.write("# incremental data. DO NOT EDIT.\n");
-            writer.write("# format is <lastModified> <length> <SHA-1> <path>\n");
-            writer.write("# Encoding is UTF-8\n");
-
-            for (FileEntity entity : mProcessedFiles.values()) {
-                String sha1 = entity.getSha1();
-                if (sha1 == null) {
-                    sha1 = "0123456789012345678901234567890123456789"; // TODO: find a better way to detect missing sha1
-                }
+        checkHashes();
 
-                writer.write(String.format("%d %d %s %s\n",
-                        entity.getLastModified(),
-                        entity.getLength(),
-                        sha1,
-                        entity.getFile().getAbsolutePath()));
-            }
-        } finally {
-            Closeables.closeQuietly(writer);
+        // first make sure the folders exist!
+        File parentFolder = stateFile.getParentFile();
+        if (!parentFolder.isDirectory() && !parentFolder.mkdirs()) {
+            throw new IOException("Failed to create directory " + parentFolder);
         }
+
+        // then write the file.
+        FileStateTable.write(stateFile, mContentHash, mProcessedFiles.values(),
+                mProcessedDirectories, mScanTime);
     }
 
    /**
@@ -158,6 +212,9 @@ class FileManager {
      * @param file the file.
      */
     public void addFile(File file) {
+        if (mScanTime == 0) {
+            mScanTime = System.currentTimeMillis();
+        }
         processFile(file);
     }
 
@@ -169,6 +226,9 @@ class FileManager {
     @NonNull
     public Map<File, FileStatus> getChangedFiles() {
         if (mReturnedMap == null) {
+            // compare the files added since the last time, all at once.
+            checkHashes();
+
             // create a map with the content of the result map.
             mReturnedMap = Maps.newHashMap(mResults);
 
@@ -177,6 +237,14 @@ class FileManager {
             for (File f : mLoadedFiles.keySet()) {
                 mReturnedMap.put(f, FileStatus.REMOVED);
             }
+            if (mLoadedTable != null) {
+                for (int i = mFoundInTable.nextClearBit(0) ; i < mLoadedTable.size() ;
+                        i = mFoundInTable.nextClearBit(i + 1)) {
+                    if (!mLoadedTable.isDirectory(i)) {
+                        mReturnedMap.put(new File(mLoadedTable.getPath(i)), FileStatus.REMOVED);
+                    }
+                }
+            }
 
             // wrap this
             mReturnedMap = Collections.unmodifiableMap(mReturnedMap);
@@ -192,10 +260,10 @@ class FileManager {
             }
 
             // get the FileEntity for the new(?) version.
-            FileEntity newFileEntity = new FileEntity(file);
+            FileEntity newFileEntity = new FileEntity(file, mContentHash);
 
-            // see if it existed before.
-            FileEntity fileEntity = mLoadedFiles.get(file);
+            // see if it existed before, and remove it from the loaded files.
+            FileEntity fileEntity = removeLoadedFile(file);
 
             if (fileEntity == null) {
                 // new file!
@@ -203,22 +271,33 @@ class FileManager {
 
                 // add it to the list of processed files
                 mProcessedFiles.put(file, newFileEntity);
+            } else if (newFileEntity.needsHash(fileEntity)) {
+                // compared later, see checkHashes().
+                mHashChecks.add(new FileEntity[] { newFileEntity, fileEntity });
             } else {
-                // remove it from the loaded files.
-                mLoadedFiles.remove(file);
-
                 if (newFileEntity.isDifferentThan(fileEntity)) {
                     mResults.put(file, FileStatus.CHANGED);
 
                     // put the newFileEntity in the processed files.
                     mProcessedFiles.put(file, newFileEntity);
                 } else {
-                    // just move the original entity so avoid recomputing the sha1.
+                    // just move the original entity so avoid recomputing the hash.
                     // FileEntity.isDifferentThan doesn't necessarily compute it.
                    mProcessedFiles.put(file, fileEntity);
                 }
             }
         } else if (file.isDirectory()) {
+            long lastModified = file.lastModified();
+            mProcessedDirectories.put(file, lastModified);
+
+            List<String> children = getLoadedChildren(file, lastModified);
+            if (children != null) {
+                for (String child : children) {
+                    processFile(new File(child));
+                }
+                return;
+            }
+
             File[] files = file.listFiles();
             if (files != null && files.length > 0) {
                 for (File f : files) {
@@ -228,6 +307,131 @@ class FileManager {
          }
     }
 
+    /**
+     * Compares the files whose hash is needed, computing the hashes in parallel.
+     */
+    private void checkHashes() {
+        if (mHashChecks.isEmpty()) {
+            return;
+        }
+
+        computeHashes(mHashChecks);
+        mHashBatchCount++;
+
+        for (FileEntity[] check : mHashChecks) {
+            FileEntity newFileEntity = check[0];
+            FileEntity fileEntity = check[1];
+            File file = newFileEntity.getFile();
+            if (newFileEntity.isDifferentThan(fileEntity)) {
+                mResults.put(file, FileStatus.CHANGED);
+                mProcessedFiles.put(file, newFileEntity);
+            } else {
+                // same content, but keep the new date so that the hash is not computed
+                // again next time.
+                mProcessedFiles.put(file, newFileEntity);
+            }
+        }
+
+        mHashChecks.clear();
+    }
+
+    /**
+     * Returns how many times the files waiting for a hash comparison were processed.
+     */
+    @VisibleForTesting
+    int getHashBatchCount() {
+        return mHashBatchCount;
+    }
+
+    /**
+     * Computes the hash of the new entities on a thread pool, so that they are not computed
+     * one after the other when many files are touched but not changed.
+     *
+     * An entity whose hash cannot be computed is simply left without one. If the previous
+     * state used another hash algorithm, the file is hashed with it again when compared.
+     */
+    private static void computeHashes(@NonNull List<FileEntity[]> checks) {
+        int threadCount = Math.min(checks.size(), Runtime.getRuntime().availableProcessors());
+        if (threadCount <= 1) {
+            for (FileEntity[] check : checks) {
+                check[0].getHash();
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount,
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("file-hasher-%d")
+                        .build());
+        try {
+            List<Future<Void>> futures = Lists.newArrayListWithCapacity(checks.size());
+            for (final FileEntity[] check : checks) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        check[0].getHash();
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            // the remaining hashes are computed on demand.
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // can't happen, getHash() does not throw.
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Removes a file from the loaded state.
+     * @param file the file.
+     * @return the entity of the file in the loaded state, or null if it was not there.
+     */
+    @Nullable
+    private FileEntity removeLoadedFile(@NonNull File file) {
+        FileEntity fileEntity = mLoadedFiles.remove(file);
+        if (fileEntity == null && mLoadedTable != null) {
+            int index = mLoadedTable.find(file);
+            if (index >= 0 && !mFoundInTable.get(index) && !mLoadedTable.isDirectory(index)) {
+                mFoundInTable.set(index);
+                fileEntity = mLoadedTable.getEntity(index, file, mContentHash);
+            }
+        }
+
+        return fileEntity;
+    }
+
+    /**
+     * Returns the content of a directory from the loaded state, if the directory did not
+     * change since it was recorded.
+     * @param directory the directory.
+     * @param lastModified the date of the directory.
+     * @return the absolute paths of the files and directories inside it, or null if it must be
+     *          listed.
+     */
+    @Nullable
+    private List<String> getLoadedChildren(@NonNull File directory, long lastModified) {
+        if (mLoadedTable == null || lastModified > mLoadedScanTime - DIRECTORY_DATE_MARGIN) {
+            return null;
+        }
+
+        int index = mLoadedTable.find(directory);
+        if (index < 0 || !mLoadedTable.isDirectory(index) ||
+                mLoadedTable.getLastModified(index) != lastModified) {
+            return null;
+        }
+
+        mFoundInTable.set(index);
+        return mLoadedTable.getChildren(directory);
+    }
+
     /**
      * Updates the existing files with the given files/folders.
      * @param files the new folders/files to process.
@@ -235,10 +439,15 @@ class FileManager {
     void update(Collection<File> files) {
         mLoadedFiles.clear();
         mLoadedFiles.putAll(mProcessedFiles);
+        mLoadedTable = null;
+        mFoundInTable = null;
         mResults.clear();
         mProcessedFiles.clear();
+        mProcessedDirectories.clear();
+        mScanTime = System.currentTimeMillis();
         for (File f : files) {
             processFile(f);
         }
+        checkHashes();
     }
 }
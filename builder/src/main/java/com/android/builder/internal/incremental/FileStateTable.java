@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.incremental;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Closeables;
+import com.google.common.primitives.UnsignedBytes;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of a set of files, in a binary file that is read in place.
+ *
+ * The files are sorted by path, and their data is stored in fixed-width columns, so that a
+ * file is found by a binary search on the paths, without reading the whole table.
+ *
+ * The table also records the directories that were listed, with their date and a length of
+ * {@link #DIRECTORY_LENGTH}. Since the paths are sorted, the content of a directory is found
+ * next to it, so it does not need to be listed again while its date does not change.
+ * The time the files started being scanned is recorded too, as a directory modified right
+ * before the scan could be modified again without a change of its date.
+ *
+ * The format is, in big-endian order:
+ * <pre>
+ * int      magic
+ * int      version
+ * int      id of the {@link ContentHash} of the files
+ * int      size of a hash, in bytes
+ * int      count of files
+ * int      size of the paths, in bytes
+ * long     time the scan of the files started, in milliseconds
+ * long[]   last modified time of each file
+ * long[]   length of each file, or -1 for a directory
+ * byte[][] hash of each file, all 0 if it was not computed
+ * int[]    offset of the path of each file, plus the end of the last path
+ * byte[]   the absolute paths, in UTF-8, sorted by their bytes
+ * </pre>
+ */
+final class FileStateTable {
+
+    private static final int MAGIC = 0x41465354; // AFST
+    private static final int VERSION = 3;
+
+    /** The length of the directories. */
+    static final long DIRECTORY_LENGTH = -1;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final Comparator<byte[]> PATH_ORDER = UnsignedBytes.lexicographicalComparator();
+
+    @NonNull
+    private final ByteBuffer mBuffer;
+    /** The hash of the files, or null if it is not known to this version. */
+    @Nullable
+    private final ContentHash mContentHash;
+    private final int mHashSize;
+    private final int mCount;
+    private final long mScanTime;
+    private final int mLengthsOffset;
+    private final int mHashesOffset;
+    private final int mPathOffsetsOffset;
+    private final int mPathsOffset;
+
+    private FileStateTable(@NonNull ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC ||
+                buffer.getInt(4) != VERSION) {
+            throw new IOException("Unknown state format");
+        }
+
+        mContentHash = ContentHash.forId(buffer.getInt(8));
+        mHashSize = buffer.getInt(12);
+        mCount = buffer.getInt(16);
+        int pathsSize = buffer.getInt(20);
+        mScanTime = buffer.getLong(24);
+        mLengthsOffset = HEADER_SIZE + mCount * 8;
+        mHashesOffset = mLengthsOffset + mCount * 8;
+        mPathOffsetsOffset = mHashesOffset + mCount * mHashSize;
+        mPathsOffset = mPathOffsetsOffset + (mCount + 1) * 4;
+        if (mCount < 0 || mHashSize < 0 || pathsSize < 0 ||
+                (long) mPathsOffset + pathsSize != buffer.limit() ||
+                (mContentHash != null && mContentHash.getSize() != mHashSize)) {
+            throw new IOException("Broken state file");
+        }
+    }
+
+    /**
+     * Returns whether a file is a state file in this format.
+     */
+    static boolean isStateFile(@NonNull File file) {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            fis.getChannel().read(magic, 0);
+            return magic.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            Closeables.closeQuietly(fis);
+        }
+    }
+
+    /**
+     * Opens a state file.
+     *
+     * The file is memory-mapped, except on Windows where it is read at once, since a mapped
+     * file cannot be replaced there until the mapping is garbage collected.
+     *
+     * @param file the state file.
+     * @throws IOException if the file cannot be read or is not a valid state file.
+     */
+    @NonNull
+    static FileStateTable open(@NonNull File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("State file is too large");
+            }
+
+            ByteBuffer buffer;
+            if (SdkConstants.currentPlatform() == SdkConstants.PLATFORM_WINDOWS) {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of state file");
+                    }
+                }
+                buffer.flip();
+            } else {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            return new FileStateTable(buffer);
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Returns the hash of the files, or null if it is unknown.
+     */
+    @Nullable
+    ContentHash getContentHash() {
+        return mContentHash;
+    }
+
+    /**
+     * Returns the time the scan of the files started, or 0 if no file was scanned.
+     */
+    long getScanTime() {
+        return mScanTime;
+    }
+
+    /**
+     * Returns the number of files.
+     */
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the index of a file.
+     * @param file the file.
+     * @return the index of the file, or -1 if it is not in the table.
+     */
+    int find(@NonNull File file) {
+        byte[] path = file.getAbsolutePath().getBytes(Charsets.UTF_8);
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = comparePath(middle, path);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the paths of the files and directories directly inside a directory.
+     * @param directory the directory.
+     * @return the absolute paths, in the order of the table.
+     */
+    @NonNull
+    List<String> getChildren(@NonNull File directory) {
+        String prefix = directory.getAbsolutePath();
+        if (!prefix.endsWith(File.separator)) {
+            prefix += File.separator;
+        }
+
+        // the paths starting with the prefix follow the first one that is not before it.
+        byte[] prefixBytes = prefix.getBytes(Charsets.UTF_8);
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (comparePath(middle, prefixBytes) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        List<String> children = Lists.newArrayList();
+        for (int i = low ; i < mCount ; i++) {
+            String path = getPath(i);
+            if (!path.startsWith(prefix)) {
+                break;
+            }
+            if (path.indexOf(File.separatorChar, prefix.length()) == -1) {
+                children.add(path);
+            }
+        }
+        return children;
+    }
+
+    @NonNull
+    String getPath(int index) {
+        int start = getPathStart(index);
+        byte[] path = new byte[getPathStart(index + 1) - start];
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(mPathsOffset + start);
+        buffer.get(path);
+        return new String(path, Charsets.UTF_8);
+    }
+
+    long getLastModified(int index) {
+        return mBuffer.getLong(HEADER_SIZE + index * 8);
+    }
+
+    long getLength(int index) {
+        return mBuffer.getLong(mLengthsOffset + index * 8);
+    }
+
+    boolean isDirectory(int index) {
+        return getLength(index) == DIRECTORY_LENGTH;
+    }
+
+    /**
+     * Returns the hash of a file in hexadecimal, or null if it was not computed.
+     */
+    @Nullable
+    String getHash(int index) {
+        byte[] hash = new byte[mHashSize];
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(mHashesOffset + index * mHashSize);
+        buffer.get(hash);
+        for (byte b : hash) {
+            if (b != 0) {
+                return BaseEncoding.base16().lowerCase().encode(hash);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the entity of a file of the table.
+     *
+     * @param index the index of the file.
+     * @param file the file, whose path is the one at that index.
+     * @param contentHash the hash of the entity if the hash of the table is unknown. The
+     *                    entity then has no hash.
+     */
+    @NonNull
+    FileEntity getEntity(int index, @NonNull File file, @NonNull ContentHash contentHash) {
+        if (mContentHash == null) {
+            return new FileEntity(file, getLastModified(index), getLength(index), null,
+                    contentHash);
+        }
+        return new FileEntity(file, getLastModified(index), getLength(index), getHash(index),
+                mContentHash);
+    }
+
+    /**
+     * Writes a state file.
+     * @param file the file to write.
+     * @param contentHash the hash of the entities.
+     * @param entities the entities of the files.
+     * @param directories the dates of the directories that were listed, by directory.
+     * @param scanTime the time the scan of the files and directories started.
+     * @throws IOException
+     */
+    static void write(@NonNull File file, @NonNull ContentHash contentHash,
+            @NonNull Collection<FileEntity> entities, @NonNull Map<File, Long> directories,
+            long scanTime) throws IOException {
+        List<FileEntity> sortedEntities = Lists.newArrayList(entities);
+        for (Map.Entry<File, Long> directory : directories.entrySet()) {
+            sortedEntities.add(new FileEntity(directory.getKey(), directory.getValue(),
+                    DIRECTORY_LENGTH, null, contentHash));
+        }
+
+        final List<byte[]> paths = Lists.newArrayListWithCapacity(sortedEntities.size());
+        for (FileEntity entity : sortedEntities) {
+            paths.add(entity.getFile().getAbsolutePath().getBytes(Charsets.UTF_8));
+        }
+
+        // sort the entities and their paths together.
+        List<Integer> order = Lists.newArrayListWithCapacity(paths.size());
+        for (int i = 0 ; i < paths.size() ; i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer index1, Integer index2) {
+                return PATH_ORDER.compare(paths.get(index1), paths.get(index2));
+            }
+        });
+
+        int count = order.size();
+        int pathsSize = 0;
+        for (byte[] path : paths) {
+            pathsSize += path.length;
+        }
+
+        // the state file may still be mapped, so it is replaced rather than overwritten.
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(contentHash.getId());
+            dos.writeInt(contentHash.getSize());
+            dos.writeInt(count);
+            dos.writeInt(pathsSize);
+            dos.writeLong(scanTime);
+            for (int index : order) {
+                dos.writeLong(sortedEntities.get(index).getLastModified());
+            }
+            for (int index : order) {
+                dos.writeLong(sortedEntities.get(index).getLength());
+            }
+            for (int index : order) {
+                dos.write(getHashBytes(sortedEntities.get(index), contentHash));
+            }
+            int offset = 0;
+            for (int index : order) {
+                dos.writeInt(offset);
+                offset += paths.get(index).length;
+            }
+            dos.writeInt(offset);
+            for (int index : order) {
+                dos.write(paths.get(index));
+            }
+        } finally {
+            dos.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+                throw new IOException("Failed to write " + file);
+            }
+        }
+    }
+
+    /**
+     * Returns the hash of an entity if it is known, without computing it. A hash of another
+     * algorithm is dropped.
+     */
+    @NonNull
+    private static byte[] getHashBytes(@NonNull FileEntity entity,
+            @NonNull ContentHash contentHash) {
+        String hash = entity.getKnownHash();
+        if (hash == null || entity.getContentHash() != contentHash ||
+                hash.length() != contentHash.getSize() * 2) {
+            return new byte[contentHash.getSize()];
+        }
+        return BaseEncoding.base16().lowerCase().decode(hash);
+    }
+
+    private int getPathStart(int index) {
+        return mBuffer.getInt(mPathOffsetsOffset + index * 4);
+    }
+
+    /**
+     * Compares the path at an index with another path, by their bytes.
+     */
+    private int comparePath(int index, @NonNull byte[] path) {
+        int start = mPathsOffset + getPathStart(index);
+        int length = mPathsOffset + getPathStart(index + 1) - start;
+        int commonLength = Math.min(length, path.length);
+        for (int i = 0 ; i < commonLength ; i++) {
+            int comparison = UnsignedBytes.compare(mBuffer.get(start + i), path[i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return length - path.length;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.packaging.PackagerException;
+import com.android.builder.signing.CertificateInfo;
+import com.android.builder.signing.SignedJarBuilder;
+import com.android.utils.ILogger;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Signs an APK that is already packaged, without compressing its entries again.
+ *
+ * All the entries of the APK are kept in place, byte for byte. Its manifest and signature
+ * files, if any, are dropped, and a new manifest, new signature files and a new central
+ * directory are appended.
+ *
+ * The digests of the entries come from the manifest of the APK. The {@link Packager} records
+ * it in unsigned APKs as well, so that they can be signed with several keys at little cost.
+ * The entries without a digest are read and hashed.
+ *
+ * If the manifest of the APK has the fixed time of deterministic packagings, the new
+ * manifest and signature files get it as well.
+ */
+public final class ApkSigner {
+
+    @NonNull
+    private final File mApkFile;
+    @NonNull
+    private final CertificateInfo mCertificateInfo;
+    @Nullable
+    private final String mCreatedBy;
+    @NonNull
+    private final ILogger mLogger;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param apkFile the APK to sign, in place.
+     * @param certificateInfo the signing information.
+     * @param createdBy the creator of the APK, or null.
+     * @param logger the logger.
+     */
+    public ApkSigner(
+            @NonNull File apkFile,
+            @NonNull CertificateInfo certificateInfo,
+            @Nullable String createdBy,
+            @NonNull ILogger logger) {
+        mApkFile = apkFile;
+        mCertificateInfo = certificateInfo;
+        mCreatedBy = createdBy;
+        mLogger = logger;
+    }
+
+    /**
+     * Signs the APK.
+     *
+     * @throws PackagerException if the APK could not be signed. In that case the APK is
+     *          deleted if it was modified.
+     */
+    public void sign() throws PackagerException {
+        List<ZipEntryRecord> entries = Lists.newArrayList();
+        Map<String, String> digests = Maps.newHashMap();
+        long appendOffset = 0;
+        int hashedEntries = 0;
+        boolean deterministic = false;
+
+        try {
+            ZipReader reader = new ZipReader(mApkFile);
+            try {
+                Manifest manifest = IncrementalPackager.readManifest(reader);
+
+                for (ZipEntryRecord entry : reader.getEntries()) {
+                    String name = entry.getName();
+                    if (JarFile.MANIFEST_NAME.equals(name)) {
+                        deterministic =
+                                entry.getDosTime() == ZipEntryRecord.NORMALIZED_DOS_TIME;
+                    }
+                    if (entry.isDirectory() || isSignatureFile(name)) {
+                        continue;
+                    }
+
+                    String digest = manifest != null ?
+                            SignedJarBuilder.getDigest(manifest, name) : null;
+                    if (digest == null) {
+                        InputStream input = reader.getInputStream(entry);
+                        try {
+                            digest = SignedJarBuilder.computeDigest(input);
+                        } finally {
+                            input.close();
+                        }
+                        hashedEntries++;
+                    }
+                    digests.put(name, digest);
+
+                    entries.add(entry);
+                    appendOffset = Math.max(appendOffset, reader.getEndOffset(entry));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new PackagerException(e, "Failed to read %s", mApkFile);
+        }
+
+        mLogger.verbose("Signing %1$s, %2$d entries hashed", mApkFile.getName(), hashedEntries);
+
+        SignedJarBuilder builder = null;
+        boolean success = false;
+        try {
+            builder = IncrementalPackager.createAppendingBuilder(mApkFile, appendOffset,
+                    mCertificateInfo, mCreatedBy, deterministic);
+            for (ZipEntryRecord entry : entries) {
+                builder.writeExistingEntry(entry, digests.get(entry.getName()));
+            }
+
+            builder.close();
+            success = true;
+        } catch (Exception e) {
+            throw new PackagerException(e, "Failed to sign %s", mApkFile);
+        } finally {
+            if (builder != null) {
+                builder.cleanUp();
+            }
+            if (!success) {
+                // the apk is incomplete.
+                //noinspection ResultOfMethodCallIgnored
+                mApkFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns whether an entry is the manifest or a signature file, which are written again
+     * when the APK is signed.
+     */
+    private static boolean isSignatureFile(@NonNull String name) {
+        if (JarFile.MANIFEST_NAME.equals(name)) {
+            return true;
+        }
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1) {
+            return false;
+        }
+
+        String upperName = name.toUpperCase(Locale.US);
+        return upperName.endsWith(".SF") || upperName.endsWith(".RSA") ||
+                upperName.endsWith(".DSA") || upperName.endsWith(".EC");
+    }
+}
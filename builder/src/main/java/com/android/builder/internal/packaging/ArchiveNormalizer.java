@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.jar.JarFile;
+
+/**
+ * Rewrites an archive so that it only depends on the content of its entries.
+ *
+ * The entries are sorted by name, the manifest of a jar staying first, and all get the same
+ * time. Their extra fields and comments are dropped. The data of the entries is copied as
+ * is, without being compressed again.
+ *
+ * This is meant for archives written by tools that keep the time of the files, or list them
+ * in the order of the file system, such as the jar and zip tasks of Gradle.
+ */
+public final class ArchiveNormalizer {
+
+    /**
+     * Orders the entries by name, the META-INF folder and the manifest first.
+     */
+    private static final Comparator<ZipEntryRecord> ENTRY_ORDER =
+            new Comparator<ZipEntryRecord>() {
+        @Override
+        public int compare(ZipEntryRecord entry1, ZipEntryRecord entry2) {
+            int rank1 = getRank(entry1.getName());
+            int rank2 = getRank(entry2.getName());
+            if (rank1 != rank2) {
+                return rank1 - rank2;
+            }
+            return entry1.getName().compareTo(entry2.getName());
+        }
+
+        private int getRank(String name) {
+            if (name.equals("META-INF/")) {
+                return 0;
+            }
+            if (name.equals(JarFile.MANIFEST_NAME)) {
+                return 1;
+            }
+            return 2;
+        }
+    };
+
+    private ArchiveNormalizer() {
+    }
+
+    /**
+     * Normalizes an archive in place.
+     * @param archive the archive.
+     * @throws IOException if the archive could not be read or written. In that case the
+     *          archive is not modified.
+     */
+    public static void normalize(@NonNull File archive) throws IOException {
+        File tempFile = new File(archive.getParentFile(), archive.getName() + ".tmp");
+        boolean success = false;
+
+        ZipReader reader = new ZipReader(archive);
+        try {
+            List<ZipEntryRecord> entries = Lists.newArrayList(reader.getEntries());
+            Collections.sort(entries, ENTRY_ORDER);
+
+            ZipWriter writer = new ZipWriter(new FileOutputStream(tempFile));
+            try {
+                for (ZipEntryRecord entry : entries) {
+                    ZipEntryRecord newEntry = new ZipEntryRecord(entry);
+                    newEntry.setDosTime(ZipEntryRecord.NORMALIZED_DOS_TIME);
+                    writer.putNextRawEntry(newEntry);
+                    reader.transferRawData(entry, writer);
+                    writer.closeEntry();
+                }
+            } finally {
+                writer.close();
+            }
+            success = true;
+        } finally {
+            reader.close();
+            if (!success) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+        }
+
+        if (!archive.delete()) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Failed to replace " + archive);
+        }
+        Files.move(tempFile, archive);
+    }
+}
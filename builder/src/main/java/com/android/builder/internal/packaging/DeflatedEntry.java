@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * A zip entry whose data has been compressed, or stored, in memory, ready to be written as a raw entry
+ * with {@link ZipWriter#putNextRawEntry(ZipEntryRecord)}.
+ *
+ * This allows compressing entries independently from the writing of the archive, for instance
+ * on several threads.
+ */
+public final class DeflatedEntry {
+
+    @NonNull
+    private final ZipEntryRecord mEntry;
+    @NonNull
+    private final byte[] mData;
+    @Nullable
+    private final byte[] mDigest;
+
+    public DeflatedEntry(
+            @NonNull ZipEntryRecord entry,
+            @NonNull byte[] data,
+            @Nullable byte[] digest) {
+        mEntry = entry;
+        mData = data;
+        mDigest = digest;
+    }
+
+    /**
+     * Returns the entry, with its crc and sizes set.
+     */
+    @NonNull
+    public ZipEntryRecord getEntry() {
+        return mEntry;
+    }
+
+    /**
+     * Returns the data of the entry as it must be written in the archive.
+     */
+    @NonNull
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Returns the digest of the uncompressed data, if it was computed.
+     */
+    @Nullable
+    public byte[] getDigest() {
+        return mDigest;
+    }
+
+    /**
+     * Compresses the content of a stream.
+     *
+     * If the level is {@link Deflater#NO_COMPRESSION}, the entry is stored instead.
+     *
+     * @param input the uncompressed content of the entry.
+     * @param entry the entry. Its method, crc and sizes are updated.
+     * @param level the compression level.
+     * @param digestAlgorithm the algorithm of the digest to compute, or null.
+     * @return the compressed entry.
+     * @throws IOException
+     */
+    @NonNull
+    public static DeflatedEntry deflate(
+            @NonNull InputStream input,
+            @NonNull ZipEntryRecord entry,
+            int level,
+            @Nullable String digestAlgorithm) throws IOException {
+        MessageDigest messageDigest = null;
+        if (digestAlgorithm != null) {
+            try {
+                messageDigest = MessageDigest.getInstance(digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        if (level == Deflater.NO_COMPRESSION) {
+            return store(input, entry, messageDigest);
+        }
+
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(level, true /*nowrap*/);
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(
+                    Math.max(32, input.available() / 2));
+            DeflaterOutputStream dos = new DeflaterOutputStream(data, deflater);
+
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                dos.write(buffer, 0, count);
+                crc.update(buffer, 0, count);
+                if (messageDigest != null) {
+                    messageDigest.update(buffer, 0, count);
+                }
+            }
+            dos.finish();
+
+            entry.setMethod(ZipEntry.DEFLATED);
+            entry.setCrc(crc.getValue());
+            entry.setSize(deflater.getBytesRead());
+            entry.setCompressedSize(data.size());
+
+            return new DeflatedEntry(entry, data.toByteArray(),
+                    messageDigest != null ? messageDigest.digest() : null);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @NonNull
+    private static DeflatedEntry store(
+            @NonNull InputStream input,
+            @NonNull ZipEntryRecord entry,
+            @Nullable MessageDigest messageDigest) throws IOException {
+        byte[] data = ByteStreams.toByteArray(input);
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        entry.setMethod(ZipEntry.STORED);
+        entry.setCrc(crc.getValue());
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+
+        return new DeflatedEntry(entry, data,
+                messageDigest != null ? messageDigest.digest(data) : null);
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.packaging.DuplicateFileException;
+import com.android.builder.packaging.PackagerException;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds all the files that would be packaged at the same location inside an APK, before the
+ * APK is written.
+ *
+ * The inputs are added in the same order as they are added to the {@link Packager}, and are
+ * then listed in parallel by {@link #check()}. Zip archives are listed from their central
+ * directory only.
+ *
+ * Unlike the {@link Packager}, which stops at the first conflict, all the conflicts are
+ * reported at once.
+ */
+public class DuplicateFileScanner {
+
+    /**
+     * The list of the files of one input, by path inside the APK archive.
+     */
+    private interface Source extends Callable<Map<String, File>> {
+    }
+
+    private final List<Source> mSources = Lists.newArrayList();
+    @Nullable
+    private JarResourceIndex mJarIndex = null;
+
+    /**
+     * Sets the index of the java resources of the jars, which is used instead of listing the
+     * jars, and is updated with the jars that are not indexed yet.
+     * @param jarIndex the index, or null.
+     *
+     * @see Packager#setJarIndex(JarResourceIndex)
+     */
+    public void setJarIndex(@Nullable JarResourceIndex jarIndex) {
+        mJarIndex = jarIndex;
+    }
+
+    /**
+     * Adds the content of a zip file. All files keep the same path inside the archive.
+     * @param zipFile the zip file.
+     *
+     * @see Packager#addZipFile(File)
+     */
+    public void addZipFile(@NonNull final File zipFile) {
+        mSources.add(new Source() {
+            @Override
+            public Map<String, File> call() throws Exception {
+                Map<String, File> files = Maps.newLinkedHashMap();
+                for (String name : getEntryNames(zipFile)) {
+                    files.put(name, zipFile);
+                }
+                return files;
+            }
+        });
+    }
+
+    /**
+     * Adds a file at a given path.
+     * @param file the file.
+     * @param archivePath the path of the file inside the APK archive.
+     *
+     * @see Packager#addFile(File, String)
+     */
+    public void addFile(@NonNull final File file, @NonNull final String archivePath) {
+        mSources.add(new Source() {
+            @Override
+            public Map<String, File> call() throws Exception {
+                Map<String, File> files = Maps.newLinkedHashMap();
+                files.put(archivePath, file);
+                return files;
+            }
+        });
+    }
+
+    /**
+     * Adds the java resources of a source folder.
+     * @param sourceLocation the source folder.
+     *
+     * @see JavaResourceProcessor#addSourceFolder(String)
+     */
+    public void addJavaResourceFolder(@NonNull String sourceLocation) {
+        addJavaResourceFolders(Collections.singletonList(new File(sourceLocation)));
+    }
+
+    /**
+     * Adds the java resources of several source folders, where a file replaces the file at
+     * the same path in the folders before it.
+     * @param sourceFolders the source folders, in ascending order of importance.
+     *
+     * @see Packager#addSourceFolders(List)
+     */
+    public void addJavaResourceFolders(@NonNull final List<File> sourceFolders) {
+        mSources.add(new Source() {
+            @Override
+            public Map<String, File> call() throws Exception {
+                return JavaResourceProcessor.getResources(sourceFolders);
+            }
+        });
+    }
+
+    /**
+     * Adds the java resources of a jar file.
+     * @param jarFile the jar file.
+     *
+     * @see Packager#addResourcesFromJar(File)
+     */
+    public void addResourcesFromJar(@NonNull final File jarFile) {
+        mSources.add(new Source() {
+            @Override
+            public Map<String, File> call() throws Exception {
+                List<String> resources = null;
+                if (mJarIndex != null) {
+                    resources = mJarIndex.getResources(jarFile);
+                }
+
+                if (resources == null) {
+                    resources = Lists.newArrayList();
+                    for (String name : getEntryNames(jarFile)) {
+                        if (Packager.isJavaResource(name)) {
+                            resources.add(name);
+                        }
+                    }
+                    if (mJarIndex != null && jarFile.isFile()) {
+                        mJarIndex.putResources(jarFile, resources);
+                    }
+                }
+
+                Map<String, File> files = Maps.newLinkedHashMap();
+                for (String name : resources) {
+                    files.put(name, jarFile);
+                }
+                return files;
+            }
+        });
+    }
+
+    /**
+     * Adds the merged assets, under assets/.
+     * @param assetsLocation the merged assets folder.
+     * @param ignoreAssets the patterns of the assets to ignore, or null for the default ones.
+     *
+     * @see Packager#addAssets(String, String)
+     */
+    public void addAssets(@NonNull final String assetsLocation,
+            @Nullable final String ignoreAssets) {
+        mSources.add(new Source() {
+            @Override
+            public Map<String, File> call() throws Exception {
+                File assetsFolder = new File(assetsLocation);
+                if (!assetsFolder.isDirectory()) {
+                    return Maps.newLinkedHashMap();
+                }
+                return Packager.getAssets(assetsFolder, ignoreAssets);
+            }
+        });
+    }
+
+    /**
+     * Adds the native libraries from the top native folder.
+     * @param jniLibLocation the root folder containing the abi folders which contain the .so
+     * @param jniDebugMode whether gdbserver is packaged as well.
+     * @param abis the ABIs that are packaged, or null if all of them are.
+     *
+     * @see Packager#addNativeLibraries(String, Collection)
+     */
+    public void addNativeLibraries(@NonNull final String jniLibLocation,
+            final boolean jniDebugMode, @Nullable final Collection<String> abis) {
+        mSources.add(new Source() {
+            @Override
+            public Map<String, File> call() throws Exception {
+                File nativeFolder = new File(jniLibLocation);
+                if (!nativeFolder.isDirectory()) {
+                    return Maps.newLinkedHashMap();
+                }
+                return Packager.getNativeLibraries(nativeFolder, jniDebugMode, abis);
+            }
+        });
+    }
+
+    /**
+     * Lists all the inputs in parallel, and checks that no two files are packaged at the same
+     * location.
+     *
+     * Inputs that are missing or invalid are ignored here, as the {@link Packager} reports them.
+     *
+     * @return the input of each file to package, by path inside the APK archive, in the order
+     *          the files are added by the {@link Packager}.
+     * @throws DuplicateFileException if one or more files conflict. The exception contains all
+     *          the conflicts, in the order they would be found by the {@link Packager}.
+     * @throws PackagerException if an input could not be read.
+     */
+    @NonNull
+    public Map<String, File> check() throws DuplicateFileException, PackagerException {
+        Map<String, File> addedFiles = Maps.newLinkedHashMap();
+        if (mSources.isEmpty()) {
+            return addedFiles;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mSources.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Map<String, File>>> futures = Lists.newArrayList();
+            for (Source source : mSources) {
+                futures.add(executor.submit(source));
+            }
+
+            // merge the inputs in order, so that the first file of a conflict is the one
+            // added first.
+            List<DuplicateFileException> duplicates = Lists.newArrayList();
+            for (Future<Map<String, File>> future : futures) {
+                for (Map.Entry<String, File> entry : getFiles(future).entrySet()) {
+                    File duplicate = addedFiles.get(entry.getKey());
+                    if (duplicate != null) {
+                        duplicates.add(new DuplicateFileException(
+                                entry.getKey(), duplicate, entry.getValue()));
+                    } else {
+                        addedFiles.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+
+            if (!duplicates.isEmpty()) {
+                throw new DuplicateFileException(duplicates);
+            }
+
+            return addedFiles;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @NonNull
+    private static Map<String, File> getFiles(@NonNull Future<Map<String, File>> future)
+            throws PackagerException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PackagerException(e);
+        } catch (ExecutionException e) {
+            throw new PackagerException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the names of the entries of a zip file that can be packaged: all the entries but
+     * the folders and the content of META-INF.
+     */
+    @NonNull
+    private static List<String> getEntryNames(@NonNull File zipFile) throws IOException {
+        List<String> names = Lists.newArrayList();
+        if (!zipFile.isFile()) {
+            return names;
+        }
+
+        ZipReader reader = new ZipReader(zipFile);
+        try {
+            for (ZipEntryRecord entry : reader.getEntries()) {
+                String name = entry.getName();
+                if (!entry.isDirectory() && !name.startsWith("META-INF/")) {
+                    names.add(name);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return names;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.packaging.CompressionPolicy;
+import com.android.builder.packaging.PackagerException;
+import com.android.builder.signing.CertificateInfo;
+import com.android.builder.signing.SignedJarBuilder;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
+import com.android.utils.ILogger;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Updates an APK previously written by the {@link Packager}, by rewriting only the entries
+ * whose input changed.
+ *
+ * The entries that did not change are kept in place, byte for byte. The archive is truncated
+ * after the last of them, and the new entries are appended, followed by new signature files
+ * and a new central directory. The digests of the kept entries come from the manifest of the
+ * previous APK, signed or not, so their data is not read at all.
+ *
+ * The space of the entries that are removed or rewritten is left unused in the archive.
+ * When too much of the archive is unused, or when the APK cannot be updated, {@link #update}
+ * returns false and the APK must be packaged again by the {@link Packager}.
+ *
+ * Since the layout of an updated APK depends on the previous builds, deterministic APKs are
+ * never updated.
+ */
+public final class IncrementalPackager {
+
+    /** The largest part of the kept region of the archive that can be unused. */
+    private static final double MAX_UNUSED_RATIO = 0.25;
+
+    @NonNull
+    private final File mApkFile;
+    @Nullable
+    private final CertificateInfo mCertificateInfo;
+    @NonNull
+    private final CompressionPolicy mCompressionPolicy;
+    private final boolean mAligned;
+    private final boolean mDeterministic;
+    @Nullable
+    private final PackagingCache mCache;
+    @Nullable
+    private final String mCreatedBy;
+    @NonNull
+    private final ILogger mLogger;
+
+    /**
+     * Creates a new instance.
+     *
+     * The parameters must be the ones used to package the APK in the first place.
+     *
+     * @param apkFile the APK to update.
+     * @param certificateInfo the signing information used to sign the package, or null.
+     * @param compressionPolicy how the entries of the package are compressed.
+     * @param aligned whether the stored entries are aligned, as zipalign would do.
+     * @param deterministic whether all the entries get the same fixed time.
+     * @param cache the cache of compressed entries and digests, or null.
+     * @param logger the logger.
+     */
+    public IncrementalPackager(
+            @NonNull File apkFile,
+            @Nullable CertificateInfo certificateInfo,
+            @NonNull CompressionPolicy compressionPolicy,
+            boolean aligned,
+            boolean deterministic,
+            @Nullable PackagingCache cache,
+            @Nullable String createdBy,
+            @NonNull ILogger logger) {
+        mApkFile = apkFile;
+        mCertificateInfo = certificateInfo;
+        mCompressionPolicy = compressionPolicy;
+        mAligned = aligned;
+        mDeterministic = deterministic;
+        mCache = cache;
+        mCreatedBy = createdBy;
+        mLogger = logger;
+    }
+
+    /**
+     * Updates the APK.
+     *
+     * @param files all the files of the new APK, by path inside the APK archive, as returned
+     *              by {@link DuplicateFileScanner#check()}.
+     * @param archives the inputs of <var>files</var> that are archives whose entries are
+     *                 copied, rather than files.
+     * @param changedFiles the inputs that changed since the APK was packaged, including the
+     *                     files added and removed.
+     * @return true if the APK was updated, false if it must be packaged again, which is
+     *          always the case for deterministic APKs. In that case the APK was not modified.
+     * @throws PackagerException if the update failed. In that case the APK is deleted.
+     */
+    public boolean update(
+            @NonNull Map<String, File> files,
+            @NonNull Collection<File> archives,
+            @NonNull Collection<File> changedFiles) throws PackagerException {
+        if (mDeterministic) {
+            // the same inputs must give the same bytes, whatever the previous builds were.
+            mLogger.verbose("%s: deterministic packaging", mApkFile.getName());
+            return false;
+        }
+        if (!mApkFile.isFile()) {
+            return false;
+        }
+
+        Set<File> changed = Sets.newHashSet(changedFiles);
+        List<ZipEntryRecord> keptEntries = Lists.newArrayList();
+        Map<String, String> digests = Maps.newHashMap();
+        long appendOffset = 0;
+        long keptBytes = 0;
+
+        try {
+            ZipReader reader = new ZipReader(mApkFile);
+            try {
+                // the digests of the kept entries come from the manifest, which unsigned
+                // apks have as well.
+                Manifest manifest = readManifest(reader);
+                if (manifest == null) {
+                    mLogger.verbose("%s: no manifest", mApkFile.getName());
+                    return false;
+                }
+
+                for (ZipEntryRecord entry : reader.getEntries()) {
+                    String name = entry.getName();
+                    File input = files.get(name);
+
+                    // the signature files are always written again.
+                    if (name.startsWith("META-INF/") || input == null || changed.contains(input)) {
+                        continue;
+                    }
+
+                    String digest = SignedJarBuilder.getDigest(manifest, name);
+                    if (digest == null) {
+                        continue;
+                    }
+                    digests.put(name, digest);
+
+                    keptEntries.add(entry);
+                    long end = reader.getEndOffset(entry);
+                    keptBytes += end - entry.getHeaderOffset();
+                    appendOffset = Math.max(appendOffset, end);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            mLogger.verbose("%1$s cannot be updated: %2$s", mApkFile.getName(), e.getMessage());
+            return false;
+        }
+
+        if (keptEntries.isEmpty()) {
+            return false;
+        }
+        if (appendOffset - keptBytes > appendOffset * MAX_UNUSED_RATIO) {
+            mLogger.verbose("%s: too much unused space", mApkFile.getName());
+            return false;
+        }
+
+        mLogger.verbose("Updating %1$s, keeping %2$d entries", mApkFile.getName(),
+                keptEntries.size());
+
+        SignedJarBuilder builder = null;
+        boolean success = false;
+        try {
+            builder = createAppendingBuilder(mApkFile, appendOffset, mCertificateInfo,
+                    mCreatedBy, false /* deterministic */);
+            builder.setCompressionPolicy(mCompressionPolicy);
+            builder.setAligned(mAligned);
+            builder.setCache(mCache);
+
+            Set<String> keptNames = Sets.newHashSet();
+            for (ZipEntryRecord entry : keptEntries) {
+                builder.writeExistingEntry(entry, digests.get(entry.getName()));
+                keptNames.add(entry.getName());
+            }
+
+            // the files are written right away, the entries of the archives are grouped by
+            // archive so that each archive is read once.
+            Map<File, Set<String>> archiveEntries = Maps.newLinkedHashMap();
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                String archivePath = file.getKey();
+                if (keptNames.contains(archivePath)) {
+                    continue;
+                }
+
+                mLogger.verbose("%1$s => %2$s", file.getValue(), archivePath);
+                if (archives.contains(file.getValue())) {
+                    Set<String> names = archiveEntries.get(file.getValue());
+                    if (names == null) {
+                        names = Sets.newHashSet();
+                        archiveEntries.put(file.getValue(), names);
+                    }
+                    names.add(archivePath);
+                } else {
+                    builder.writeFile(file.getValue(), archivePath);
+                }
+            }
+
+            for (Map.Entry<File, Set<String>> archive : archiveEntries.entrySet()) {
+                final Set<String> names = archive.getValue();
+                builder.writeZip(archive.getKey(), new IZipEntryFilter() {
+                    @Override
+                    public boolean checkEntry(String archivePath) {
+                        return names.contains(archivePath);
+                    }
+                });
+            }
+
+            builder.close();
+            success = true;
+            return true;
+        } catch (Exception e) {
+            throw new PackagerException(e, "Failed to update %s", mApkFile);
+        } finally {
+            if (builder != null) {
+                builder.cleanUp();
+            }
+            if (!success) {
+                // the apk is incomplete.
+                //noinspection ResultOfMethodCallIgnored
+                mApkFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Truncates an archive, and creates a builder appending entries to it.
+     * @param apkFile the archive.
+     * @param offset the offset after the last entry to keep.
+     * @param certificateInfo the signing information, or null.
+     * @param createdBy the creator of the archive, or null.
+     * @param deterministic whether the new entries get the same fixed time.
+     */
+    @NonNull
+    static SignedJarBuilder createAppendingBuilder(
+            @NonNull File apkFile,
+            long offset,
+            @Nullable CertificateInfo certificateInfo,
+            @Nullable String createdBy,
+            boolean deterministic) throws IOException, NoSuchAlgorithmException {
+        // drop everything after the last kept entry.
+        RandomAccessFile raf = new RandomAccessFile(apkFile, "rw");
+        try {
+            raf.setLength(offset);
+        } finally {
+            raf.close();
+        }
+
+        SignedJarBuilder builder = new SignedJarBuilder(
+                new ZipWriter(new FileOutputStream(apkFile, true /* append */), offset),
+                certificateInfo != null ? certificateInfo.getKey() : null,
+                certificateInfo != null ? certificateInfo.getCertificate() : null,
+                Packager.getLocalVersion(),
+                createdBy);
+        builder.setDigestsRecorded(true);
+        builder.setNormalizedTime(deterministic);
+        return builder;
+    }
+
+    /**
+     * Returns the manifest of an APK, or null if it has none.
+     */
+    @Nullable
+    static Manifest readManifest(@NonNull ZipReader reader) throws IOException {
+        for (ZipEntryRecord entry : reader.getEntries()) {
+            if (JarFile.MANIFEST_NAME.equals(entry.getName())) {
+                InputStream input = reader.getInputStream(entry);
+                try {
+                    return new Manifest(input);
+                } finally {
+                    input.close();
+                }
+            }
+        }
+
+        return null;
+    }
+}
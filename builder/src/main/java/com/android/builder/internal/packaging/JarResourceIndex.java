@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An index of the java resources of the jars packaged in an APK, so that the jars are listed
+ * only once, and the jars containing only classes are not even opened.
+ *
+ * Each jar is indexed by its absolute path, and its record is only valid as long as its size
+ * and modification time do not change. The index is kept in a file from one packaging to the
+ * next. Only the records used since the index was loaded are saved.
+ *
+ * This class is thread-safe.
+ */
+public class JarResourceIndex {
+
+    /** The name of the file of the index in a {@link PackagingCache}. */
+    public static final String FN_JAR_INDEX = "jars.idx";
+
+    private static final int MAGIC = 0x4a415249; // JARI
+    private static final int VERSION = 1;
+
+    @Nullable
+    private final File mFile;
+    /** The records read from the file, by path. It is not modified after the constructor. */
+    private final Map<String, Record> mSavedRecords = Maps.newHashMap();
+    /** The records used since the index was loaded, by path. */
+    private final ConcurrentMap<String, Record> mUsedRecords = Maps.newConcurrentMap();
+    private volatile boolean mModified = false;
+
+    /**
+     * The java resources of a jar.
+     */
+    private static final class Record {
+        final long mLength;
+        final long mLastModified;
+        @NonNull
+        final List<String> mResources;
+
+        Record(long length, long lastModified, @NonNull List<String> resources) {
+            mLength = length;
+            mLastModified = lastModified;
+            mResources = resources;
+        }
+
+        boolean isValid(@NonNull File jar) {
+            return jar.length() == mLength && jar.lastModified() == mLastModified;
+        }
+    }
+
+    /**
+     * Creates an index.
+     * @param file the file of the index, or null to only keep it in memory.
+     */
+    public JarResourceIndex(@Nullable File file) {
+        mFile = file;
+        if (file != null) {
+            load(file);
+        }
+    }
+
+    /**
+     * Returns the java resources of a jar.
+     * @param jar the jar.
+     * @return the paths of the resources inside the jar, or null if the jar is not indexed, or
+     *          changed since it was indexed.
+     */
+    @Nullable
+    public List<String> getResources(@NonNull File jar) {
+        String path = jar.getAbsolutePath();
+        Record record = mUsedRecords.get(path);
+        if (record == null) {
+            record = mSavedRecords.get(path);
+        }
+
+        if (record == null || !record.isValid(jar)) {
+            return null;
+        }
+
+        mUsedRecords.putIfAbsent(path, record);
+        return record.mResources;
+    }
+
+    /**
+     * Records the java resources of a jar.
+     * @param jar the jar.
+     * @param resources the paths of its entries that are java resources, as returned by
+     *                  {@link Packager#isJavaResource(String)}.
+     */
+    public void putResources(@NonNull File jar, @NonNull Collection<String> resources) {
+        mUsedRecords.put(jar.getAbsolutePath(),
+                new Record(jar.length(), jar.lastModified(), ImmutableList.copyOf(resources)));
+        mModified = true;
+    }
+
+    /**
+     * Writes the records used since the index was loaded to its file, if they changed.
+     * Failing to write the file only means the jars are listed again next time.
+     */
+    public void save() {
+        if (mFile == null ||
+                (!mModified && mUsedRecords.size() == mSavedRecords.size())) {
+            return;
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            File folder = mFile.getParentFile();
+            if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+                return;
+            }
+
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(mUsedRecords.size());
+            for (Map.Entry<String, Record> entry : mUsedRecords.entrySet()) {
+                Record record = entry.getValue();
+                dos.writeUTF(entry.getKey());
+                dos.writeLong(record.mLength);
+                dos.writeLong(record.mLastModified);
+                dos.writeInt(record.mResources.size());
+                for (String resource : record.mResources) {
+                    dos.writeUTF(resource);
+                }
+            }
+            dos.close();
+            dos = null;
+
+            if (!tmpFile.renameTo(mFile)) {
+                //noinspection ResultOfMethodCallIgnored
+                mFile.delete();
+                if (!tmpFile.renameTo(mFile)) {
+                    return;
+                }
+            }
+            mModified = false;
+        } catch (IOException e) {
+            // ignore, see above.
+        } finally {
+            Closeables.closeQuietly(dos);
+            if (tmpFile.isFile()) {
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private void load(@NonNull File file) {
+        if (!file.isFile()) {
+            return;
+        }
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                return;
+            }
+
+            Map<String, Record> records = Maps.newHashMap();
+            int count = dis.readInt();
+            for (int i = 0 ; i < count ; i++) {
+                String path = dis.readUTF();
+                long length = dis.readLong();
+                long lastModified = dis.readLong();
+                int resourceCount = dis.readInt();
+                ImmutableList.Builder<String> resources = ImmutableList.builder();
+                for (int j = 0 ; j < resourceCount ; j++) {
+                    resources.add(dis.readUTF());
+                }
+                records.put(path, new Record(length, lastModified, resources.build()));
+            }
+
+            mSavedRecords.putAll(records);
+        } catch (IOException e) {
+            // a broken index is simply ignored, it is replaced when saved.
+        } finally {
+            Closeables.closeQuietly(dis);
+        }
+    }
+}
@@ -16,14 +16,18 @@
 
 package com.android.builder.internal.packaging;
 
-
+import com.android.annotations.NonNull;
 import com.android.builder.packaging.DuplicateFileException;
 import com.android.builder.packaging.PackagerException;
 import com.android.builder.packaging.SealedPackageException;
 import com.android.ide.common.packaging.PackagingUtils;
+import com.google.common.collect.Maps;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 public class JavaResourceProcessor {
 
@@ -64,6 +68,8 @@ public class JavaResourceProcessor {
             try {
                 // file is a directory, process its content.
                 File[] files = sourceFolder.listFiles();
+                // in a stable order, so that the archive does not depend on the file system.
+                Arrays.sort(files);
                 for (File file : files) {
                     processFileForResource(file, null);
                 }
@@ -82,6 +88,36 @@ public class JavaResourceProcessor {
         }
     }
 
+    /**
+     * Returns the resources of several source folders, by path inside the APK archive.
+     *
+     * The folders are overlays: a file replaces the file at the same path in the folders
+     * before it. The paths are in the order they are first found.
+     *
+     * @param sourceFolders the source folders, in ascending order of importance. Missing
+     *                      folders are ignored.
+     * @return the file to package at each path.
+     * @throws PackagerException if an error occurred
+     * @throws SealedPackageException never, as nothing is packaged.
+     * @throws DuplicateFileException never, as the files of the overlays replace each other.
+     */
+    @NonNull
+    public static Map<String, File> getResources(@NonNull List<File> sourceFolders)
+            throws PackagerException, DuplicateFileException, SealedPackageException {
+        final Map<String, File> files = Maps.newLinkedHashMap();
+        JavaResourceProcessor processor = new JavaResourceProcessor(new IArchiveBuilder() {
+            @Override
+            public void addFile(File file, String archivePath) {
+                files.put(archivePath, file);
+            }
+        });
+
+        for (File sourceFolder : sourceFolders) {
+            processor.addSourceFolder(sourceFolder.getPath());
+        }
+
+        return files;
+    }
 
     /**
      * Processes a {@link File} that could be an APK {@link File}, or a folder containing
@@ -110,6 +146,7 @@ public class JavaResourceProcessor {
 
                 // and process its content.
                 File[] files = file.listFiles();
+                Arrays.sort(files);
                 for (File contentFile : files) {
                     processFileForResource(contentFile, path);
                 }
@@ -20,6 +20,7 @@ import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.builder.internal.packaging.JavaResourceProcessor.IArchiveBuilder;
+import com.android.builder.packaging.CompressionPolicy;
 import com.android.builder.packaging.DuplicateFileException;
 import com.android.builder.packaging.PackagerException;
 import com.android.builder.packaging.SealedPackageException;
@@ -28,17 +29,22 @@ import com.android.builder.signing.SignedJarBuilder;
 import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
 import com.android.ide.common.packaging.PackagingUtils;
 import com.android.utils.ILogger;
+import com.google.common.collect.Maps;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.regex.Pattern;
@@ -86,42 +92,23 @@ public final class Packager implements IArchiveBuilder {
     /**
      * Custom {@link IZipEntryFilter} to filter out everything that is not a standard java
      * resources, and also record whether the zip file contains native libraries.
-     * <p/>Used in {@link SignedJarBuilder#writeZip(java.io.InputStream, IZipEntryFilter)} when
+     * <p/>Used in {@link SignedJarBuilder#writeZip(File, IZipEntryFilter)} when
      * we only want the java resources from external jars.
      */
     private final class JavaAndNativeResourceFilter implements IZipEntryFilter {
+        private final List<String> mResources = new ArrayList<String>();
         private final List<String> mNativeLibs = new ArrayList<String>();
         private boolean mNativeLibsConflict = false;
         private File mInputFile;
 
         @Override
         public boolean checkEntry(String archivePath) throws ZipAbortException {
-            // split the path into segments.
-            String[] segments = archivePath.split("/");
-
-            // empty path? skip to next entry.
-            if (segments.length == 0) {
-                return false;
-            }
-
-            // Check each folders to make sure they should be included.
-            // Folders like CVS, .svn, etc.. should already have been excluded from the
-            // jar file, but we need to exclude some other folder (like /META-INF) so
-            // we check anyway.
-            for (int i = 0 ; i < segments.length - 1; i++) {
-                if (!PackagingUtils.checkFolderForPackaging(segments[i])) {
-                    return false;
-                }
-            }
-
-            // get the file name from the path
-            String fileName = segments[segments.length-1];
-
-            boolean check = PackagingUtils.checkFileForPackaging(fileName);
+            boolean check = isJavaResource(archivePath);
 
             // only do additional checks if the file passes the default checks.
             if (check) {
                 mLogger.verbose("=> %s", archivePath);
+                mResources.add(archivePath);
 
                 File duplicate = checkFileForDuplicate(archivePath);
                 if (duplicate != null) {
@@ -145,6 +132,10 @@ public final class Packager implements IArchiveBuilder {
             return check;
         }
 
+        List<String> getResources() {
+            return mResources;
+        }
+
         List<String> getNativeLibs() {
             return mNativeLibs;
         }
@@ -155,14 +146,23 @@ public final class Packager implements IArchiveBuilder {
 
         void reset(File inputFile) {
             mInputFile = inputFile;
+            mResources.clear();
             mNativeLibs.clear();
             mNativeLibsConflict = false;
         }
     }
 
+    /** The assets ignored by aapt by default. */
+    static final String DEFAULT_IGNORE_ASSETS =
+            "!.svn:!.git:.*:<dir>_*:!CVS:!thumbs.db:!picasa.ini:!*.scc:*~";
+
     private SignedJarBuilder mBuilder = null;
+    private final PackagingMetrics mMetrics = new PackagingMetrics();
+    /** The java resource folder being added, if any. */
+    private File mSourceFolder = null;
     private final ILogger mLogger;
     private boolean mJniDebugMode = false;
+    private JarResourceIndex mJarIndex = null;
     private boolean mIsSealed = false;
 
     private final NullZipFilter mNullFilter = new NullZipFilter();
@@ -224,6 +224,11 @@ public final class Packager implements IArchiveBuilder {
      * @param resLocation the file representing the packaged resource file.
      * @param dexLocation the file representing the dex file. This can be null for apk with no code.
      * @param certificateInfo the signing information used to sign the package. Optional the OS path to the debug keystore, if needed or null.
+     * @param compressionPolicy how the entries of the package are compressed.
+     * @param aligned whether the stored entries are aligned, as zipalign would do.
+     * @param deterministic whether all the entries get the same fixed time, so that the same
+     *                      inputs always give the same package.
+     * @param cache the cache of compressed entries and digests, or null.
      * @param logger the logger.
      * @throws com.android.builder.packaging.PackagerException
      */
@@ -232,6 +237,10 @@ public final class Packager implements IArchiveBuilder {
             @NonNull String resLocation,
             @NonNull String dexLocation,
             CertificateInfo certificateInfo,
+            @NonNull CompressionPolicy compressionPolicy,
+            boolean aligned,
+            boolean deterministic,
+            @Nullable PackagingCache cache,
             @Nullable String createdBy,
             ILogger logger) throws PackagerException {
 
@@ -256,6 +265,13 @@ public final class Packager implements IArchiveBuilder {
                     certificateInfo != null ? certificateInfo.getCertificate() : null,
                     getLocalVersion(),
                     createdBy);
+            // unsigned apks keep the digests of their entries, so that they can be updated
+            // and signed without reading them again.
+            mBuilder.setDigestsRecorded(true);
+            mBuilder.setCompressionPolicy(compressionPolicy);
+            mBuilder.setAligned(aligned);
+            mBuilder.setNormalizedTime(deterministic);
+            mBuilder.setCache(cache);
 
             mLogger.verbose("Packaging %s", apkFile.getName());
 
@@ -280,6 +296,15 @@ public final class Packager implements IArchiveBuilder {
         }
     }
 
+    /**
+     * Sets the index of the java resources of the jars, which is used to skip the jars
+     * without resources, and is updated with the jars that are not indexed yet.
+     * @param jarIndex the index, or null.
+     */
+    public void setJarIndex(@Nullable JarResourceIndex jarIndex) {
+        mJarIndex = jarIndex;
+    }
+
     /**
      * Sets the JNI debug mode. In debug mode, when native libraries are present, the packaging
      * will also include one or more copies of gdbserver in the final APK file.
@@ -297,6 +322,62 @@ public final class Packager implements IArchiveBuilder {
         mJniDebugMode = jniDebugMode;
     }
 
+    /**
+     * Returns the counters of the work done for each input of the APK.
+     */
+    @NonNull
+    public PackagingMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Adds the java resources from a source folder.
+     * @param sourceLocation the source folder.
+     * @throws PackagerException if an error occurred
+     * @throws SealedPackageException if the APK is already sealed.
+     * @throws DuplicateFileException if a file conflicts with another already added to the APK
+     *                                   at the same location inside the APK archive.
+     *
+     * @see JavaResourceProcessor#addSourceFolder(String)
+     */
+    public void addSourceFolder(String sourceLocation) throws PackagerException,
+            SealedPackageException, DuplicateFileException {
+        addSourceFolders(Collections.singletonList(new File(sourceLocation)));
+    }
+
+    /**
+     * Adds the java resources from several source folders, such as the resource folders of
+     * the source sets of a variant, without copying them first.
+     *
+     * The folders are overlays: a file replaces the file at the same path in the folders
+     * before it, and only the file of the last folder is packaged.
+     *
+     * @param sourceFolders the source folders, in ascending order of importance.
+     * @throws PackagerException if an error occurred
+     * @throws SealedPackageException if the APK is already sealed.
+     * @throws DuplicateFileException if a file conflicts with another already added to the APK
+     *                                   at the same location inside the APK archive.
+     *
+     * @see JavaResourceProcessor#getResources(List)
+     */
+    public void addSourceFolders(@NonNull List<File> sourceFolders) throws PackagerException,
+            SealedPackageException, DuplicateFileException {
+        try {
+            for (Map.Entry<String, File> entry :
+                    JavaResourceProcessor.getResources(sourceFolders).entrySet()) {
+                File file = entry.getValue();
+                String path = file.getPath();
+
+                // the files of each folder are measured together.
+                mSourceFolder = new File(
+                        path.substring(0, path.length() - entry.getKey().length() - 1));
+                addFile(file, entry.getKey());
+            }
+        } finally {
+            mSourceFolder = null;
+        }
+    }
+
     /**
      * Adds a file to the APK at a given path
      * @param file the file to add
@@ -314,6 +395,7 @@ public final class Packager implements IArchiveBuilder {
         }
 
         try {
+            mBuilder.setMetrics(mMetrics.getInput(mSourceFolder != null ? mSourceFolder : file));
             doAddFile(file, archivePath);
         } catch (DuplicateFileException e) {
             mBuilder.cleanUp();
@@ -344,10 +426,10 @@ public final class Packager implements IArchiveBuilder {
 
             // reset the filter with this input.
             mNullFilter.reset(zipFile);
+            mBuilder.setMetrics(mMetrics.getInput(zipFile));
 
             // ask the builder to add the content of the file.
-            FileInputStream fis = new FileInputStream(zipFile);
-            mBuilder.writeZip(fis, mNullFilter);
+            mBuilder.writeZip(zipFile, mNullFilter);
         } catch (DuplicateFileException e) {
             mBuilder.cleanUp();
             throw e;
@@ -375,14 +457,23 @@ public final class Packager implements IArchiveBuilder {
 
         try {
             mLogger.verbose("%s:", jarFile);
+            mBuilder.setMetrics(mMetrics.getInput(jarFile));
+
+            // jars containing only classes are not opened at all.
+            List<String> resources = mJarIndex != null ? mJarIndex.getResources(jarFile) : null;
+            if (resources != null && resources.isEmpty()) {
+                return new JarStatusImpl(Collections.<String>emptyList(), false);
+            }
 
             // reset the filter with this input.
             mFilter.reset(jarFile);
 
             // ask the builder to add the content of the file, filtered to only let through
             // the java resources.
-            FileInputStream fis = new FileInputStream(jarFile);
-            mBuilder.writeZip(fis, mFilter);
+            mBuilder.writeZip(jarFile, mFilter);
+            if (mJarIndex != null && resources == null) {
+                mJarIndex.putResources(jarFile, mFilter.getResources());
+            }
 
             // check if native libraries were found in the external library. This should
             // constitutes an error or warning depending on if they are in lib/
@@ -413,6 +504,27 @@ public final class Packager implements IArchiveBuilder {
      */
     public void addNativeLibraries(String jniLibLocation)
             throws PackagerException, SealedPackageException, DuplicateFileException {
+        addNativeLibraries(jniLibLocation, null);
+    }
+
+    /**
+     * Adds the native libraries of some ABIs from the top native folder.
+     * The content of this folder must be the various ABI folders.
+     *
+     * This may or may not copy gdbserver into the apk based on whether the debug mode is set.
+     *
+     * @param jniLibLocation the root folder containing the abi folders which contain the .so
+     * @param abis the ABIs to package, or null to package all of them.
+     *
+     * @throws PackagerException if an error occurred
+     * @throws SealedPackageException if the APK is already sealed.
+     * @throws DuplicateFileException if a file conflicts with another already added to the APK
+     *                                   at the same location inside the APK archive.
+     *
+     * @see #setJniDebugMode(boolean)
+     */
+    public void addNativeLibraries(String jniLibLocation, @Nullable Collection<String> abis)
+            throws PackagerException, SealedPackageException, DuplicateFileException {
         if (mIsSealed) {
             throw new SealedPackageException("APK is already sealed");
         }
@@ -428,40 +540,223 @@ public final class Packager implements IArchiveBuilder {
             }
         }
 
-        File[] abiList = nativeFolder.listFiles();
-
         mLogger.verbose("Native folder: %s", nativeFolder);
+        mBuilder.setMetrics(mMetrics.getInput(nativeFolder));
 
+        for (Map.Entry<String, File> lib :
+                getNativeLibraries(nativeFolder, mJniDebugMode, abis).entrySet()) {
+            try {
+                doAddFile(lib.getValue(), lib.getKey());
+            } catch (IOException e) {
+                mBuilder.cleanUp();
+                throw new PackagerException(e, "Failed to add %s", lib.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds the merged assets of the application under assets/, instead of having aapt add
+     * them to the packaged resources.
+     *
+     * The files are filtered like aapt does, and are compressed according to the
+     * compression policy of the APK.
+     *
+     * @param assetsLocation the merged assets folder.
+     * @param ignoreAssets the patterns of the assets to ignore, in the format of the
+     *                     --ignore-assets option of aapt, or null for the default patterns.
+     *
+     * @throws PackagerException if an error occurred
+     * @throws SealedPackageException if the APK is already sealed.
+     * @throws DuplicateFileException if a file conflicts with another already added to the APK
+     *                                   at the same location inside the APK archive.
+     */
+    public void addAssets(@NonNull String assetsLocation, @Nullable String ignoreAssets)
+            throws PackagerException, SealedPackageException, DuplicateFileException {
+        if (mIsSealed) {
+            throw new SealedPackageException("APK is already sealed");
+        }
+
+        File assetsFolder = new File(assetsLocation);
+        if (!assetsFolder.isDirectory()) {
+            if (assetsFolder.exists()) {
+                throw new PackagerException("%s is not a folder", assetsFolder);
+            }
+            return;
+        }
+
+        mLogger.verbose("Assets folder: %s", assetsFolder);
+        mBuilder.setMetrics(mMetrics.getInput(assetsFolder));
+
+        for (Map.Entry<String, File> asset : getAssets(assetsFolder, ignoreAssets).entrySet()) {
+            try {
+                doAddFile(asset.getValue(), asset.getKey());
+            } catch (IOException e) {
+                mBuilder.cleanUp();
+                throw new PackagerException(e, "Failed to add %s", asset.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the assets to package from the merged assets folder.
+     * @param assetsFolder the merged assets folder.
+     * @param ignoreAssets the patterns of the assets to ignore, or null for the default ones.
+     * @return the assets, by path inside the APK archive.
+     */
+    @NonNull
+    static Map<String, File> getAssets(@NonNull File assetsFolder,
+            @Nullable String ignoreAssets) {
+        Map<String, File> assets = Maps.newLinkedHashMap();
+        String[] patterns = (ignoreAssets != null ? ignoreAssets : DEFAULT_IGNORE_ASSETS)
+                .split(":");
+        addAssets(assetsFolder, SdkConstants.FD_ASSETS, patterns, assets);
+        return assets;
+    }
+
+    private static void addAssets(@NonNull File folder, @NonNull String path,
+            @NonNull String[] ignorePatterns, @NonNull Map<String, File> assets) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // list the files in a stable order, as aapt does.
+        Arrays.sort(files);
+        for (File file : files) {
+            boolean isDirectory = file.isDirectory();
+            if (isIgnoredAsset(file.getName(), isDirectory, ignorePatterns)) {
+                continue;
+            }
+
+            String filePath = path + "/" + file.getName();
+            if (isDirectory) {
+                addAssets(file, filePath, ignorePatterns, assets);
+            } else if (file.isFile()) {
+                assets.put(filePath, file);
+            }
+        }
+    }
+
+    /**
+     * Returns whether an asset is ignored, following the rules of the --ignore-assets option
+     * of aapt.
+     *
+     * Each pattern is a name, or a prefix followed by '*', or a suffix preceded by '*',
+     * matched without case. A pattern starting with &lt;dir&gt; or &lt;file&gt; only
+     * applies to folders or to files. The '!' prefix, which only makes aapt quiet, is
+     * ignored.
+     */
+    static boolean isIgnoredAsset(@NonNull String name, boolean isDirectory,
+            @NonNull String[] ignorePatterns) {
+        String lowerCaseName = name.toLowerCase(Locale.US);
+        for (String pattern : ignorePatterns) {
+            if (pattern.startsWith("!")) {
+                pattern = pattern.substring(1);
+            }
+            if (pattern.startsWith("<dir>")) {
+                if (!isDirectory) {
+                    continue;
+                }
+                pattern = pattern.substring("<dir>".length());
+            } else if (pattern.startsWith("<file>")) {
+                if (isDirectory) {
+                    continue;
+                }
+                pattern = pattern.substring("<file>".length());
+            }
+
+            if (pattern.isEmpty()) {
+                continue;
+            }
+
+            pattern = pattern.toLowerCase(Locale.US);
+            if (pattern.equals(lowerCaseName)) {
+                return true;
+            } else if (pattern.startsWith("*") &&
+                    lowerCaseName.endsWith(pattern.substring(1))) {
+                return true;
+            } else if (pattern.endsWith("*") &&
+                    lowerCaseName.startsWith(pattern.substring(0, pattern.length() - 1))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns whether an entry of a jar file is a java resource that must be packaged.
+     * @param archivePath the path of the entry.
+     */
+    static boolean isJavaResource(@NonNull String archivePath) {
+        // split the path into segments.
+        String[] segments = archivePath.split("/");
+
+        // empty path? skip to next entry.
+        if (segments.length == 0) {
+            return false;
+        }
+
+        // Check each folders to make sure they should be included.
+        // Folders like CVS, .svn, etc.. should already have been excluded from the
+        // jar file, but we need to exclude some other folder (like /META-INF) so
+        // we check anyway.
+        for (int i = 0 ; i < segments.length - 1; i++) {
+            if (!PackagingUtils.checkFolderForPackaging(segments[i])) {
+                return false;
+            }
+        }
+
+        // get the file name from the path
+        String fileName = segments[segments.length-1];
+
+        return PackagingUtils.checkFileForPackaging(fileName);
+    }
+
+    /**
+     * Returns the native libraries to package from the top native folder.
+     * @param nativeFolder the root folder containing the abi folders which contain the .so
+     * @param jniDebugMode whether gdbserver must be packaged as well.
+     * @param abis the ABIs to package, or null to package all of them.
+     * @return the libraries, by path inside the APK archive.
+     */
+    @NonNull
+    static Map<String, File> getNativeLibraries(@NonNull File nativeFolder,
+            boolean jniDebugMode, @Nullable Collection<String> abis) {
+        Map<String, File> nativeLibs = Maps.newLinkedHashMap();
+
+        File[] abiList = nativeFolder.listFiles();
         if (abiList != null) {
+            // in a stable order, so that the archive does not depend on the file system.
+            Arrays.sort(abiList);
             for (File abi : abiList) {
-                if (abi.isDirectory()) { // ignore files
+                // ignore files, and the ABIs that are not packaged.
+                if (abi.isDirectory() && (abis == null || abis.contains(abi.getName()))) {
 
                     File[] libs = abi.listFiles();
                     if (libs != null) {
+                        Arrays.sort(libs);
                         for (File lib : libs) {
                             // only consider files that are .so or, if in debug mode, that
                             // are gdbserver executables
                             if (lib.isFile() &&
                                     (PATTERN_NATIVELIB_EXT.matcher(lib.getName()).matches() ||
-                                            (mJniDebugMode &&
+                                            (jniDebugMode &&
                                                     SdkConstants.FN_GDBSERVER.equals(
                                                             lib.getName())))) {
                                 String path =
                                     SdkConstants.FD_APK_NATIVE_LIBS + "/" +
                                     abi.getName() + "/" + lib.getName();
 
-                                try {
-                                    doAddFile(lib, path);
-                                } catch (IOException e) {
-                                    mBuilder.cleanUp();
-                                    throw new PackagerException(e, "Failed to add %s", lib);
-                                }
+                                nativeLibs.put(path, lib);
                             }
                         }
                     }
                 }
             }
         }
+
+        return nativeLibs;
     }
 
     /**
@@ -564,7 +859,7 @@ public final class Packager implements IArchiveBuilder {
         }
     }
 
-    private String getLocalVersion() {
+    static String getLocalVersion() {
         Class clazz = Packager.class;
         String className = clazz.getSimpleName() + ".class";
         String classPath = clazz.getResource(className).toString();
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCodes;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * A cache on disk of the entries of an APK, used to avoid compressing and hashing again the
+ * entries that did not change since the previous packaging.
+ *
+ * Each record is keyed either by the content of the entry (its SHA-1 digest and size, and the
+ * compression level) for the files added to the archive, or by its source (the archive and the
+ * entry) for the entries copied from other archives. It contains the base64 SHA-1 digest of the
+ * content and, optionally, the compressed data of the entry. The data of stored entries is never
+ * kept, since it is only a copy of their file.
+ *
+ * On top of the records written in its folder, every cache shares a pool of records in memory
+ * with all the other caches of the JVM. The APKs of all the variants of a build, which contain
+ * mostly the same entries, therefore compress and hash them only once. The pool is bounded, and
+ * is emptied with {@link #clearPool()} at the end of a build. A cache can also have no folder
+ * at all, and then only use the pool.
+ *
+ * This class is thread-safe.
+ */
+public class PackagingCache {
+
+    private static final int MAGIC = 0x41504b43; // APKC
+    private static final int VERSION = 2;
+
+    /** The maximum size of the data of the records in the pool. */
+    private static final long MAX_POOL_WEIGHT =
+            Math.min(Runtime.getRuntime().maxMemory() / 4, 256L * 1024 * 1024);
+
+    /** The records shared by all the caches of the JVM, by key. */
+    private static final Cache<String, Record> sPool = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_POOL_WEIGHT)
+            .weigher(new Weigher<String, Record>() {
+                @Override
+                public int weigh(String key, Record record) {
+                    return key.length() + (record.mData != null ? record.mData.length : 0);
+                }
+            })
+            .build();
+
+    @Nullable
+    private final File mFolder;
+    /** The name of the records used since this cache was opened. */
+    private final Set<String> mUsedRecords = Collections.synchronizedSet(Sets.<String>newHashSet());
+
+    /**
+     * A record of the cache.
+     */
+    private static final class Record {
+        int mMethod;
+        long mCrc;
+        long mSize;
+        long mCompressedSize;
+        String mDigest;
+        byte[] mData;
+    }
+
+    /**
+     * Creates a cache.
+     * @param folder the folder of the records, or null to only use the pool in memory.
+     */
+    public PackagingCache(@Nullable File folder) {
+        mFolder = folder;
+    }
+
+    /**
+     * Empties the pool of records shared in memory by all the caches.
+     */
+    public static void clearPool() {
+        sPool.invalidateAll();
+    }
+
+    /**
+     * Returns a file of the cache folder that is not a record, such as the file of a
+     * {@link JarResourceIndex}. It is not removed by {@link #removeUnusedRecords()}.
+     * @param name the name of the file.
+     * @return the file, or null if the cache has no folder.
+     */
+    @Nullable
+    public File getExtraFile(@NonNull String name) {
+        if (mFolder == null) {
+            return null;
+        }
+
+        mUsedRecords.add(name);
+        return new File(mFolder, name);
+    }
+
+    /**
+     * Returns the key of a file added to the archive, from its content.
+     * @param sha1 the SHA-1 digest of the content of the file.
+     * @param size the size of the file.
+     * @param level the compression level of the entry.
+     */
+    @NonNull
+    public static String getContentKey(@NonNull byte[] sha1, long size, int level) {
+        return "content:" + HashCodes.fromBytes(sha1) + ':' + size + ':' + level;
+    }
+
+    /**
+     * Returns the key of an entry copied from another archive.
+     * @param archive the archive containing the entry.
+     * @param entry the entry.
+     */
+    @NonNull
+    public static String getZipEntryKey(@NonNull File archive, @NonNull ZipEntryRecord entry) {
+        return "zip:" + archive.getAbsolutePath() + '\n' + entry.getName() + '\n'
+                + entry.getCrc() + ':' + entry.getSize() + ':' + entry.getMethod() + ':'
+                + entry.getCompressedSize();
+    }
+
+    /**
+     * Returns a cached entry.
+     * @param key the key of the entry.
+     * @param entry the entry to update with the method, crc and sizes of the cached entry.
+     * @param withDigest whether the digest of the entry is needed.
+     * @return the cached entry, or null if it is not in the cache.
+     */
+    @Nullable
+    public DeflatedEntry getEntry(
+            @NonNull String key,
+            @NonNull ZipEntryRecord entry,
+            boolean withDigest) {
+        Record record = read(key);
+        if (record == null || record.mData == null || (withDigest && record.mDigest == null)) {
+            return null;
+        }
+
+        entry.setMethod(record.mMethod);
+        entry.setCrc(record.mCrc);
+        entry.setSize(record.mSize);
+        entry.setCompressedSize(record.mCompressedSize);
+
+        return new DeflatedEntry(entry, record.mData,
+                record.mDigest != null ? Base64.decode(record.mDigest) : null);
+    }
+
+    /**
+     * Adds an entry and its data to the cache. Only the digest of a stored entry is kept, as
+     * with {@link #putDigest(String, ZipEntryRecord, String)}.
+     * @param key the key of the entry.
+     * @param deflatedEntry the entry.
+     */
+    public void putEntry(@NonNull String key, @NonNull DeflatedEntry deflatedEntry) {
+        byte[] digest = deflatedEntry.getDigest();
+        write(key, deflatedEntry.getEntry(),
+                digest != null ? new String(Base64.encode(digest), Charsets.US_ASCII) : null,
+                deflatedEntry.getData());
+    }
+
+    /**
+     * Returns the cached base64 digest of an entry.
+     * @param key the key of the entry.
+     * @return the digest or null if it is not in the cache.
+     */
+    @Nullable
+    public String getDigest(@NonNull String key) {
+        Record record = read(key);
+        return record != null ? record.mDigest : null;
+    }
+
+    /**
+     * Adds the digest of an entry to the cache, without its data.
+     * @param key the key of the entry.
+     * @param entry the entry.
+     * @param digest the base64 digest of the content of the entry.
+     */
+    public void putDigest(@NonNull String key, @NonNull ZipEntryRecord entry,
+            @NonNull String digest) {
+        write(key, entry, digest, null);
+    }
+
+    /**
+     * Deletes the records that were not used since this cache was opened, so that the
+     * cache does not grow with entries that are not packaged anymore.
+     */
+    public void removeUnusedRecords() {
+        if (mFolder == null) {
+            return;
+        }
+
+        File[] files = mFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (!mUsedRecords.contains(file.getName())) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    @Nullable
+    private Record read(@NonNull String key) {
+        String name = getRecordName(key);
+        mUsedRecords.add(name);
+
+        Record record = sPool.getIfPresent(key);
+        if (record != null) {
+            // the record may come from another packaging, make sure it is on disk for the
+            // next build.
+            if (mFolder != null && !new File(mFolder, name).isFile()) {
+                writeRecord(key, name, record);
+            }
+            return record;
+        }
+
+        if (mFolder == null) {
+            return null;
+        }
+
+        record = readRecord(key, name);
+        if (record != null) {
+            sPool.put(key, record);
+        }
+        return record;
+    }
+
+    @Nullable
+    private Record readRecord(@NonNull String key, @NonNull String name) {
+        File file = new File(mFolder, name);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION || !key.equals(dis.readUTF())) {
+                return null;
+            }
+
+            Record record = new Record();
+            record.mMethod = dis.readShort();
+            record.mCrc = dis.readLong();
+            record.mSize = dis.readLong();
+            record.mCompressedSize = dis.readLong();
+            if (dis.readBoolean()) {
+                record.mDigest = dis.readUTF();
+            }
+            if (dis.readBoolean()) {
+                record.mData = new byte[(int) record.mCompressedSize];
+                dis.readFully(record.mData);
+            }
+            return record;
+        } catch (IOException e) {
+            // a broken record is simply a cache miss, it is replaced by the next write.
+            return null;
+        } finally {
+            Closeables.closeQuietly(dis);
+        }
+    }
+
+    private void write(
+            @NonNull String key,
+            @NonNull ZipEntryRecord entry,
+            @Nullable String digest,
+            @Nullable byte[] data) {
+        String name = getRecordName(key);
+        mUsedRecords.add(name);
+
+        Record record = new Record();
+        record.mMethod = entry.getMethod();
+        record.mCrc = entry.getCrc();
+        record.mSize = entry.getSize();
+        record.mCompressedSize = entry.getCompressedSize();
+        record.mDigest = digest;
+        record.mData = entry.getMethod() == ZipEntry.STORED ? null : data;
+        sPool.put(key, record);
+
+        if (mFolder != null) {
+            writeRecord(key, name, record);
+        }
+    }
+
+    private void writeRecord(@NonNull String key, @NonNull String name, @NonNull Record record) {
+        File tmpFile = null;
+        DataOutputStream dos = null;
+        try {
+            if (!mFolder.isDirectory() && !mFolder.mkdirs() && !mFolder.isDirectory()) {
+                return;
+            }
+
+            // write to a temporary file first so that readers never see partial records.
+            tmpFile = File.createTempFile(name, ".tmp", mFolder);
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeUTF(key);
+            dos.writeShort(record.mMethod);
+            dos.writeLong(record.mCrc);
+            dos.writeLong(record.mSize);
+            dos.writeLong(record.mCompressedSize);
+            dos.writeBoolean(record.mDigest != null);
+            if (record.mDigest != null) {
+                dos.writeUTF(record.mDigest);
+            }
+            dos.writeBoolean(record.mData != null);
+            if (record.mData != null) {
+                dos.write(record.mData);
+            }
+            dos.close();
+            dos = null;
+
+            File file = new File(mFolder, name);
+            if (!tmpFile.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                if (!tmpFile.renameTo(file)) {
+                    return;
+                }
+            }
+            tmpFile = null;
+        } catch (IOException e) {
+            // failing to write the cache only means the entry is processed again next time.
+        } finally {
+            Closeables.closeQuietly(dos);
+            if (tmpFile != null) {
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+            }
+        }
+    }
+
+    @NonNull
+    private static String getRecordName(@NonNull String key) {
+        return Hashing.sha1().hashString(key, Charsets.UTF_8).toString();
+    }
+}
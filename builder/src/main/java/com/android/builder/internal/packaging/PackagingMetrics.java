@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the work done to package an APK, for each of its inputs.
+ *
+ * The counters are updated by the {@link com.android.builder.signing.SignedJarBuilder} while
+ * it writes the entries of each input, possibly from several threads.
+ *
+ * This class is thread-safe.
+ */
+public class PackagingMetrics {
+
+    /**
+     * The counters of one input of the APK: the resource package, the dex file, a jar, or a
+     * folder of java resources or native libraries.
+     */
+    public static final class InputMetrics {
+        @NonNull
+        private final File mInput;
+        private final AtomicLong mEntries = new AtomicLong();
+        private final AtomicLong mCachedEntries = new AtomicLong();
+        private final AtomicLong mUncompressedBytes = new AtomicLong();
+        private final AtomicLong mCompressedBytes = new AtomicLong();
+        private final AtomicLong mSkippedEntries = new AtomicLong();
+        private final AtomicLong mSkippedBytes = new AtomicLong();
+        private final AtomicLong mInflateNanos = new AtomicLong();
+        private final AtomicLong mDeflateNanos = new AtomicLong();
+        private final AtomicLong mHashNanos = new AtomicLong();
+
+        InputMetrics(@NonNull File input) {
+            mInput = input;
+        }
+
+        @NonNull
+        public File getInput() {
+            return mInput;
+        }
+
+        /**
+         * Records an entry written in the APK.
+         * @param size the uncompressed size of the entry.
+         * @param compressedSize the size of the entry in the APK.
+         * @param cached whether the data or the digest of the entry came from a cache.
+         */
+        public void addEntry(long size, long compressedSize, boolean cached) {
+            mEntries.incrementAndGet();
+            mUncompressedBytes.addAndGet(size);
+            mCompressedBytes.addAndGet(compressedSize);
+            if (cached) {
+                mCachedEntries.incrementAndGet();
+            }
+        }
+
+        /**
+         * Records an entry of the input that is not written in the APK.
+         * @param size the uncompressed size of the entry.
+         */
+        public void addSkippedEntry(long size) {
+            mSkippedEntries.incrementAndGet();
+            mSkippedBytes.addAndGet(size);
+        }
+
+        public void addInflateTime(long nanos) {
+            mInflateNanos.addAndGet(nanos);
+        }
+
+        public void addDeflateTime(long nanos) {
+            mDeflateNanos.addAndGet(nanos);
+        }
+
+        public void addHashTime(long nanos) {
+            mHashNanos.addAndGet(nanos);
+        }
+
+        public long getEntries() {
+            return mEntries.get();
+        }
+
+        public long getCachedEntries() {
+            return mCachedEntries.get();
+        }
+
+        public long getUncompressedBytes() {
+            return mUncompressedBytes.get();
+        }
+
+        public long getCompressedBytes() {
+            return mCompressedBytes.get();
+        }
+
+        public long getSkippedEntries() {
+            return mSkippedEntries.get();
+        }
+
+        public long getSkippedBytes() {
+            return mSkippedBytes.get();
+        }
+
+        public long getInflateNanos() {
+            return mInflateNanos.get();
+        }
+
+        public long getDeflateNanos() {
+            return mDeflateNanos.get();
+        }
+
+        public long getHashNanos() {
+            return mHashNanos.get();
+        }
+    }
+
+    private final Map<File, InputMetrics> mInputs = Maps.newLinkedHashMap();
+
+    /**
+     * Returns the counters of an input, creating them if needed.
+     * @param input the input file or folder.
+     */
+    @NonNull
+    public synchronized InputMetrics getInput(@NonNull File input) {
+        InputMetrics metrics = mInputs.get(input);
+        if (metrics == null) {
+            metrics = new InputMetrics(input);
+            mInputs.put(input, metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the counters of all the inputs, in the order they were added.
+     */
+    @NonNull
+    public synchronized List<InputMetrics> getInputs() {
+        return ImmutableList.copyOf(mInputs.values());
+    }
+
+    /**
+     * Writes the counters as a JSON report.
+     * @param apk the packaged APK.
+     * @param reportFile the report to write.
+     * @throws IOException
+     */
+    public void writeReport(@NonNull File apk, @NonNull File reportFile) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"apk\": ").append(quote(apk.getPath())).append(",\n");
+        sb.append("  \"apkBytes\": ").append(apk.length()).append(",\n");
+        sb.append("  \"inputs\": [");
+
+        boolean first = true;
+        for (InputMetrics input : getInputs()) {
+            sb.append(first ? "\n" : ",\n");
+            first = false;
+
+            sb.append("    {\n");
+            sb.append("      \"input\": ").append(quote(input.getInput().getPath())).append(",\n");
+            sb.append("      \"entries\": ").append(input.getEntries()).append(",\n");
+            sb.append("      \"cachedEntries\": ").append(input.getCachedEntries()).append(",\n");
+            sb.append("      \"uncompressedBytes\": ").append(input.getUncompressedBytes())
+                    .append(",\n");
+            sb.append("      \"compressedBytes\": ").append(input.getCompressedBytes())
+                    .append(",\n");
+            sb.append("      \"skippedEntries\": ").append(input.getSkippedEntries())
+                    .append(",\n");
+            sb.append("      \"skippedBytes\": ").append(input.getSkippedBytes()).append(",\n");
+            sb.append("      \"inflateMillis\": ").append(toMillis(input.getInflateNanos()))
+                    .append(",\n");
+            sb.append("      \"deflateMillis\": ").append(toMillis(input.getDeflateNanos()))
+                    .append(",\n");
+            sb.append("      \"hashMillis\": ").append(toMillis(input.getHashNanos()))
+                    .append('\n');
+            sb.append("    }");
+        }
+
+        sb.append(first ? "]\n" : "\n  ]\n");
+        sb.append("}\n");
+
+        Files.write(sb.toString(), reportFile, Charsets.UTF_8);
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @NonNull
+    private static String quote(@NonNull String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0 ; i < value.length() ; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+}
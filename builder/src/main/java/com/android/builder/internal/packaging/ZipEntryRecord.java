@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+
+import java.util.Calendar;
+import java.util.zip.ZipEntry;
+
+/**
+ * The header information of a zip entry.
+ *
+ * Unlike {@link ZipEntry}, this keeps the raw MS-DOS time of the entry and, for entries read
+ * from an existing archive, the location of their local header. This allows copying an entry
+ * from one archive to another without decompressing it.
+ */
+public final class ZipEntryRecord {
+
+    /**
+     * The time of the entries of archives written in a deterministic way: 1980-01-01 00:00:00,
+     * the minimum MS-DOS time, independent of the time zone.
+     */
+    public static final int NORMALIZED_DOS_TIME = (1 << 21) | (1 << 16);
+
+    private final String mName;
+    private int mMethod = ZipEntry.DEFLATED;
+    private long mCrc = -1;
+    private long mCompressedSize = -1;
+    private long mSize = -1;
+    private int mDosTime = javaToDosTime(System.currentTimeMillis());
+    private int mFlags = 0;
+    private long mHeaderOffset = -1;
+    // set lazily by the ZipReader, possibly from several threads.
+    private volatile long mDataOffset = -1;
+
+    public ZipEntryRecord(@NonNull String name) {
+        mName = name;
+    }
+
+    /**
+     * Creates a copy of a record, without the location information.
+     * @param record the record to copy.
+     */
+    public ZipEntryRecord(@NonNull ZipEntryRecord record) {
+        mName = record.mName;
+        mMethod = record.mMethod;
+        mCrc = record.mCrc;
+        mCompressedSize = record.mCompressedSize;
+        mSize = record.mSize;
+        mDosTime = record.mDosTime;
+    }
+
+    @NonNull
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isDirectory() {
+        return mName.endsWith("/");
+    }
+
+    /**
+     * Returns the compression method, either {@link ZipEntry#STORED} or
+     * {@link ZipEntry#DEFLATED}.
+     */
+    public int getMethod() {
+        return mMethod;
+    }
+
+    public void setMethod(int method) {
+        mMethod = method;
+    }
+
+    /**
+     * Returns the CRC-32 of the uncompressed data, or -1 if unknown.
+     */
+    public long getCrc() {
+        return mCrc;
+    }
+
+    public void setCrc(long crc) {
+        mCrc = crc;
+    }
+
+    /**
+     * Returns the size of the data as stored in the archive, or -1 if unknown.
+     */
+    public long getCompressedSize() {
+        return mCompressedSize;
+    }
+
+    public void setCompressedSize(long compressedSize) {
+        mCompressedSize = compressedSize;
+    }
+
+    /**
+     * Returns the size of the uncompressed data, or -1 if unknown.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    public void setSize(long size) {
+        mSize = size;
+    }
+
+    /**
+     * Returns the modification time in MS-DOS format.
+     */
+    public int getDosTime() {
+        return mDosTime;
+    }
+
+    public void setDosTime(int dosTime) {
+        mDosTime = dosTime;
+    }
+
+    /**
+     * Sets the modification time.
+     * @param time the time in milliseconds since the epoch.
+     */
+    public void setTime(long time) {
+        mDosTime = javaToDosTime(time);
+    }
+
+    /**
+     * Returns the general purpose flags of this entry in the archive it was read from.
+     */
+    int getFlags() {
+        return mFlags;
+    }
+
+    void setFlags(int flags) {
+        mFlags = flags;
+    }
+
+    /**
+     * Returns the offset of the local header of this entry in the archive it was read from,
+     * or -1 if the entry was not read from an archive.
+     */
+    public long getHeaderOffset() {
+        return mHeaderOffset;
+    }
+
+    void setHeaderOffset(long headerOffset) {
+        mHeaderOffset = headerOffset;
+    }
+
+    /**
+     * Returns the offset of the data of this entry in the archive it was read from, or -1 if
+     * this is not known yet.
+     */
+    long getDataOffset() {
+        return mDataOffset;
+    }
+
+    void setDataOffset(long dataOffset) {
+        mDataOffset = dataOffset;
+    }
+
+    /**
+     * Converts a java time into a MS-DOS time.
+     * @param time the time in milliseconds since the epoch.
+     * @return the MS-DOS time.
+     */
+    public static int javaToDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return NORMALIZED_DOS_TIME;
+        }
+        return (year - 1980) << 25
+                | (c.get(Calendar.MONTH) + 1) << 21
+                | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11
+                | c.get(Calendar.MINUTE) << 5
+                | c.get(Calendar.SECOND) >> 1;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
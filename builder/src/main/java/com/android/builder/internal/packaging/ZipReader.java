@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a zip archive through its central directory.
+ *
+ * As opposed to {@link java.util.zip.ZipInputStream}, this gives access to the header
+ * information of all the entries up front, and to the data of each entry in its raw,
+ * compressed form. Only the data of the entries that are actually read is accessed.
+ *
+ * The archive is read with positional reads on a {@link FileChannel}, so several threads can
+ * read entries at the same time.
+ */
+public class ZipReader implements Closeable {
+
+    static final int LOCAL_HEADER_SIG = 0x04034b50;
+    static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    static final int END_HEADER_SIG = 0x06054b50;
+    static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+
+    /** General purpose flag: sizes and crc are in a data descriptor after the data. */
+    static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_HEADER_SIZE = 22;
+
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private final File mFile;
+    private final FileInputStream mInputStream;
+    private final FileChannel mChannel;
+    private final List<ZipEntryRecord> mEntries;
+
+    /**
+     * Opens a zip archive and reads its central directory.
+     * @param file the archive to read.
+     * @throws IOException if the file cannot be read or is not a valid zip archive.
+     */
+    public ZipReader(@NonNull File file) throws IOException {
+        mFile = file;
+        mInputStream = new FileInputStream(file);
+        mChannel = mInputStream.getChannel();
+        try {
+            mEntries = Collections.unmodifiableList(readCentralDirectory());
+        } catch (IOException e) {
+            mInputStream.close();
+            throw e;
+        }
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the entries of the archive, in the order of the central directory.
+     */
+    @NonNull
+    public List<ZipEntryRecord> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Returns a stream on the data of an entry as it is stored in the archive, ie compressed
+     * if the entry is deflated.
+     * @param entry an entry returned by {@link #getEntries()}.
+     * @throws IOException
+     */
+    @NonNull
+    public InputStream getRawInputStream(@NonNull ZipEntryRecord entry) throws IOException {
+        return new RegionInputStream(getDataOffset(entry), entry.getCompressedSize());
+    }
+
+    /**
+     * Writes the data of an entry as it is stored in the archive to the current raw entry of
+     * a writer, transferring it from file to file.
+     * @param entry an entry returned by {@link #getEntries()}.
+     * @param writer the writer, whose current entry was started with
+     *               {@link ZipWriter#putNextRawEntry(ZipEntryRecord)}.
+     * @throws IOException
+     */
+    public void transferRawData(@NonNull ZipEntryRecord entry, @NonNull ZipWriter writer)
+            throws IOException {
+        writer.transferFrom(mChannel, getDataOffset(entry), entry.getCompressedSize());
+    }
+
+    /**
+     * Returns a stream on the uncompressed data of an entry.
+     * @param entry an entry returned by {@link #getEntries()}.
+     * @throws IOException
+     */
+    @NonNull
+    public InputStream getInputStream(@NonNull ZipEntryRecord entry) throws IOException {
+        InputStream raw = getRawInputStream(entry);
+        switch (entry.getMethod()) {
+            case ZipEntry.STORED:
+                return raw;
+            case ZipEntry.DEFLATED:
+                // the extra byte is needed by the inflater in nowrap mode.
+                return new EndingInflaterInputStream(new PaddedInputStream(raw));
+            default:
+                throw new ZipException(String.format(
+                        "Unsupported compression method %1$d for %2$s in %3$s",
+                        entry.getMethod(), entry.getName(), mFile));
+        }
+    }
+
+    /**
+     * Returns the offset of the end of an entry in the archive, after its data and its
+     * optional data descriptor.
+     * @param entry an entry returned by {@link #getEntries()}.
+     * @throws IOException
+     */
+    public long getEndOffset(@NonNull ZipEntryRecord entry) throws IOException {
+        long end = getDataOffset(entry) + entry.getCompressedSize();
+        if ((entry.getFlags() & FLAG_DATA_DESCRIPTOR) != 0) {
+            // the signature of the descriptor is optional.
+            byte[] signature = new byte[4];
+            readFully(end, signature);
+            end += readInt(signature, 0) == DATA_DESCRIPTOR_SIG ? 16 : 12;
+        }
+        return end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInputStream.close();
+    }
+
+    /**
+     * Returns the offset of the data of an entry, reading its local header if needed.
+     */
+    private long getDataOffset(@NonNull ZipEntryRecord entry) throws IOException {
+        long dataOffset = entry.getDataOffset();
+        if (dataOffset == -1) {
+            byte[] header = new byte[LOCAL_HEADER_SIZE];
+            readFully(entry.getHeaderOffset(), header);
+            if (readInt(header, 0) != LOCAL_HEADER_SIG) {
+                throw new ZipException(String.format("Invalid local header for %1$s in %2$s",
+                        entry.getName(), mFile));
+            }
+
+            dataOffset = entry.getHeaderOffset() + LOCAL_HEADER_SIZE
+                    + readShort(header, 26) + readShort(header, 28);
+            entry.setDataOffset(dataOffset);
+        }
+
+        return dataOffset;
+    }
+
+    private List<ZipEntryRecord> readCentralDirectory() throws IOException {
+        long length = mChannel.size();
+        if (length < END_HEADER_SIZE) {
+            throw new ZipException(String.format("%s is not a zip archive", mFile));
+        }
+
+        // the end of central directory record is at the end of the file, followed by an
+        // optional comment.
+        int tailSize = (int) Math.min(length, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+        byte[] tail = new byte[tailSize];
+        readFully(length - tailSize, tail);
+
+        int endPos = -1;
+        for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--) {
+            if (readInt(tail, i) == END_HEADER_SIG) {
+                endPos = i;
+                break;
+            }
+        }
+
+        if (endPos == -1) {
+            throw new ZipException(String.format("%s is not a zip archive", mFile));
+        }
+
+        int count = readShort(tail, endPos + 10);
+        long cdSize = readUInt(tail, endPos + 12);
+        long cdOffset = readUInt(tail, endPos + 16);
+
+        if (count == 0xFFFF || cdOffset == 0xFFFFFFFFL) {
+            throw new ZipException(String.format("%s: zip64 archives are not supported", mFile));
+        }
+
+        if (cdOffset + cdSize > length) {
+            throw new ZipException(String.format("%s: invalid central directory", mFile));
+        }
+
+        byte[] cd = new byte[(int) cdSize];
+        readFully(cdOffset, cd);
+
+        List<ZipEntryRecord> entries = Lists.newArrayListWithCapacity(count);
+        int pos = 0;
+        for (int i = 0 ; i < count ; i++) {
+            if (pos + CENTRAL_HEADER_SIZE > cd.length || readInt(cd, pos) != CENTRAL_HEADER_SIG) {
+                throw new ZipException(String.format("%s: invalid central directory", mFile));
+            }
+
+            int nameLength = readShort(cd, pos + 28);
+            int extraLength = readShort(cd, pos + 30);
+            int commentLength = readShort(cd, pos + 32);
+
+            // names are either UTF-8 (flag 11) or, in practice, ASCII.
+            String name = new String(cd, pos + CENTRAL_HEADER_SIZE, nameLength, Charsets.UTF_8);
+
+            ZipEntryRecord entry = new ZipEntryRecord(name);
+            entry.setFlags(readShort(cd, pos + 8));
+            entry.setMethod(readShort(cd, pos + 10));
+            entry.setDosTime(readInt(cd, pos + 12));
+            entry.setCrc(readUInt(cd, pos + 16));
+            entry.setCompressedSize(readUInt(cd, pos + 20));
+            entry.setSize(readUInt(cd, pos + 24));
+            entry.setHeaderOffset(readUInt(cd, pos + 42));
+            entries.add(entry);
+
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return entries;
+    }
+
+    /**
+     * Fills a buffer with the content of the archive at a given position.
+     */
+    private void readFully(long position, @NonNull byte[] b) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException(String.format("Unexpected end of %s", mFile));
+            }
+        }
+    }
+
+    static int readShort(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8;
+    }
+
+    static int readInt(byte[] b, int off) {
+        return readShort(b, off) | readShort(b, off + 2) << 16;
+    }
+
+    static long readUInt(byte[] b, int off) {
+        return readInt(b, off) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * An {@link InputStream} reading a region of the archive file.
+     *
+     * Each stream keeps its own position, so that streams can be used on different threads.
+     */
+    private final class RegionInputStream extends InputStream {
+        private long mPosition;
+        private long mRemaining;
+
+        RegionInputStream(long offset, long length) {
+            mPosition = offset;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            len = (int) Math.min(len, mRemaining);
+            int count = mChannel.read(ByteBuffer.wrap(b, off, len), mPosition);
+            if (count > 0) {
+                mPosition += count;
+                mRemaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, mRemaining);
+        }
+    }
+
+    /**
+     * An {@link InflaterInputStream} in nowrap mode that releases its {@link Inflater} when it
+     * is closed. Since the inflater is not the default one of the stream,
+     * {@link InflaterInputStream#close()} does not end it, and its native memory would only be
+     * released when it is finalized.
+     */
+    private static final class EndingInflaterInputStream extends InflaterInputStream {
+        EndingInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true /*nowrap*/));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+    /**
+     * An {@link InputStream} that returns an extra 0 byte at the end of its source stream, as
+     * required by {@link Inflater} in nowrap mode.
+     */
+    private static final class PaddedInputStream extends InputStream {
+        private final InputStream mIn;
+        private boolean mPadded = false;
+
+        PaddedInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = mIn.read();
+            if (b == -1 && !mPadded) {
+                mPadded = true;
+                return 0;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = mIn.read(b, off, len);
+            if (count == -1 && !mPadded && len > 0) {
+                mPadded = true;
+                b[off] = 0;
+                return 1;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
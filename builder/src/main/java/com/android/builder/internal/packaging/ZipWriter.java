@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import static com.android.builder.internal.packaging.ZipReader.CENTRAL_HEADER_SIG;
+import static com.android.builder.internal.packaging.ZipReader.DATA_DESCRIPTOR_SIG;
+import static com.android.builder.internal.packaging.ZipReader.END_HEADER_SIG;
+import static com.android.builder.internal.packaging.ZipReader.FLAG_DATA_DESCRIPTOR;
+import static com.android.builder.internal.packaging.ZipReader.LOCAL_HEADER_SIG;
+
+/**
+ * Writes a zip archive.
+ *
+ * This is similar to {@link java.util.zip.ZipOutputStream}, but in addition to entries
+ * compressed on the fly, it can write entries whose data is already compressed (see
+ * {@link #putNextRawEntry(ZipEntryRecord)}), which allows copying entries from another archive
+ * without decompressing and recompressing them.
+ *
+ * It can also append entries to an existing archive while keeping some of its entries in
+ * place (see {@link #ZipWriter(OutputStream, long)}).
+ *
+ * The archive is written to a channel through a large direct buffer. The data of raw entries
+ * can be transferred from another file without going through the heap (see
+ * {@link #transferFrom(FileChannel, long, long)}), which the kernel does without copying when
+ * the archive is written to a file.
+ */
+public class ZipWriter {
+
+    /** General purpose flag: the name is encoded in UTF-8. */
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+
+    /** Alignment of the data of stored entries, as done by zipalign. */
+    public static final int ALIGNMENT = 4;
+    /** Alignment of the data of stored native libraries, so that they can be mapped in memory. */
+    public static final int LIBRARY_ALIGNMENT = 4096;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * An entry of the central directory.
+     */
+    private static final class CentralEntry {
+        final byte[] mName;
+        final int mFlags;
+        final int mMethod;
+        final int mDosTime;
+        long mCrc;
+        long mCompressedSize;
+        long mSize;
+        final long mHeaderOffset;
+
+        CentralEntry(byte[] name, int flags, ZipEntryRecord entry, long headerOffset) {
+            mName = name;
+            mFlags = flags;
+            mMethod = entry.getMethod();
+            mDosTime = entry.getDosTime();
+            mCrc = entry.getCrc();
+            mCompressedSize = entry.getCompressedSize();
+            mSize = entry.getSize();
+            mHeaderOffset = headerOffset;
+        }
+    }
+
+    private final WritableByteChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /** The number of bytes written to the channel or the buffer. */
+    private long mCount = 0;
+    /** The offset in the archive of the first byte written to the stream. */
+    private final long mBaseOffset;
+    private final List<CentralEntry> mCentralDirectory = Lists.newArrayList();
+    private final Set<String> mNames = Sets.newHashSet();
+    private final byte[] mHeader = new byte[ZipReader.CENTRAL_HEADER_SIZE];
+    private boolean mAligned = false;
+
+    private final CRC32 mCrc = new CRC32();
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true /*nowrap*/);
+    private final byte[] mDeflateBuffer = new byte[8192];
+
+    private CentralEntry mCurrent;
+    private ZipEntryRecord mCurrentRecord;
+    private boolean mCurrentIsRaw;
+    private long mCurrentDataStart;
+    private boolean mFinished = false;
+
+    public ZipWriter(@NonNull OutputStream out) {
+        this(out, 0);
+    }
+
+    /**
+     * Creates a writer appending to an existing archive.
+     *
+     * The stream must write at the given offset of the archive, after the last entry to keep.
+     * The entries to keep are then declared with {@link #addExistingEntry(ZipEntryRecord)}.
+     *
+     * The archive is written through the channel of the stream if it is a
+     * {@link FileOutputStream}.
+     *
+     * @param out the stream of the archive.
+     * @param offset the offset in the archive where the stream starts.
+     */
+    public ZipWriter(@NonNull OutputStream out, long offset) {
+        this(out instanceof FileOutputStream ?
+                ((FileOutputStream) out).getChannel() : Channels.newChannel(out), offset);
+    }
+
+    /**
+     * Creates a writer on a channel, which is closed with the writer.
+     *
+     * @param channel the channel of the archive.
+     * @param offset the offset in the archive where the channel starts, which is not 0 when
+     *               appending to an existing archive.
+     * @see #ZipWriter(OutputStream, long)
+     */
+    public ZipWriter(@NonNull WritableByteChannel channel, long offset) {
+        mChannel = channel;
+        mBaseOffset = offset;
+    }
+
+    /**
+     * Sets whether the data of stored entries is aligned, which removes the need to run
+     * zipalign on the archive.
+     *
+     * The data is aligned on {@link #ALIGNMENT} bytes, or {@link #LIBRARY_ALIGNMENT} bytes for
+     * native libraries, by padding the extra field of the local headers.
+     *
+     * @param aligned whether to align the entries.
+     */
+    public void setAligned(boolean aligned) {
+        mAligned = aligned;
+    }
+
+    /**
+     * Sets the compression level used for deflated entries written through
+     * {@link #putNextEntry(ZipEntryRecord)}.
+     * @param level the level, from 0 to 9.
+     */
+    public void setLevel(int level) {
+        mDeflater.setLevel(level);
+    }
+
+    /**
+     * Starts a new entry whose data is then given uncompressed through
+     * {@link #write(byte[], int, int)}.
+     *
+     * Deflated entries are compressed on the fly, and their crc and sizes need not be known.
+     * They are set in the entry when it is closed.
+     * Stored entries must have their crc and size set.
+     *
+     * @param entry the entry to start.
+     * @throws IOException
+     */
+    public void putNextEntry(@NonNull ZipEntryRecord entry) throws IOException {
+        if (entry.getMethod() == ZipEntry.STORED) {
+            if (entry.getCrc() == -1 || entry.getSize() == -1) {
+                throw new ZipException(
+                        "STORED entry missing size or crc-32: " + entry.getName());
+            }
+            entry.setCompressedSize(entry.getSize());
+            startEntry(entry, 0);
+        } else if (entry.getMethod() == ZipEntry.DEFLATED) {
+            // the data is compressed on the fly, so the sizes are written after the data.
+            startEntry(entry, FLAG_DATA_DESCRIPTOR);
+            mDeflater.reset();
+        } else {
+            throw new ZipException("Unsupported compression method: " + entry.getName());
+        }
+
+        mCurrentRecord = entry;
+        mCurrentIsRaw = false;
+        mCrc.reset();
+    }
+
+    /**
+     * Starts a new entry whose data is then given as it should be stored in the archive,
+     * ie already compressed for deflated entries.
+     *
+     * The crc and sizes of the entry must be set.
+     *
+     * @param entry the entry to start.
+     * @throws IOException
+     */
+    public void putNextRawEntry(@NonNull ZipEntryRecord entry) throws IOException {
+        if (entry.getCrc() == -1 || entry.getSize() == -1 || entry.getCompressedSize() == -1) {
+            throw new ZipException(
+                    "Raw entry missing size, compressed size, or crc-32: " + entry.getName());
+        }
+
+        if (entry.getMethod() != ZipEntry.STORED && entry.getMethod() != ZipEntry.DEFLATED) {
+            throw new ZipException("Unsupported compression method: " + entry.getName());
+        }
+
+        startEntry(entry, 0);
+        mCurrentRecord = entry;
+        mCurrentIsRaw = true;
+    }
+
+    /**
+     * Declares an entry that is already in the archive, before the offset where this writer
+     * started, so that it is listed in the new central directory.
+     *
+     * @param entry the entry, as read by a {@link ZipReader} on the archive.
+     * @throws IOException
+     */
+    public void addExistingEntry(@NonNull ZipEntryRecord entry) throws IOException {
+        if (mFinished) {
+            throw new ZipException("Archive is already closed");
+        }
+        closeEntry();
+
+        String name = entry.getName();
+        if (entry.getHeaderOffset() < 0 || entry.getHeaderOffset() >= mBaseOffset) {
+            throw new ZipException("Entry is not in the existing archive: " + name);
+        }
+        if (!mNames.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+
+        mCentralDirectory.add(new CentralEntry(name.getBytes(Charsets.UTF_8), entry.getFlags(),
+                entry, entry.getHeaderOffset()));
+    }
+
+    /**
+     * Writes data for the current entry.
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mCurrent == null) {
+            throw new ZipException("No current entry");
+        }
+
+        if (mCurrentIsRaw || mCurrent.mMethod == ZipEntry.STORED) {
+            writeBytes(b, off, len);
+        } else {
+            mDeflater.setInput(b, off, len);
+            while (!mDeflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        if (!mCurrentIsRaw) {
+            mCrc.update(b, off, len);
+        }
+    }
+
+    /**
+     * Writes data for the current raw entry, from a region of a file.
+     *
+     * The data is transferred directly from the file to the archive, without being copied in
+     * memory when the archive is also written to a file.
+     *
+     * @param source the channel of the file.
+     * @param position the position of the data in the file.
+     * @param count the number of bytes to transfer.
+     * @throws IOException
+     */
+    public void transferFrom(@NonNull FileChannel source, long position, long count)
+            throws IOException {
+        if (mCurrent == null || !mCurrentIsRaw) {
+            throw new ZipException("No current raw entry");
+        }
+
+        flushBuffer();
+        long end = position + count;
+        while (position < end) {
+            long transferred = source.transferTo(position, end - position, mChannel);
+            if (transferred <= 0) {
+                throw new ZipException(String.format(
+                        "Unexpected end of data (%1$d bytes missing): %2$s",
+                        end - position, new String(mCurrent.mName, Charsets.UTF_8)));
+            }
+            position += transferred;
+            mCount += transferred;
+        }
+    }
+
+    /**
+     * Closes the current entry.
+     * @throws IOException
+     */
+    public void closeEntry() throws IOException {
+        CentralEntry entry = mCurrent;
+        if (entry == null) {
+            return;
+        }
+        ZipEntryRecord record = mCurrentRecord;
+        mCurrent = null;
+        mCurrentRecord = null;
+
+        long written = mCount - mCurrentDataStart;
+
+        if (mCurrentIsRaw) {
+            if (written != entry.mCompressedSize) {
+                throw new ZipException(String.format(
+                        "invalid entry compressed size (expected %1$d but got %2$d bytes): %3$s",
+                        entry.mCompressedSize, written,
+                        new String(entry.mName, Charsets.UTF_8)));
+            }
+        } else if (entry.mMethod == ZipEntry.STORED) {
+            if (written != entry.mSize) {
+                throw new ZipException(String.format(
+                        "invalid entry size (expected %1$d but got %2$d bytes): %3$s",
+                        entry.mSize, written, new String(entry.mName, Charsets.UTF_8)));
+            }
+            if (mCrc.getValue() != entry.mCrc) {
+                throw new ZipException("invalid entry crc-32: " +
+                        new String(entry.mName, Charsets.UTF_8));
+            }
+        } else {
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                deflate();
+            }
+
+            entry.mCrc = mCrc.getValue();
+            entry.mSize = mDeflater.getBytesRead();
+            entry.mCompressedSize = mCount - mCurrentDataStart;
+            record.setCrc(entry.mCrc);
+            record.setSize(entry.mSize);
+            record.setCompressedSize(entry.mCompressedSize);
+
+            writeInt(mHeader, 0, DATA_DESCRIPTOR_SIG);
+            writeInt(mHeader, 4, (int) entry.mCrc);
+            writeInt(mHeader, 8, (int) entry.mCompressedSize);
+            writeInt(mHeader, 12, (int) entry.mSize);
+            writeBytes(mHeader, 0, 16);
+        }
+
+        mCentralDirectory.add(entry);
+    }
+
+    /**
+     * Finishes the archive by writing the central directory, and closes the underlying
+     * stream.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+
+        try {
+            closeEntry();
+
+            long cdOffset = getOffset();
+            for (CentralEntry entry : mCentralDirectory) {
+                writeInt(mHeader, 0, CENTRAL_HEADER_SIG);
+                writeShort(mHeader, 4, VERSION_DEFLATED); // version made by
+                writeShort(mHeader, 6, getVersion(entry));
+                writeShort(mHeader, 8, entry.mFlags);
+                writeShort(mHeader, 10, entry.mMethod);
+                writeInt(mHeader, 12, entry.mDosTime);
+                writeInt(mHeader, 16, (int) entry.mCrc);
+                writeInt(mHeader, 20, (int) entry.mCompressedSize);
+                writeInt(mHeader, 24, (int) entry.mSize);
+                writeShort(mHeader, 28, entry.mName.length);
+                writeShort(mHeader, 30, 0); // extra length
+                writeShort(mHeader, 32, 0); // comment length
+                writeShort(mHeader, 34, 0); // disk number
+                writeShort(mHeader, 36, 0); // internal attributes
+                writeInt(mHeader, 38, 0);   // external attributes
+                writeInt(mHeader, 42, (int) entry.mHeaderOffset);
+                writeBytes(mHeader, 0, ZipReader.CENTRAL_HEADER_SIZE);
+                writeBytes(entry.mName, 0, entry.mName.length);
+            }
+            long cdSize = getOffset() - cdOffset;
+
+            checkZip32(cdOffset + cdSize);
+            if (mCentralDirectory.size() > 0xFFFF) {
+                throw new ZipException("Too many entries for a zip archive");
+            }
+
+            writeInt(mHeader, 0, END_HEADER_SIG);
+            writeShort(mHeader, 4, 0); // disk number
+            writeShort(mHeader, 6, 0); // disk with the central directory
+            writeShort(mHeader, 8, mCentralDirectory.size());
+            writeShort(mHeader, 10, mCentralDirectory.size());
+            writeInt(mHeader, 12, (int) cdSize);
+            writeInt(mHeader, 16, (int) cdOffset);
+            writeShort(mHeader, 20, 0); // comment length
+            writeBytes(mHeader, 0, ZipReader.END_HEADER_SIZE);
+            flushBuffer();
+        } finally {
+            mDeflater.end();
+            mChannel.close();
+        }
+    }
+
+    private void startEntry(@NonNull ZipEntryRecord entry, int flags) throws IOException {
+        if (mFinished) {
+            throw new ZipException("Archive is already closed");
+        }
+        closeEntry();
+
+        String name = entry.getName();
+        if (!mNames.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+
+        byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+        if (nameBytes.length != name.length()) {
+            flags |= FLAG_UTF8;
+        }
+
+        long offset = getOffset();
+        checkZip32(offset);
+        CentralEntry central = new CentralEntry(nameBytes, flags, entry, offset);
+        boolean hasDescriptor = (flags & FLAG_DATA_DESCRIPTOR) != 0;
+
+        int padding = 0;
+        if (mAligned && central.mMethod == ZipEntry.STORED) {
+            int alignment = name.endsWith(".so") ? LIBRARY_ALIGNMENT : ALIGNMENT;
+            long dataOffset = offset + ZipReader.LOCAL_HEADER_SIZE + nameBytes.length;
+            padding = (int) ((alignment - dataOffset % alignment) % alignment);
+        }
+
+        writeInt(mHeader, 0, LOCAL_HEADER_SIG);
+        writeShort(mHeader, 4, getVersion(central));
+        writeShort(mHeader, 6, flags);
+        writeShort(mHeader, 8, central.mMethod);
+        writeInt(mHeader, 10, central.mDosTime);
+        writeInt(mHeader, 14, hasDescriptor ? 0 : (int) central.mCrc);
+        writeInt(mHeader, 18, hasDescriptor ? 0 : (int) central.mCompressedSize);
+        writeInt(mHeader, 22, hasDescriptor ? 0 : (int) central.mSize);
+        writeShort(mHeader, 26, nameBytes.length);
+        writeShort(mHeader, 28, padding); // extra length
+        writeBytes(mHeader, 0, ZipReader.LOCAL_HEADER_SIZE);
+        writeBytes(nameBytes, 0, nameBytes.length);
+        if (padding > 0) {
+            writeBytes(new byte[padding], 0, padding);
+        }
+
+        mCurrent = central;
+        mCurrentDataStart = mCount;
+    }
+
+    /**
+     * Returns the current offset in the archive.
+     */
+    private long getOffset() {
+        return mBaseOffset + mCount;
+    }
+
+    /**
+     * Writes bytes to the archive through the buffer.
+     */
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        mCount += len;
+        while (len > 0) {
+            if (!mBuffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int count = Math.min(len, mBuffer.remaining());
+            mBuffer.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Writes the content of the buffer to the channel.
+     */
+    private void flushBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    private void deflate() throws IOException {
+        int count = mDeflater.deflate(mDeflateBuffer, 0, mDeflateBuffer.length);
+        if (count > 0) {
+            writeBytes(mDeflateBuffer, 0, count);
+        }
+    }
+
+    private static int getVersion(@NonNull CentralEntry entry) {
+        return entry.mMethod == ZipEntry.STORED && (entry.mFlags & FLAG_DATA_DESCRIPTOR) == 0 ?
+                VERSION_STORED : VERSION_DEFLATED;
+    }
+
+    private static void checkZip32(long offset) throws ZipException {
+        if (offset > 0xFFFFFFFFL) {
+            throw new ZipException("Archive is too large, zip64 is not supported");
+        }
+    }
+
+    static void writeShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    static void writeInt(byte[] b, int off, int value) {
+        writeShort(b, off, value);
+        writeShort(b, off + 2, value >>> 16);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Decides how each entry of an APK is compressed.
+ *
+ * The policy has a default compression level, and a list of patterns for the entries that
+ * must be stored without compression.
+ *
+ * A pattern containing a '/' or a '*' is matched against the full path of the entry in the
+ * archive, '*' matching any character but '/' and '**' matching any character. A pattern
+ * ending with '/' matches everything under that folder. Any other pattern is matched against
+ * the end of the path, ignoring case, like the no-compress extensions given to aapt.
+ *
+ * For instance "assets/", "res/raw/**.ogg" and ".png".
+ */
+public class CompressionPolicy {
+
+    /** The level for entries stored without compression. */
+    public static final int STORE = 0;
+    /** The fastest compression level. */
+    public static final int FAST = 1;
+    /** The best compression level. */
+    public static final int MAX = 9;
+
+    /** The default policy, compressing every entry at the best level. */
+    public static final CompressionPolicy DEFAULT = new CompressionPolicy(MAX, null);
+
+    /**
+     * The extensions of the files that aapt stores without compression, because they are
+     * already compressed.
+     */
+    public static final List<String> AAPT_NO_COMPRESS = ImmutableList.of(
+            ".jpg", ".jpeg", ".png", ".gif", ".wav", ".mp2", ".mp3", ".ogg", ".aac", ".mpg",
+            ".mpeg", ".mid", ".midi", ".smf", ".jet", ".rtttl", ".imy", ".xmf", ".mp4", ".m4a",
+            ".m4v", ".3gp", ".3gpp", ".3g2", ".3gpp2", ".amr", ".awb", ".wma", ".wmv");
+
+    private final int mLevel;
+    @NonNull
+    private final List<String> mNoCompress;
+    @NonNull
+    private final List<Pattern> mPathPatterns;
+    @NonNull
+    private final List<String> mSuffixes;
+
+    /**
+     * Creates a policy.
+     * @param level the compression level of the entries, from {@link #STORE} to {@link #MAX}.
+     * @param noCompress the patterns of the entries to store, or null.
+     */
+    public CompressionPolicy(int level, @Nullable Collection<String> noCompress) {
+        if (level < STORE || level > MAX) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+
+        mLevel = level;
+        mNoCompress = noCompress != null ?
+                ImmutableList.copyOf(noCompress) : ImmutableList.<String>of();
+
+        mPathPatterns = Lists.newArrayList();
+        mSuffixes = Lists.newArrayList();
+        for (String pattern : mNoCompress) {
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            if (pattern.indexOf('/') != -1 || pattern.indexOf('*') != -1) {
+                mPathPatterns.add(globToRegex(pattern));
+            } else {
+                mSuffixes.add(pattern.toLowerCase(Locale.US));
+            }
+        }
+    }
+
+    /**
+     * Returns the default compression level.
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Returns the patterns of the entries that are stored.
+     */
+    @NonNull
+    public List<String> getNoCompress() {
+        return mNoCompress;
+    }
+
+    /**
+     * Returns a policy with the same level, which also stores the entries matching the
+     * given patterns.
+     * @param noCompress the patterns of the additional entries to store.
+     */
+    @NonNull
+    public CompressionPolicy withNoCompress(@NonNull Collection<String> noCompress) {
+        List<String> patterns = Lists.newArrayList(mNoCompress);
+        for (String pattern : noCompress) {
+            if (!patterns.contains(pattern)) {
+                patterns.add(pattern);
+            }
+        }
+        return new CompressionPolicy(mLevel, patterns);
+    }
+
+    /**
+     * Returns the compression level of an entry.
+     * @param archivePath the path of the entry in the archive.
+     * @return the level, {@link #STORE} if the entry must not be compressed.
+     */
+    public int getLevel(@NonNull String archivePath) {
+        return isStored(archivePath) ? STORE : mLevel;
+    }
+
+    /**
+     * Returns whether an entry must be stored without compression.
+     * @param archivePath the path of the entry in the archive.
+     */
+    public boolean isStored(@NonNull String archivePath) {
+        if (mLevel == STORE) {
+            return true;
+        }
+
+        if (!mSuffixes.isEmpty()) {
+            String lowerCasePath = archivePath.toLowerCase(Locale.US);
+            for (String suffix : mSuffixes) {
+                if (lowerCasePath.endsWith(suffix)) {
+                    return true;
+                }
+            }
+        }
+
+        for (Pattern pattern : mPathPatterns) {
+            if (pattern.matcher(archivePath).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @NonNull
+    private static Pattern globToRegex(@NonNull String glob) {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        int length = glob.length();
+        for (int i = 0 ; i < length ; i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i > start) {
+                    sb.append(Pattern.quote(glob.substring(start, i)));
+                }
+                if (i + 1 < length && glob.charAt(i + 1) == '*') {
+                    sb.append(".*");
+                    i++;
+                } else {
+                    sb.append("[^/]*");
+                }
+                start = i + 1;
+            }
+        }
+        if (start < length) {
+            sb.append(Pattern.quote(glob.substring(start)));
+        }
+
+        // a folder matches everything it contains.
+        if (glob.endsWith("/")) {
+            sb.append(".*");
+        }
+
+        return Pattern.compile(sb.toString());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        CompressionPolicy that = (CompressionPolicy) o;
+
+        return mLevel == that.mLevel && mNoCompress.equals(that.mNoCompress);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mLevel + mNoCompress.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("level", mLevel)
+                .add("noCompress", mNoCompress)
+                .toString();
+    }
+}
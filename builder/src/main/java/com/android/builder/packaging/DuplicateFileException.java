@@ -18,17 +18,22 @@ package com.android.builder.packaging;
 
 import com.android.annotations.NonNull;
 import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter.ZipAbortException;
+import com.google.common.collect.ImmutableList;
 
 import java.io.File;
+import java.util.List;
 
 /**
  * An exception thrown during packaging of an APK file.
+ *
+ * The exception describes one conflict, and possibly other conflicts found at the same time.
  */
 public final class DuplicateFileException extends ZipAbortException {
     private static final long serialVersionUID = 1L;
     private final String mArchivePath;
     private final File mFile1;
     private final File mFile2;
+    private final List<DuplicateFileException> mDuplicates;
 
     public DuplicateFileException(@NonNull String archivePath, @NonNull File file1,
                                   @NonNull File file2) {
@@ -36,6 +41,20 @@ public final class DuplicateFileException extends ZipAbortException {
         mArchivePath = archivePath;
         mFile1 = file1;
         mFile2 = file2;
+        mDuplicates = ImmutableList.of(this);
+    }
+
+    /**
+     * Creates an exception reporting several conflicts.
+     * @param duplicates the conflicts. The first one is the conflict of this exception.
+     */
+    public DuplicateFileException(@NonNull List<DuplicateFileException> duplicates) {
+        super();
+        DuplicateFileException first = duplicates.get(0);
+        mArchivePath = first.mArchivePath;
+        mFile1 = first.mFile1;
+        mFile2 = first.mFile2;
+        mDuplicates = ImmutableList.copyOf(duplicates);
     }
 
     public String getArchivePath() {
@@ -50,13 +69,24 @@ public final class DuplicateFileException extends ZipAbortException {
         return mFile2;
     }
 
+    /**
+     * Returns all the conflicts reported by this exception, starting with this one.
+     */
+    @NonNull
+    public List<DuplicateFileException> getDuplicates() {
+        return mDuplicates;
+    }
+
     @Override
     public String getMessage() {
         StringBuilder sb = new StringBuilder();
 
-        sb.append("Duplicate files copied in APK ").append(mArchivePath).append('\n');
-        sb.append("\tFile 1: ").append(mFile1).append('\n');
-        sb.append("\tFile 2: ").append(mFile1).append('\n');
+        for (DuplicateFileException duplicate : mDuplicates) {
+            sb.append("Duplicate files copied in APK ").append(duplicate.mArchivePath)
+                    .append('\n');
+            sb.append("\tFile 1: ").append(duplicate.mFile1).append('\n');
+            sb.append("\tFile 2: ").append(duplicate.mFile2).append('\n');
+        }
 
         return sb.toString();
     }
@@ -21,18 +21,36 @@ import com.android.annotations.Nullable;
 import com.android.builder.model.SigningConfig;
 import com.android.prefs.AndroidLocation;
 import com.android.prefs.AndroidLocation.AndroidLocationException;
-import com.android.sdklib.util.GrabProcessOutput;
-import com.android.sdklib.util.GrabProcessOutput.IProcessOutput;
-import com.android.sdklib.util.GrabProcessOutput.Wait;
 import com.android.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStore.PrivateKeyEntry;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 /**
  * A Helper to create and read keystore/keys.
@@ -44,6 +62,15 @@ public final class KeystoreHelper {
     // debug keys.
     private static final String CERTIFICATE_DESC = "CN=Android Debug,O=Android,C=US";
 
+    private static final String KEY_ALGORITHM = "RSA";
+    private static final int KEY_SIZE = 2048;
+
+    /**
+     * The certificates read from keystores, by keystore and key. Unlocking a keystore is slow,
+     * and all the APKs of a build are usually signed with the same key.
+     */
+    private static final Cache<String, Optional<CertificateInfo>> sCertificateInfoCache =
+            CacheBuilder.newBuilder().build();
 
     /**
      * Returns the location of the default debug keystore.
@@ -76,111 +103,96 @@ public final class KeystoreHelper {
     /**
      * Creates a new store
      *
+     * The key and its self-signed certificate are generated in process, and written to a
+     * keystore of the same type as the one keytool would create. The keystore is written to a
+     * temporary file first, so that a failure does not leave a truncated keystore behind.
+     *
      * @param signingConfig the Signing Configuration
      * @param description description
-     * @param validityYears
-     * @param logger
+     * @param validityYears the number of years the certificate is valid for.
+     * @param logger a logger object to receive the log of the creation.
      * @throws KeytoolException
      */
     private static boolean createNewStore(
             @NonNull SigningConfig signingConfig,
             @NonNull String description,
             int validityYears,
-            @NonNull final ILogger logger)
+            @NonNull ILogger logger)
             throws KeytoolException {
 
-        // get the executable name of keytool depending on the platform.
-        String os = System.getProperty("os.name");
-
-        String keytoolCommand;
-        if (os.startsWith("Windows")) {
-            keytoolCommand = "keytool.exe";
-        } else {
-            keytoolCommand = "keytool";
-        }
-
-        String javaHome = System.getProperty("java.home");
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+            generator.initialize(KEY_SIZE);
+            KeyPair keyPair = generator.generateKeyPair();
 
-        if (javaHome != null && javaHome.length() > 0) {
-            keytoolCommand = javaHome + File.separator + "bin" + File.separator + keytoolCommand;
-        }
+            X500Name name = new X500Name(description);
+            long now = System.currentTimeMillis();
+            Date notBefore = new Date(now);
+            Date notAfter = new Date(now + validityYears * 365L * 24 * 60 * 60 * 1000);
+            BigInteger serial = new BigInteger(64, new SecureRandom());
 
-        // create the command line to call key tool to build the key with no user input.
-        ArrayList<String> commandList = new ArrayList<String>();
-        commandList.add(keytoolCommand);
-        commandList.add("-genkey");
-        commandList.add("-alias");
-        commandList.add(signingConfig.getKeyAlias());
-        commandList.add("-keyalg");
-        commandList.add("RSA");
-        commandList.add("-dname");
-        commandList.add(description);
-        commandList.add("-validity");
-        commandList.add(Integer.toString(validityYears * 365));
-        commandList.add("-keypass");
-        commandList.add(signingConfig.getKeyPassword());
-        commandList.add("-keystore");
-        commandList.add(signingConfig.getStoreFile().getAbsolutePath());
-        commandList.add("-storepass");
-        commandList.add(signingConfig.getStorePassword());
-        if (signingConfig.getStoreType() != null) {
-            commandList.add("-storetype");
-            commandList.add(signingConfig.getStoreType());
-        }
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                    name, serial, notBefore, notAfter, name, keyPair.getPublic());
+            ContentSigner signer = new JcaContentSignerBuilder(
+                    "SHA1with" + KEY_ALGORITHM).build(keyPair.getPrivate());
+            X509Certificate certificate = new JcaX509CertificateConverter()
+                    .getCertificate(builder.build(signer));
 
-        String[] commandArray = commandList.toArray(new String[commandList.size()]);
+            KeyStore keyStore = KeyStore.getInstance(
+                    signingConfig.getStoreType() != null ?
+                            signingConfig.getStoreType() : KeyStore.getDefaultType());
+            keyStore.load(null, null);
+            //noinspection ConstantConditions
+            keyStore.setKeyEntry(signingConfig.getKeyAlias(), keyPair.getPrivate(),
+                    signingConfig.getKeyPassword().toCharArray(),
+                    new Certificate[] { certificate });
 
-        // launch the command line process
-        int result = 0;
-        try {
-            Process process = Runtime.getRuntime().exec(commandArray);
-            result = GrabProcessOutput.grabProcessOutput(
-                    process,
-                    Wait.WAIT_FOR_READERS,
-                    new IProcessOutput() {
-                        @Override
-                        public void out(@Nullable String line) {
-                            if (line != null) {
-                                logger.info(line);
-                            }
-                        }
+            //noinspection ConstantConditions
+            writeStore(keyStore, signingConfig.getStoreFile(),
+                    signingConfig.getStorePassword().toCharArray());
 
-                        @Override
-                        public void err(@Nullable String line) {
-                            if (line != null) {
-                                logger.error(null /*throwable*/, line);
-                            }
-                        }
-                    });
+            logger.info("Created key %1$s in store \"%2$s\", valid until %3$s",
+                    signingConfig.getKeyAlias(), signingConfig.getStoreFile(), notAfter);
         } catch (Exception e) {
-            // create the command line as one string for debugging purposes
-            StringBuilder builder = new StringBuilder();
-            boolean firstArg = true;
-            for (String arg : commandArray) {
-                boolean hasSpace = arg.indexOf(' ') != -1;
-
-                if (firstArg) {
-                    firstArg = false;
-                } else {
-                    builder.append(' ');
-                }
+            throw new KeytoolException(String.format(
+                    "Failed to create key %1$s in store \"%2$s\": %3$s",
+                    signingConfig.getKeyAlias(), signingConfig.getStoreFile(), e.getMessage()),
+                    e);
+        }
 
-                if (hasSpace) {
-                    builder.append('"');
-                }
+        return true;
+    }
 
-                builder.append(arg);
+    /**
+     * Writes a keystore to a temporary file next to the store file, and renames it to the store
+     * file once it is complete.
+     */
+    private static void writeStore(@NonNull KeyStore keyStore, @NonNull File storeFile,
+            @NonNull char[] storePassword) throws Exception {
+        File tmpFile = new File(storeFile.getPath() + ".tmp");
+        boolean success = false;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                keyStore.store(fos, storePassword);
+            } finally {
+                fos.close();
+            }
 
-                if (hasSpace) {
-                    builder.append('"');
+            if (!tmpFile.renameTo(storeFile)) {
+                //noinspection ResultOfMethodCallIgnored
+                storeFile.delete();
+                if (!tmpFile.renameTo(storeFile)) {
+                    throw new IOException("Failed to write " + storeFile);
                 }
             }
-
-            throw new KeytoolException("Failed to create key: " + e.getMessage(),
-                    javaHome, builder.toString());
+            success = true;
+        } finally {
+            if (!success) {
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+            }
         }
-
-        return result == 0;
     }
 
     /**
@@ -189,12 +201,73 @@ public final class KeystoreHelper {
      * Returns null if the key could not be found. If the passwords are wrong,
      * it throws an exception
      *
+     * The certificate is read once and kept in memory until
+     * {@link #clearCertificateInfoCache()} is called, or until the keystore file is modified.
+     * This method is thread-safe, and concurrent calls for the same key only read it once.
+     *
      * @param signingConfig the signing configuration
      * @return the certificate info if it could be loaded.
      * @throws KeytoolException
      * @throws FileNotFoundException
      */
-    public static CertificateInfo getCertificateInfo(@NonNull SigningConfig signingConfig)
+    public static CertificateInfo getCertificateInfo(@NonNull final SigningConfig signingConfig)
+            throws KeytoolException, FileNotFoundException {
+        if (signingConfig.getStoreFile() == null) {
+            return readCertificateInfo(signingConfig);
+        }
+
+        try {
+            return sCertificateInfoCache.get(getCacheKey(signingConfig),
+                    new Callable<Optional<CertificateInfo>>() {
+                        @Override
+                        public Optional<CertificateInfo> call() throws Exception {
+                            return Optional.fromNullable(readCertificateInfo(signingConfig));
+                        }
+                    }).orNull();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FileNotFoundException) {
+                throw (FileNotFoundException) e.getCause();
+            }
+            throw (KeytoolException) e.getCause();
+        } catch (UncheckedExecutionException e) {
+            throw new KeytoolException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Empties the cache of the certificates read by {@link #getCertificateInfo(SigningConfig)}.
+     */
+    public static void clearCertificateInfoCache() {
+        sCertificateInfoCache.invalidateAll();
+    }
+
+    /**
+     * Returns the key of a certificate in the cache. It contains the modification time of the
+     * keystore file, so that a modified keystore is read again, and a hash of the passwords, so
+     * that wrong passwords are not accepted.
+     */
+    @NonNull
+    private static String getCacheKey(@NonNull SigningConfig signingConfig) {
+        File storeFile = signingConfig.getStoreFile();
+        String passwords = Hashing.sha1().newHasher()
+                .putString(String.valueOf(signingConfig.getStorePassword()), Charsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(String.valueOf(signingConfig.getKeyPassword()), Charsets.UTF_8)
+                .hash().toString();
+
+        //noinspection ConstantConditions
+        return storeFile.getAbsolutePath() + '\n'
+                + storeFile.lastModified() + ':' + storeFile.length() + '\n'
+                + signingConfig.getStoreType() + '\n'
+                + signingConfig.getKeyAlias() + '\n'
+                + passwords;
+    }
+
+    /**
+     * Reads the CertificateInfo for the given signing configuration from its keystore.
+     */
+    @Nullable
+    private static CertificateInfo readCertificateInfo(@NonNull SigningConfig signingConfig)
             throws KeytoolException, FileNotFoundException {
 
         try {
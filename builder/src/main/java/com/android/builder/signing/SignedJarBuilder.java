@@ -18,12 +18,25 @@ package com.android.builder.signing;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.builder.internal.packaging.DeflatedEntry;
+import com.android.builder.internal.packaging.PackagingCache;
+import com.android.builder.internal.packaging.PackagingMetrics.InputMetrics;
+import com.android.builder.internal.packaging.ZipEntryRecord;
+import com.android.builder.internal.packaging.ZipReader;
+import com.android.builder.internal.packaging.ZipWriter;
+import com.android.builder.packaging.CompressionPolicy;
 import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter.ZipAbortException;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
 import org.bouncycastle.asn1.DEROutputStream;
 import org.bouncycastle.cert.jcajce.JcaCertStore;
 import org.bouncycastle.cms.CMSException;
-import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.CMSSignedDataGenerator;
 import org.bouncycastle.cms.CMSTypedData;
@@ -35,30 +48,35 @@ import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.encoders.Base64;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.security.DigestOutputStream;
-import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.security.Signature;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -67,44 +85,55 @@ import java.util.zip.ZipInputStream;
 public class SignedJarBuilder {
     private static final String DIGEST_ALGORITHM = "SHA1";
     private static final String DIGEST_ATTR = "SHA1-Digest";
-    private static final String DIGEST_MANIFEST_ATTR = "SHA1-Digest-Manifest";
 
-    /** Write to another stream and track how many bytes have been
-     *  written.
-     */
-    private static class CountOutputStream extends FilterOutputStream {
-        private int mCount = 0;
+    /** Maximum number of entries compressed ahead of the writer, per thread. */
+    private static final int PENDING_ENTRIES_PER_THREAD = 4;
 
-        public CountOutputStream(OutputStream out) {
-            super(out);
-            mCount = 0;
-        }
+    private ZipWriter mOutputJar;
+    private PrivateKey mKey;
+    private X509Certificate mCertificate;
+    private final String mBuiltBy;
+    private final String mCreatedBy;
+    private StreamingManifest mManifest;
+    private MessageDigest mMessageDigest;
 
-        @Override
-        public void write(int b) throws IOException {
-            super.write(b);
-            mCount++;
-        }
+    private byte[] mBuffer = new byte[64 * 1024];
+    private byte[] mInflateBuffer = new byte[64 * 1024];
+    private Inflater mInflater;
+    /** The time spent inflating and hashing the current raw entry. */
+    private long mInflateNanos;
+    private long mHashNanos;
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            super.write(b, off, len);
-            mCount += len;
+    private CompressionPolicy mCompressionPolicy = CompressionPolicy.DEFAULT;
+    private boolean mNormalizedTime = false;
+    private PackagingCache mCache;
+    private InputMetrics mMetrics;
+    private int mThreadCount = Runtime.getRuntime().availableProcessors();
+    private ExecutorService mExecutor;
+    private final LinkedList<Future<DeflatedEntry>> mPendingEntries = Lists.newLinkedList();
+
+    /**
+     * Compresses a file on one of the threads of the builder.
+     */
+    private final class DeflateTask implements Callable<DeflatedEntry> {
+        private final File mInputFile;
+        private final ZipEntryRecord mEntry;
+        private final int mLevel;
+        private final InputMetrics mTaskMetrics;
+
+        DeflateTask(File inputFile, ZipEntryRecord entry, int level, InputMetrics metrics) {
+            mInputFile = inputFile;
+            mEntry = entry;
+            mLevel = level;
+            mTaskMetrics = metrics;
         }
 
-        public int size() {
-            return mCount;
+        @Override
+        public DeflatedEntry call() throws IOException {
+            return deflateFile(mInputFile, mEntry, mLevel, mTaskMetrics);
         }
     }
 
-    private JarOutputStream mOutputJar;
-    private PrivateKey mKey;
-    private X509Certificate mCertificate;
-    private Manifest mManifest;
-    private MessageDigest mMessageDigest;
-
-    private byte[] mBuffer = new byte[4096];
-
     /**
      * Classes which implement this interface provides a method to check whether a file should
      * be added to a Jar file.
@@ -163,24 +192,136 @@ public class SignedJarBuilder {
                             @Nullable String builtBy,
                             @Nullable String createdBy)
             throws IOException, NoSuchAlgorithmException {
-        mOutputJar = new JarOutputStream(new BufferedOutputStream(out));
-        mOutputJar.setLevel(9);
+        this(new ZipWriter(out), key, certificate, builtBy, createdBy);
+    }
+
+    /**
+     * Creates a {@link SignedJarBuilder} with a given zip writer, and signing information.
+     * <p/>This is used to update an existing archive, whose entries to keep are added with
+     * {@link #writeExistingEntry(ZipEntryRecord, String)}.
+     * @param outputJar the {@link ZipWriter} writing the Jar archive.
+     * @param key the {@link PrivateKey} used to sign the archive, or <code>null</code>.
+     * @param certificate the {@link X509Certificate} used to sign the archive, or
+     * <code>null</code>.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @see ZipWriter#ZipWriter(OutputStream, long)
+     */
+    public SignedJarBuilder(@NonNull ZipWriter outputJar,
+                            @Nullable PrivateKey key,
+                            @Nullable X509Certificate certificate,
+                            @Nullable String builtBy,
+                            @Nullable String createdBy)
+            throws IOException, NoSuchAlgorithmException {
+        mOutputJar = outputJar;
         mKey = key;
         mCertificate = certificate;
+        mBuiltBy = builtBy;
+        mCreatedBy = createdBy;
 
         if (mKey != null && mCertificate != null) {
-            mManifest = new Manifest();
-            Attributes main = mManifest.getMainAttributes();
-            main.putValue("Manifest-Version", "1.0");
-            if (builtBy != null) {
-                main.putValue("Built-By", builtBy);
-            }
-            if (createdBy != null) {
-                main.putValue("Created-By", createdBy);
-            }
+            createManifest();
+        }
+    }
 
-            mMessageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    /**
+     * Sets whether an unsigned archive still gets a manifest with the digests of its entries.
+     * <p/>Such an archive can later be signed by
+     * {@link com.android.builder.internal.packaging.ApkSigner} without reading its entries
+     * again. This has no effect on a signed archive.
+     * <p/>This must be called before any entry is written.
+     * @param recorded whether the digests are recorded.
+     * @throws NoSuchAlgorithmException
+     */
+    public void setDigestsRecorded(boolean recorded) throws NoSuchAlgorithmException {
+        if (mKey != null && mCertificate != null) {
+            return;
         }
+
+        if (recorded) {
+            createManifest();
+        } else {
+            mManifest = null;
+            mMessageDigest = null;
+        }
+    }
+
+    private void createManifest() throws NoSuchAlgorithmException {
+        Map<String, String> mainAttributes = Maps.newLinkedHashMap();
+        if (mBuiltBy != null) {
+            mainAttributes.put("Built-By", mBuiltBy);
+        }
+        if (mCreatedBy != null) {
+            mainAttributes.put("Created-By", mCreatedBy);
+        }
+
+        mManifest = new StreamingManifest(DIGEST_ALGORITHM, DIGEST_ATTR, mainAttributes);
+        mMessageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    }
+
+    /**
+     * Sets the number of threads used to compress the files added with
+     * {@link #writeFile(File, String)}.
+     * <p/>With more than one thread, files are compressed in the background while the
+     * archive is still written in the order the files were added. The default is the
+     * number of available processors.
+     * @param threadCount the number of threads. 1 to compress on the calling thread.
+     */
+    public void setThreadCount(int threadCount) {
+        if (mExecutor != null) {
+            throw new IllegalStateException("Compression threads are already started");
+        }
+        mThreadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Sets whether the data of the stored entries is aligned, as zipalign would do.
+     * @param aligned whether to align the entries.
+     * @see ZipWriter#setAligned(boolean)
+     */
+    public void setAligned(boolean aligned) {
+        mOutputJar.setAligned(aligned);
+    }
+
+    /**
+     * Sets the policy deciding how each entry is compressed.
+     * <p/>Entries copied from other archives keep their compressed data, unless the policy
+     * requires them to be stored.
+     * @param compressionPolicy the policy.
+     */
+    public void setCompressionPolicy(@NonNull CompressionPolicy compressionPolicy) {
+        mCompressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Sets whether all the entries written from now on get the same fixed time, rather than
+     * the time of their input file or entry, so that the same inputs always give the same
+     * archive.
+     * @param normalized whether the time of the entries is normalized.
+     * @see ZipEntryRecord#NORMALIZED_DOS_TIME
+     */
+    public void setNormalizedTime(boolean normalized) {
+        mNormalizedTime = normalized;
+    }
+
+    /**
+     * Sets a cache of the compressed data and digests of the entries, to reuse the work of a
+     * previous packaging for the entries that did not change.
+     * @param cache the cache, or null.
+     */
+    public void setCache(@Nullable PackagingCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Sets the counters updated by the entries written from now on, which all come from the
+     * same input.
+     * <p/>The counters of an entry written with {@link #writeZip(InputStream, IZipEntryFilter)}
+     * are not updated.
+     * @param metrics the counters, or null.
+     */
+    public void setMetrics(@Nullable InputMetrics metrics) {
+        mMetrics = metrics;
     }
 
     /**
@@ -190,19 +331,97 @@ public class SignedJarBuilder {
      * @throws IOException
      */
     public void writeFile(File inputFile, String jarPath) throws IOException {
+        // create the zip entry
+        ZipEntryRecord entry = createRecord(jarPath, inputFile.lastModified());
+
+        int level = mCompressionPolicy.getLevel(jarPath);
+        if (level == CompressionPolicy.STORE) {
+            // stored files are copied from file to file, and are never kept in memory or in
+            // the cache: their digest is computed while their crc is.
+            writeStoredFile(inputFile, entry);
+            return;
+        }
+
+        if (mThreadCount > 1) {
+            submit(new DeflateTask(inputFile, entry, level, mMetrics));
+            return;
+        }
+
+        if (mCache != null) {
+            // cached entries are looked up by content.
+            writeDeflatedEntry(deflateFile(inputFile, entry, level, mMetrics));
+            return;
+        }
+
+        mOutputJar.setLevel(level);
+
         // Get an input stream on the file.
+        long start = System.nanoTime();
         FileInputStream fis = new FileInputStream(inputFile);
         try {
-
-            // create the zip entry
-            JarEntry entry = new JarEntry(jarPath);
-            entry.setTime(inputFile.lastModified());
-
             writeEntry(fis, entry);
         } finally {
             // close the file stream used to read the file
             fis.close();
         }
+
+        if (mMetrics != null) {
+            mMetrics.addDeflateTime(System.nanoTime() - start);
+            mMetrics.addEntry(entry.getSize(), entry.getCompressedSize(), false);
+        }
+    }
+
+    /**
+     * Keeps an entry that is already in the archive being updated.
+     * @param entry the entry, as read from the archive.
+     * @param digest the digest of the entry from the previous manifest, or null if the archive
+     * is not signed.
+     * @throws IOException
+     */
+    public void writeExistingEntry(@NonNull ZipEntryRecord entry, @Nullable String digest)
+            throws IOException {
+        if (mManifest != null && digest == null) {
+            throw new IOException("Missing digest for " + entry.getName());
+        }
+
+        flushPendingEntries();
+        mOutputJar.addExistingEntry(entry);
+        updateManifest(entry.getName(), digest);
+    }
+
+    /**
+     * Computes the digest of the content of an entry, as written in the manifest.
+     * @param input the uncompressed content of the entry.
+     * @return the base64 digest value.
+     * @throws IOException
+     */
+    @NonNull
+    public static String computeDigest(@NonNull InputStream input) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            messageDigest.update(buffer, 0, count);
+        }
+        return encodeDigest(messageDigest.digest());
+    }
+
+    /**
+     * Returns the digest of an entry in the manifest of a signed archive.
+     * @param manifest the manifest.
+     * @param name the name of the entry.
+     * @return the base64 digest value, or null if the entry has no digest.
+     */
+    @Nullable
+    public static String getDigest(@NonNull Manifest manifest, @NonNull String name) {
+        Attributes attr = manifest.getAttributes(name);
+        return attr != null ? attr.getValue(DIGEST_ATTR) : null;
     }
 
     /**
@@ -217,6 +436,7 @@ public class SignedJarBuilder {
      */
     public void writeZip(InputStream input, IZipEntryFilter filter)
             throws IOException, ZipAbortException {
+        flushPendingEntries();
         ZipInputStream zis = new ZipInputStream(input);
 
         try {
@@ -235,18 +455,22 @@ public class SignedJarBuilder {
                     continue;
                 }
 
-                JarEntry newEntry;
+                ZipEntryRecord newEntry = createRecord(name, entry.getTime());
 
                 // Preserve the STORED method of the input entry.
-                if (entry.getMethod() == JarEntry.STORED) {
-                    newEntry = new JarEntry(entry);
+                if (entry.getMethod() == ZipEntry.STORED) {
+                    newEntry.setMethod(ZipEntry.STORED);
+                    newEntry.setCrc(entry.getCrc());
+                    newEntry.setSize(entry.getSize());
+                    writeEntry(zis, newEntry);
+                } else if (mCompressionPolicy.isStored(name)) {
+                    writeDeflatedEntry(DeflatedEntry.deflate(zis, newEntry,
+                            CompressionPolicy.STORE, getDigestAlgorithm()));
                 } else {
-                    // Create a new entry so that the compressed len is recomputed.
-                    newEntry = new JarEntry(name);
+                    mOutputJar.setLevel(mCompressionPolicy.getLevel(name));
+                    writeEntry(zis, newEntry);
                 }
 
-                writeEntry(zis, newEntry);
-
                 zis.closeEntry();
             }
         } finally {
@@ -254,38 +478,123 @@ public class SignedJarBuilder {
         }
     }
 
+    /**
+     * Copies the content of a Jar/Zip archive into the receiver archive.
+     * <p/>An optional {@link IZipEntryFilter} allows to selectively choose which files
+     * to copy over.
+     * <p/>As opposed to {@link #writeZip(InputStream, IZipEntryFilter)}, the entries are copied
+     * in their compressed form and are not recompressed. If the archive is signed, deflated
+     * entries are only inflated to compute their digest. Deflated entries that the
+     * {@link CompressionPolicy} requires to be stored are inflated and stored.
+     * <p/>The entries are listed from the central directory of the archive and the filter is
+     * run on all of them before anything is written, so only the data of the accepted entries
+     * is read.
+     * @param input the Jar/Zip file to copy.
+     * @param filter the filter or <code>null</code>
+     * @throws IOException
+     * @throws ZipAbortException if the {@link IZipEntryFilter} filter indicated that the write
+     *                           must be aborted.
+     */
+    public void writeZip(File input, IZipEntryFilter filter)
+            throws IOException, ZipAbortException {
+        flushPendingEntries();
+        ZipReader reader = new ZipReader(input);
+
+        try {
+            // check all the names first, so that the data of the archive is only read for the
+            // entries that are kept, and only if the filter does not abort.
+            List<ZipEntryRecord> entries = Lists.newArrayList();
+            for (ZipEntryRecord entry : reader.getEntries()) {
+                String name = entry.getName();
+
+                // do not take directories or anything inside a potential META-INF folder,
+                // and if we have a filter, we check the entry against it
+                if (entry.isDirectory() || name.startsWith("META-INF/") ||
+                        (filter != null && !filter.checkEntry(name))) {
+                    if (mMetrics != null) {
+                        mMetrics.addSkippedEntry(entry.getSize());
+                    }
+                    continue;
+                }
+
+                entries.add(entry);
+            }
+
+            for (ZipEntryRecord entry : entries) {
+                String name = entry.getName();
+                if (entry.getMethod() == ZipEntry.DEFLATED && mCompressionPolicy.isStored(name)) {
+                    long start = System.nanoTime();
+                    DeflatedEntry deflatedEntry;
+                    InputStream entryInput = reader.getInputStream(entry);
+                    try {
+                        deflatedEntry = DeflatedEntry.deflate(entryInput,
+                                copyRecord(entry), CompressionPolicy.STORE,
+                                getDigestAlgorithm());
+                    } finally {
+                        entryInput.close();
+                    }
+                    if (mMetrics != null) {
+                        mMetrics.addInflateTime(System.nanoTime() - start);
+                        mMetrics.addEntry(entry.getSize(), entry.getSize(), false);
+                    }
+                    writeDeflatedEntry(deflatedEntry);
+                } else {
+                    writeRawEntry(reader, entry);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
     /**
      * Closes the Jar archive by creating the manifest, and signing the archive.
      * @throws IOException
      * @throws SigningException
      */
     public void close() throws IOException, SigningException {
-        if (mManifest != null) {
-            // write the manifest to the jar file
-            mOutputJar.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
-            mManifest.write(mOutputJar);
+        try {
+            flushPendingEntries();
+        } finally {
+            shutdownExecutor();
+        }
 
-            try {
-                // CERT.SF
-                Signature signature = Signature.getInstance("SHA1with" + mKey.getAlgorithm());
-                signature.initSign(mKey);
-                mOutputJar.putNextEntry(new JarEntry("META-INF/CERT.SF"));
-
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                writeSignatureFile(baos);
-                byte[] signedData = baos.toByteArray();
-                mOutputJar.write(signedData);
-
-                // CERT.*
-                mOutputJar.putNextEntry(new JarEntry("META-INF/CERT." + mKey.getAlgorithm()));
-                writeSignatureBlock(new CMSProcessableByteArray(signedData), mCertificate, mKey);
-            } catch (Exception e) {
-                throw new SigningException(e);
+        try {
+            if (mManifest != null) {
+                // write the manifest to the jar file
+                OutputStream manifest = startMetaEntry(JarFile.MANIFEST_NAME);
+                mManifest.writeManifest(manifest);
+                manifest.close();
+            }
+
+            if (mManifest != null && mKey != null && mCertificate != null) {
+                try {
+                    // CERT.SF
+                    OutputStream signatureFile = startMetaEntry("META-INF/CERT.SF");
+                    mManifest.writeSignatureFile(signatureFile);
+                    signatureFile.close();
+
+                    // CERT.*, signing the signature file written again.
+                    writeMetaEntry("META-INF/CERT." + mKey.getAlgorithm(),
+                            getSignatureBlock(new SignatureFileContent(mManifest),
+                                    mCertificate, mKey));
+                } catch (Exception e) {
+                    throw new SigningException(e);
+                }
+            }
+        } finally {
+            if (mManifest != null) {
+                mManifest.close();
             }
         }
 
         mOutputJar.close();
         mOutputJar = null;
+
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
     }
 
     /**
@@ -293,6 +602,12 @@ public class SignedJarBuilder {
      * This does nothing if {@link #close()} was called successfully.
      */
     public void cleanUp() {
+        shutdownExecutor();
+
+        if (mManifest != null) {
+            mManifest.close();
+        }
+
         if (mOutputJar != null) {
             try {
                 mOutputJar.close();
@@ -308,7 +623,7 @@ public class SignedJarBuilder {
      * @param entry the entry to write in the jar.
      * @throws IOException
      */
-    private void writeEntry(InputStream input, JarEntry entry) throws IOException {
+    private void writeEntry(InputStream input, ZipEntryRecord entry) throws IOException {
         // add the entry to the jar archive
         mOutputJar.putNextEntry(entry);
 
@@ -326,65 +641,443 @@ public class SignedJarBuilder {
         // close the entry for this file
         mOutputJar.closeEntry();
 
+        updateManifest(entry.getName(), mMessageDigest);
+    }
+
+    /**
+     * Creates the record of a new entry.
+     * @param name the name of the entry.
+     * @param time the time of the entry, or -1 if unknown. It is ignored if the time of the
+     *             entries is normalized.
+     */
+    private ZipEntryRecord createRecord(String name, long time) {
+        ZipEntryRecord entry = new ZipEntryRecord(name);
+        if (mNormalizedTime) {
+            entry.setDosTime(ZipEntryRecord.NORMALIZED_DOS_TIME);
+        } else if (time != -1) {
+            entry.setTime(time);
+        }
+        return entry;
+    }
+
+    /**
+     * Creates the record of an entry copied from another archive.
+     */
+    private ZipEntryRecord copyRecord(ZipEntryRecord inputEntry) {
+        ZipEntryRecord entry = new ZipEntryRecord(inputEntry);
+        if (mNormalizedTime) {
+            entry.setDosTime(ZipEntryRecord.NORMALIZED_DOS_TIME);
+        }
+        return entry;
+    }
+
+    /**
+     * Adds an entry to the output jar by copying its data as is from another archive.
+     * @param reader the reader of the archive containing the entry.
+     * @param inputEntry the entry to copy.
+     * @throws IOException
+     */
+    private void writeRawEntry(ZipReader reader, ZipEntryRecord inputEntry) throws IOException {
+        ZipEntryRecord entry = copyRecord(inputEntry);
+
+        String cacheKey = null;
+        String digest = null;
+        if (mMessageDigest != null && mCache != null) {
+            cacheKey = PackagingCache.getZipEntryKey(reader.getFile(), inputEntry);
+            digest = mCache.getDigest(cacheKey);
+        }
+
+        boolean computeDigest = mMessageDigest != null && digest == null;
+        boolean inflate = computeDigest && entry.getMethod() == ZipEntry.DEFLATED;
+        mInflateNanos = 0;
+        mHashNanos = 0;
+        if (inflate) {
+            if (mInflater == null) {
+                mInflater = new Inflater(true /*nowrap*/);
+            } else {
+                mInflater.reset();
+            }
+        }
+
+        mOutputJar.putNextRawEntry(entry);
+
+        if (inflate) {
+            InputStream input = reader.getRawInputStream(inputEntry);
+            try {
+                int count;
+                while ((count = input.read(mBuffer)) != -1) {
+                    mOutputJar.write(mBuffer, 0, count);
+
+                    // update the digest with the uncompressed data.
+                    mInflater.setInput(mBuffer, 0, count);
+                    inflateIntoDigest(entry);
+                }
+
+                if (!mInflater.finished()) {
+                    // the inflater needs an extra dummy byte in nowrap mode.
+                    mInflater.setInput(new byte[1]);
+                    inflateIntoDigest(entry);
+                }
+            } finally {
+                input.close();
+            }
+        } else {
+            // the data is copied from file to file.
+            reader.transferRawData(inputEntry, mOutputJar);
+        }
+
+        mOutputJar.closeEntry();
+
+        if (computeDigest && !inflate) {
+            // the data is stored, it is read again from the input only to be hashed.
+            InputStream input = reader.getRawInputStream(inputEntry);
+            try {
+                hashStream(input);
+            } finally {
+                input.close();
+            }
+        }
+
+        if (computeDigest) {
+            digest = encodeDigest(mMessageDigest.digest());
+            if (cacheKey != null) {
+                mCache.putDigest(cacheKey, entry, digest);
+            }
+        }
+        if (digest != null) {
+            updateManifest(entry.getName(), digest);
+        }
+
+        if (mMetrics != null) {
+            mMetrics.addInflateTime(mInflateNanos);
+            mMetrics.addHashTime(mHashNanos);
+            mMetrics.addEntry(entry.getSize(), entry.getCompressedSize(),
+                    mMessageDigest != null && !computeDigest);
+        }
+    }
+
+    /**
+     * Adds a file as a stored entry, copied from file to file.
+     * <p/>The file is read once to compute its crc and digest, which must be known before the
+     * entry is written, and its content is then transferred to the archive.
+     * @param inputFile the file to write.
+     * @param entry the entry of the file.
+     * @throws IOException
+     */
+    private void writeStoredFile(File inputFile, ZipEntryRecord entry) throws IOException {
+        // keep the order of the entries.
+        flushPendingEntries();
+
+        long start = System.nanoTime();
+        FileInputStream fis = new FileInputStream(inputFile);
+        try {
+            CRC32 crc = new CRC32();
+            long size = 0;
+            int count;
+            while ((count = fis.read(mBuffer)) != -1) {
+                crc.update(mBuffer, 0, count);
+                if (mMessageDigest != null) {
+                    mMessageDigest.update(mBuffer, 0, count);
+                }
+                size += count;
+            }
+
+            entry.setMethod(ZipEntry.STORED);
+            entry.setCrc(crc.getValue());
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+
+            mOutputJar.putNextRawEntry(entry);
+            mOutputJar.transferFrom(fis.getChannel(), 0, size);
+            mOutputJar.closeEntry();
+        } finally {
+            fis.close();
+        }
+
+        updateManifest(entry.getName(), mMessageDigest);
+
+        if (mMetrics != null) {
+            mMetrics.addDeflateTime(System.nanoTime() - start);
+            mMetrics.addEntry(entry.getSize(), entry.getCompressedSize(), false);
+        }
+    }
+
+    /**
+     * Updates the digest with the content of a stream.
+     */
+    private void hashStream(InputStream input) throws IOException {
+        int count;
+        while ((count = input.read(mBuffer)) != -1) {
+            long start = System.nanoTime();
+            mMessageDigest.update(mBuffer, 0, count);
+            mHashNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void inflateIntoDigest(ZipEntryRecord entry) throws IOException {
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                int count = mInflater.inflate(mInflateBuffer);
+                long inflated = System.nanoTime();
+                mInflateNanos += inflated - start;
+                if (count <= 0) {
+                    break;
+                }
+                mMessageDigest.update(mInflateBuffer, 0, count);
+                mHashNanos += System.nanoTime() - inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(String.format("Invalid deflated data for %1$s: %2$s",
+                    entry.getName(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Adds the digest of the last written entry to the manifest.
+     * @param name the name of the entry.
+     * @param digest the digest updated with the content of the entry.
+     * @throws IOException
+     */
+    private void updateManifest(String name, MessageDigest digest) throws IOException {
+        if (mManifest != null) {
+            mManifest.addEntry(name, digest.digest());
+        }
+    }
+
+    /**
+     * Adds the digest of an entry to the manifest.
+     * @param name the name of the entry.
+     * @param digest the digest value.
+     * @throws IOException
+     */
+    private void updateManifest(String name, byte[] digest) throws IOException {
+        if (mManifest != null) {
+            mManifest.addEntry(name, digest);
+        }
+    }
+
+    /**
+     * Adds the digest of an entry to the manifest.
+     * @param name the name of the entry.
+     * @param digest the base64 digest value.
+     * @throws IOException
+     */
+    private void updateManifest(String name, String digest) throws IOException {
         if (mManifest != null) {
-            // update the manifest for this entry.
-            Attributes attr = mManifest.getAttributes(entry.getName());
-            if (attr == null) {
-                attr = new Attributes();
-                mManifest.getEntries().put(entry.getName(), attr);
+            mManifest.addEntry(name, Base64.decode(digest));
+        }
+    }
+
+    private static String encodeDigest(byte[] digest) throws IOException {
+        return new String(Base64.encode(digest), "ASCII");
+    }
+
+    /**
+     * Queues a compression task, writing the oldest pending entries if too many are
+     * already queued.
+     * @param task the task.
+     * @throws IOException
+     */
+    private void submit(DeflateTask task) throws IOException {
+        if (mExecutor == null) {
+            mExecutor = Executors.newFixedThreadPool(mThreadCount,
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("jar-deflater-%d")
+                            .build());
+        }
+
+        mPendingEntries.add(mExecutor.submit(task));
+
+        while (mPendingEntries.size() > mThreadCount * PENDING_ENTRIES_PER_THREAD) {
+            writePendingEntry(mPendingEntries.removeFirst());
+        }
+    }
+
+    /**
+     * Writes all the entries being compressed in the background, in the order they were
+     * added.
+     * @throws IOException
+     */
+    private void flushPendingEntries() throws IOException {
+        while (!mPendingEntries.isEmpty()) {
+            writePendingEntry(mPendingEntries.removeFirst());
+        }
+    }
+
+    private void writePendingEntry(Future<DeflatedEntry> future) throws IOException {
+        DeflatedEntry deflatedEntry;
+        try {
+            deflatedEntry = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+
+        writeDeflatedEntry(deflatedEntry);
+    }
+
+    /**
+     * Adds an entry whose data was compressed, or stored, ahead of time.
+     * @param deflatedEntry the entry and its data.
+     * @throws IOException
+     */
+    private void writeDeflatedEntry(DeflatedEntry deflatedEntry) throws IOException {
+        ZipEntryRecord entry = deflatedEntry.getEntry();
+        byte[] data = deflatedEntry.getData();
+        mOutputJar.putNextRawEntry(entry);
+        mOutputJar.write(data, 0, data.length);
+        mOutputJar.closeEntry();
+
+        updateManifest(entry.getName(), deflatedEntry.getDigest());
+    }
+
+    /**
+     * Compresses the content of a file in memory, or gets it from the cache. Stored files do
+     * not go through here, see {@link #writeStoredFile(File, ZipEntryRecord)}.
+     * <p/>Without a cache, the time spent hashing the content is counted as deflate time.
+     */
+    private DeflatedEntry deflateFile(File inputFile, ZipEntryRecord entry, int level,
+            @Nullable InputMetrics metrics) throws IOException {
+        if (mCache == null) {
+            long start = System.nanoTime();
+            DeflatedEntry deflatedEntry;
+            FileInputStream fis = new FileInputStream(inputFile);
+            try {
+                deflatedEntry = DeflatedEntry.deflate(fis, entry, level, getDigestAlgorithm());
+            } finally {
+                fis.close();
+            }
+            if (metrics != null) {
+                metrics.addDeflateTime(System.nanoTime() - start);
+                metrics.addEntry(entry.getSize(), entry.getCompressedSize(), false);
+            }
+            return deflatedEntry;
+        }
+
+        // the files are cached by content, so that identical files added by different
+        // packagings share their record. The SHA-1 of the content is also its digest.
+        byte[] content = Files.toByteArray(inputFile);
+        long start = System.nanoTime();
+        byte[] sha1 = Hashing.sha1().hashBytes(content).asBytes();
+        long hashed = System.nanoTime();
+        String key = PackagingCache.getContentKey(sha1, content.length, level);
+
+        DeflatedEntry deflatedEntry = mCache.getEntry(key, entry, false);
+        boolean cached = deflatedEntry != null;
+        if (!cached) {
+            deflatedEntry = DeflatedEntry.deflate(new ByteArrayInputStream(content), entry, level,
+                    null);
+            deflatedEntry = new DeflatedEntry(entry, deflatedEntry.getData(), sha1);
+            mCache.putEntry(key, deflatedEntry);
+        }
+
+        if (metrics != null) {
+            metrics.addHashTime(hashed - start);
+            if (!cached) {
+                metrics.addDeflateTime(System.nanoTime() - hashed);
+            }
+            metrics.addEntry(entry.getSize(), entry.getCompressedSize(), cached);
+        }
+
+        return new DeflatedEntry(entry, deflatedEntry.getData(),
+                mManifest != null ? sha1 : null);
+    }
+
+    /**
+     * Returns the algorithm of the digests of the manifest, or null if the archive is not
+     * signed.
+     */
+    @Nullable
+    private String getDigestAlgorithm() {
+        return mManifest != null ? DIGEST_ALGORITHM : null;
+    }
+
+    private void shutdownExecutor() {
+        if (mExecutor != null) {
+            for (Future<DeflatedEntry> future : mPendingEntries) {
+                future.cancel(true);
+            }
+            mPendingEntries.clear();
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Starts a meta entry, whose content is written to the returned stream. The entry is
+     * closed with the stream.
+     */
+    private OutputStream startMetaEntry(String name) throws IOException {
+        mOutputJar.setLevel(mCompressionPolicy.getLevel());
+        mOutputJar.putNextEntry(createRecord(name, System.currentTimeMillis()));
+        return new BufferedOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                mOutputJar.write(b, off, len);
             }
-            attr.putValue(DIGEST_ATTR, 
-                          new String(Base64.encode(mMessageDigest.digest()), "ASCII"));
-        }
-    }
-
-    /** Writes a .SF file with a digest to the manifest. */
-    private void writeSignatureFile(OutputStream out)
-            throws IOException, GeneralSecurityException {
-        Manifest sf = new Manifest();
-        Attributes main = sf.getMainAttributes();
-        main.putValue("Signature-Version", "1.0");
-        main.putValue("Created-By", "1.0 (Android)");
-
-        MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
-        PrintStream print = new PrintStream(
-                new DigestOutputStream(new ByteArrayOutputStream(), md),
-                true, "UTF-8");
-
-        // Digest of the entire manifest
-        mManifest.write(print);
-        print.flush();
-        main.putValue(DIGEST_MANIFEST_ATTR, new String(Base64.encode(md.digest()), "ASCII"));
-
-        Map<String, Attributes> entries = mManifest.getEntries();
-        for (Map.Entry<String, Attributes> entry : entries.entrySet()) {
-            // Digest of the manifest stanza for this entry.
-            print.print("Name: " + entry.getKey() + "\r\n");
-            for (Map.Entry<Object, Object> att : entry.getValue().entrySet()) {
-                print.print(att.getKey() + ": " + att.getValue() + "\r\n");
+
+            @Override
+            public void close() throws IOException {
+                mOutputJar.closeEntry();
             }
-            print.print("\r\n");
-            print.flush();
+        });
+    }
+
+    /**
+     * Adds an entry that is not part of the manifest.
+     * @param name the name of the entry.
+     * @param data the content of the entry.
+     * @throws IOException
+     */
+    private void writeMetaEntry(String name, byte[] data) throws IOException {
+        mOutputJar.setLevel(mCompressionPolicy.getLevel());
+        mOutputJar.putNextEntry(createRecord(name, System.currentTimeMillis()));
+        mOutputJar.write(data, 0, data.length);
+        mOutputJar.closeEntry();
+    }
+
+    /**
+     * The content of the signature file, signed as it is written again by the manifest,
+     * rather than from a copy in memory.
+     */
+    private static final class SignatureFileContent implements CMSTypedData {
+        private final StreamingManifest mManifest;
+
+        SignatureFileContent(StreamingManifest manifest) {
+            mManifest = manifest;
+        }
+
+        @Override
+        public ASN1ObjectIdentifier getContentType() {
+            return CMSObjectIdentifiers.data;
+        }
 
-            Attributes sfAttr = new Attributes();
-            sfAttr.putValue(DIGEST_ATTR, new String(Base64.encode(md.digest()), "ASCII"));
-            sf.getEntries().put(entry.getKey(), sfAttr);
+        @Override
+        public void write(OutputStream out) throws IOException, CMSException {
+            mManifest.writeSignatureFile(out);
         }
-        CountOutputStream cout = new CountOutputStream(out);
-        sf.write(cout);
 
-        // A bug in the java.util.jar implementation of Android platforms
-        // up to version 1.6 will cause a spurious IOException to be thrown
-        // if the length of the signature file is a multiple of 1024 bytes.
-        // As a workaround, add an extra CRLF in this case.
-        if ((cout.size() % 1024) == 0) {
-            cout.write('\r');
-            cout.write('\n');
+        @Override
+        public Object getContent() {
+            // the content is detached from the signature block.
+            return null;
         }
     }
 
-    /** Write the certificate file with a digital signature. */
-    private void writeSignatureBlock(CMSTypedData data, X509Certificate publicKey,
+    /** Returns the certificate file with a digital signature. */
+    private byte[] getSignatureBlock(CMSTypedData data, X509Certificate publicKey,
             PrivateKey privateKey)
                         throws IOException,
                         CertificateEncodingException,
@@ -408,12 +1101,15 @@ public class SignedJarBuilder {
         gen.addCertificates(certs);
         CMSSignedData sigData = gen.generate(data, false);
 
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
         ASN1InputStream asn1 = new ASN1InputStream(sigData.getEncoded());
-        DEROutputStream dos = new DEROutputStream(mOutputJar);
+        DEROutputStream dos = new DEROutputStream(out);
         dos.writeObject(asn1.readObject());
 
         dos.flush();
         dos.close();
         asn1.close();
+
+        return out.toByteArray();
     }
 }
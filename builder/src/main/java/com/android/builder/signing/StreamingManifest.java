@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * The manifest and signature file of a signed jar, written as streams.
+ *
+ * Unlike {@link java.util.jar.Manifest}, this only keeps the name and the raw digest of each
+ * entry, in a compact buffer that is spilled to a temporary file when it gets large. The
+ * stanzas of the manifest and of the signature file are formatted and hashed one at a time
+ * while they are written.
+ *
+ * The stanza of each entry is hashed exactly as it is written in the manifest, including the
+ * continuation lines of long names.
+ */
+final class StreamingManifest implements Closeable {
+
+    /** The size of the buffer of entries above which it is spilled to disk. */
+    private static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+    /** The maximum length of a line, in bytes and without the line break. */
+    private static final int MAX_LINE_LENGTH = 72;
+
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+    @NonNull
+    private final String mDigestAlgorithm;
+    @NonNull
+    private final String mDigestAttr;
+    @NonNull
+    private final Map<String, String> mMainAttributes;
+    private final int mSpillThreshold;
+
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream mBufferOut = new DataOutputStream(mBuffer);
+    private File mSpillFile;
+    private int mEntryCount = 0;
+
+    private byte[] mManifestDigest;
+
+    /**
+     * Creates a new manifest.
+     * @param digestAlgorithm the algorithm of the digests.
+     * @param digestAttr the name of the attribute of the digests.
+     * @param mainAttributes the attributes of the main section of the manifest, in order.
+     */
+    StreamingManifest(
+            @NonNull String digestAlgorithm,
+            @NonNull String digestAttr,
+            @NonNull Map<String, String> mainAttributes) {
+        this(digestAlgorithm, digestAttr, mainAttributes, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    StreamingManifest(
+            @NonNull String digestAlgorithm,
+            @NonNull String digestAttr,
+            @NonNull Map<String, String> mainAttributes,
+            int spillThreshold) {
+        mDigestAlgorithm = digestAlgorithm;
+        mDigestAttr = digestAttr;
+        mMainAttributes = mainAttributes;
+        mSpillThreshold = spillThreshold;
+    }
+
+    /**
+     * Adds the digest of an entry. Entries are written in the order they are added.
+     * @param name the name of the entry.
+     * @param digest the raw digest of the content of the entry.
+     * @throws IOException
+     */
+    void addEntry(@NonNull String name, @NonNull byte[] digest) throws IOException {
+        if (mManifestDigest != null) {
+            throw new IllegalStateException("Manifest is already written");
+        }
+
+        mBufferOut.writeUTF(name);
+        mBufferOut.writeByte(digest.length);
+        mBufferOut.write(digest);
+        mEntryCount++;
+
+        if (mBuffer.size() > mSpillThreshold) {
+            spill();
+        }
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    int getEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * Writes the manifest.
+     * @param out the stream to write to. It is not closed.
+     * @throws IOException
+     */
+    void writeManifest(@NonNull OutputStream out) throws IOException {
+        MessageDigest manifestDigest = createDigest();
+        OutputStream digestOut = new DigestOutputStream(out, manifestDigest);
+
+        ByteArrayOutputStream stanza = new ByteArrayOutputStream();
+        writeAttribute(stanza, "Manifest-Version", "1.0");
+        for (Map.Entry<String, String> attr : mMainAttributes.entrySet()) {
+            writeAttribute(stanza, attr.getKey(), attr.getValue());
+        }
+        stanza.write(CRLF);
+        stanza.writeTo(digestOut);
+
+        DataInputStream entries = openEntries();
+        try {
+            for (int i = 0 ; i < mEntryCount ; i++) {
+                stanza.reset();
+                writeEntryStanza(stanza, entries);
+                stanza.writeTo(digestOut);
+            }
+        } finally {
+            entries.close();
+        }
+
+        mManifestDigest = manifestDigest.digest();
+    }
+
+    /**
+     * Writes the signature file, which contains the digest of the manifest and of each of
+     * its stanzas.
+     *
+     * This can be called several times, for instance to write the file and then to sign it,
+     * and always writes the same content.
+     *
+     * @param out the stream to write to. It is not closed.
+     * @throws IOException
+     */
+    void writeSignatureFile(@NonNull OutputStream out) throws IOException {
+        if (mManifestDigest == null) {
+            writeManifest(ByteStreams.nullOutputStream());
+        }
+
+        MessageDigest stanzaDigest = createDigest();
+        CountingStream countingOut = new CountingStream(out);
+
+        ByteArrayOutputStream stanza = new ByteArrayOutputStream();
+        writeAttribute(stanza, "Signature-Version", "1.0");
+        writeAttribute(stanza, "Created-By", "1.0 (Android)");
+        writeAttribute(stanza, mDigestAttr + "-Manifest", encode(mManifestDigest));
+        stanza.write(CRLF);
+        stanza.writeTo(countingOut);
+
+        ByteArrayOutputStream sfStanza = new ByteArrayOutputStream();
+        DataInputStream entries = openEntries();
+        try {
+            for (int i = 0 ; i < mEntryCount ; i++) {
+                stanza.reset();
+                String name = writeEntryStanza(stanza, entries);
+                stanzaDigest.update(stanza.toByteArray());
+
+                sfStanza.reset();
+                writeAttribute(sfStanza, "Name", name);
+                writeAttribute(sfStanza, mDigestAttr, encode(stanzaDigest.digest()));
+                sfStanza.write(CRLF);
+                sfStanza.writeTo(countingOut);
+            }
+        } finally {
+            entries.close();
+        }
+
+        // A bug in the java.util.jar implementation of Android platforms
+        // up to version 1.6 will cause a spurious IOException to be thrown
+        // if the length of the signature file is a multiple of 1024 bytes.
+        // As a workaround, add an extra CRLF in this case.
+        if ((countingOut.getCount() % 1024) == 0) {
+            out.write(CRLF);
+        }
+    }
+
+    /**
+     * Deletes the temporary file of the entries, if any.
+     */
+    @Override
+    public void close() {
+        if (mSpillFile != null) {
+            //noinspection ResultOfMethodCallIgnored
+            mSpillFile.delete();
+            mSpillFile = null;
+        }
+    }
+
+    /**
+     * Reads the next entry, and writes its stanza of the manifest.
+     * @return the name of the entry.
+     */
+    @NonNull
+    private String writeEntryStanza(@NonNull ByteArrayOutputStream stanza,
+            @NonNull DataInputStream entries) throws IOException {
+        String name = entries.readUTF();
+        byte[] digest = new byte[entries.readUnsignedByte()];
+        entries.readFully(digest);
+
+        writeAttribute(stanza, "Name", name);
+        writeAttribute(stanza, mDigestAttr, encode(digest));
+        stanza.write(CRLF);
+        return name;
+    }
+
+    /**
+     * Writes an attribute, wrapping it on several lines if it is too long.
+     */
+    private static void writeAttribute(@NonNull ByteArrayOutputStream out, @NonNull String key,
+            @NonNull String value) {
+        byte[] line = (key + ": " + value).getBytes(Charsets.UTF_8);
+
+        int start = 0;
+        int max = MAX_LINE_LENGTH;
+        while (line.length - start > max) {
+            // do not split a multi-byte character.
+            int end = start + max;
+            while ((line[end] & 0xC0) == 0x80) {
+                end--;
+            }
+            out.write(line, start, end - start);
+            out.write(CRLF, 0, CRLF.length);
+            // continuation lines start with a space.
+            out.write(' ');
+            start = end;
+            max = MAX_LINE_LENGTH - 1;
+        }
+        out.write(line, start, line.length - start);
+        out.write(CRLF, 0, CRLF.length);
+    }
+
+    /**
+     * Appends the buffer of entries to the temporary file.
+     */
+    private void spill() throws IOException {
+        if (mSpillFile == null) {
+            mSpillFile = File.createTempFile("manifest", ".bin");
+            mSpillFile.deleteOnExit();
+        }
+
+        FileOutputStream fos = new FileOutputStream(mSpillFile, true /* append */);
+        try {
+            mBufferOut.flush();
+            mBuffer.writeTo(fos);
+        } finally {
+            fos.close();
+        }
+        mBuffer.reset();
+    }
+
+    /**
+     * Returns a stream of all the entries, from the temporary file and then from the buffer.
+     */
+    @NonNull
+    private DataInputStream openEntries() throws IOException {
+        mBufferOut.flush();
+        InputStream buffered = new ByteArrayInputStream(mBuffer.toByteArray());
+        if (mSpillFile != null) {
+            buffered = new SequenceInputStream(
+                    new BufferedInputStream(new FileInputStream(mSpillFile)), buffered);
+        }
+        return new DataInputStream(buffered);
+    }
+
+    @NonNull
+    private MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(mDigestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @NonNull
+    private static String encode(@NonNull byte[] digest) {
+        return new String(Base64.encode(digest), Charsets.US_ASCII);
+    }
+
+    /**
+     * Counts the bytes written to a stream, without closing it.
+     */
+    private static final class CountingStream extends OutputStream {
+        private final OutputStream mOut;
+        private long mCount = 0;
+
+        CountingStream(@NonNull OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mCount += len;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
 import java.util.regex.Matcher;
 
@@ -98,6 +99,271 @@ public class FileManagerTest extends TestCase {
         assertEquals(FileStatus.NEW, status);
     }
 
+    public void testBinaryState() throws Exception {
+        File folder = Files.createTempDir();
+        File stateFile = new File(folder, "state/files.bin");
+        File filesFolder = new File(folder, "files");
+        String[] names = new String[] { "a.png", "b.png", "sub/c.png", "sub/d\u00e9.png" };
+        for (String name : names) {
+            File file = new File(filesFolder, name);
+            Files.createParentDirs(file);
+            Files.write(name, file, Charsets.UTF_8);
+        }
+
+        FileManager fileManager = new FileManager();
+        fileManager.addFile(filesFolder);
+        assertEquals(names.length, fileManager.getChangedFiles().size());
+        fileManager.write(stateFile);
+        assertTrue(FileStateTable.isStateFile(stateFile));
+
+        // nothing changed.
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(filesFolder);
+        assertTrue(fileManager.getChangedFiles().isEmpty());
+
+        File removed = new File(filesFolder, "sub/c.png");
+        assertTrue(removed.delete());
+        File changed = new File(filesFolder, "a.png");
+        Files.write("changed", changed, Charsets.UTF_8);
+        File added = new File(filesFolder, "e.png");
+        Files.write("new", added, Charsets.UTF_8);
+
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(filesFolder);
+        Map<File, FileStatus> changedFiles = fileManager.getChangedFiles();
+        assertEquals(3, changedFiles.size());
+        assertEquals(FileStatus.REMOVED, changedFiles.get(removed));
+        assertEquals(FileStatus.CHANGED, changedFiles.get(changed));
+        assertEquals(FileStatus.NEW, changedFiles.get(added));
+
+        // the state can be replaced while it is loaded.
+        fileManager.write(stateFile);
+        assertEquals(3, fileManager.getChangedFiles().size());
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(filesFolder);
+        assertTrue(fileManager.getChangedFiles().isEmpty());
+    }
+
+    public void testTouchedFiles() throws Exception {
+        File folder = Files.createTempDir();
+        File stateFile = new File(folder, "files.bin");
+        File filesFolder = new File(folder, "files");
+        assertTrue(filesFolder.mkdir());
+        File[] files = new File[20];
+        for (int i = 0 ; i < files.length ; i++) {
+            files[i] = new File(filesFolder, "file" + i + ".txt");
+            Files.write("content " + (char) ('a' + i), files[i], Charsets.UTF_8);
+        }
+
+        FileManager fileManager = new FileManager();
+        fileManager.addFile(filesFolder);
+        fileManager.write(stateFile);
+
+        // the hashes are only known once the files are touched.
+        for (File file : files) {
+            assertTrue(file.setLastModified(file.lastModified() - 10000));
+        }
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(filesFolder);
+        assertEquals(files.length, fileManager.getChangedFiles().size());
+        fileManager.write(stateFile);
+
+        // touch all the files, and change the content of some without changing their size.
+        for (int i = 0 ; i < files.length ; i++) {
+            if (i % 5 == 0) {
+                Files.write("CONTENT " + (char) ('a' + i), files[i], Charsets.UTF_8);
+            }
+            assertTrue(files[i].setLastModified(files[i].lastModified() + 10000));
+        }
+
+        // the files are added one at a time, as the Gradle tasks do, but hashed at once.
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        for (File file : files) {
+            fileManager.addFile(file);
+        }
+        assertEquals(0, fileManager.getHashBatchCount());
+        Map<File, FileStatus> changedFiles = fileManager.getChangedFiles();
+        assertEquals(1, fileManager.getHashBatchCount());
+        assertEquals(4, changedFiles.size());
+        for (int i = 0 ; i < files.length ; i += 5) {
+            assertEquals(FileStatus.CHANGED, changedFiles.get(files[i]));
+        }
+        fileManager.write(stateFile);
+        assertEquals(1, fileManager.getHashBatchCount());
+    }
+
+    public void testLazyHash() throws Exception {
+        File folder = Files.createTempDir();
+        File stateFile = new File(folder, "files.bin");
+        File file = new File(folder, "file.txt");
+        Files.write("content", file, Charsets.UTF_8);
+
+        // the hash of a new file is not computed.
+        FileManager fileManager = new FileManager();
+        fileManager.addFile(file);
+        fileManager.write(stateFile);
+        assertNull(FileStateTable.open(stateFile).getHash(0));
+
+        // a touched file with no known hash is changed, and its hash is now known.
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(file);
+        assertEquals(FileStatus.CHANGED, fileManager.getChangedFiles().get(file));
+        fileManager.write(stateFile);
+        FileStateTable table = FileStateTable.open(stateFile);
+        assertEquals(FileEntity.getHash(file, ContentHash.DEFAULT), table.getHash(0));
+        assertEquals(file.lastModified(), table.getLastModified(0));
+
+        // touched again, it is compared by its hash.
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(file);
+        assertTrue(fileManager.getChangedFiles().isEmpty());
+        fileManager.write(stateFile);
+        assertEquals(file.lastModified(), FileStateTable.open(stateFile).getLastModified(0));
+    }
+
+    public void testContentHashChange() throws Exception {
+        File folder = Files.createTempDir();
+        File stateFile = new File(folder, "files.bin");
+        File file = new File(folder, "file.txt");
+        Files.write("content", file, Charsets.UTF_8);
+
+        // record the SHA-1 of the file.
+        FileManager fileManager = new FileManager(ContentHash.SHA1);
+        fileManager.addFile(file);
+        fileManager.write(stateFile);
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        fileManager = new FileManager(ContentHash.SHA1);
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(file);
+        fileManager.write(stateFile);
+        FileStateTable table = FileStateTable.open(stateFile);
+        assertEquals(ContentHash.SHA1, table.getContentHash());
+        assertEquals(FileEntity.getHash(file, ContentHash.SHA1), table.getHash(0));
+
+        // a touched file is compared with the previous hash, and the new hash is recorded.
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        fileManager = new FileManager(ContentHash.MURMUR3_128);
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(file);
+        assertTrue(fileManager.getChangedFiles().isEmpty());
+        fileManager.write(stateFile);
+        table = FileStateTable.open(stateFile);
+        assertEquals(ContentHash.MURMUR3_128, table.getContentHash());
+        assertEquals(FileEntity.getHash(file, ContentHash.MURMUR3_128), table.getHash(0));
+
+        // an untouched file keeps its date, but its hash of another algorithm is dropped.
+        fileManager = new FileManager(ContentHash.SHA1);
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(file);
+        assertTrue(fileManager.getChangedFiles().isEmpty());
+        fileManager.write(stateFile);
+        table = FileStateTable.open(stateFile);
+        assertEquals(ContentHash.SHA1, table.getContentHash());
+        assertEquals(file.lastModified(), table.getLastModified(0));
+        assertNull(table.getHash(0));
+    }
+
+    public void testDirectories() throws Exception {
+        File folder = Files.createTempDir();
+        File stateFile = new File(folder, "files.bin");
+        File filesFolder = new File(folder, "files");
+        File subFolder = new File(filesFolder, "sub");
+        File file = new File(subFolder, "a.txt");
+        Files.createParentDirs(file);
+        Files.write("content", file, Charsets.UTF_8);
+        long folderDate = filesFolder.lastModified() - 3600000;
+        long subFolderDate = subFolder.lastModified() - 3600000;
+        assertTrue(filesFolder.setLastModified(folderDate));
+        assertTrue(subFolder.setLastModified(subFolderDate));
+
+        FileManager fileManager = new FileManager();
+        fileManager.addFile(filesFolder);
+        fileManager.write(stateFile);
+        FileStateTable table = FileStateTable.open(stateFile);
+        assertEquals(3, table.size());
+        int index = table.find(subFolder);
+        assertTrue(table.isDirectory(index));
+        assertEquals(subFolderDate, table.getLastModified(index));
+        assertEquals(Collections.singletonList(file.getAbsolutePath()),
+                table.getChildren(subFolder));
+
+        // the files of an unchanged directory are still checked.
+        Files.write("modified", file, Charsets.UTF_8);
+        assertTrue(subFolder.setLastModified(subFolderDate));
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(filesFolder);
+        assertEquals(Collections.singletonMap(file, FileStatus.CHANGED),
+                fileManager.getChangedFiles());
+
+        // but it is not listed again.
+        File newFile = new File(subFolder, "b.txt");
+        Files.write("new", newFile, Charsets.UTF_8);
+        assertTrue(subFolder.setLastModified(subFolderDate));
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(filesFolder);
+        assertNull(fileManager.getChangedFiles().get(newFile));
+
+        // until its date changes.
+        assertTrue(subFolder.setLastModified(subFolderDate + 1000));
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(filesFolder);
+        assertEquals(FileStatus.NEW, fileManager.getChangedFiles().get(newFile));
+
+        // a removed directory removes its files.
+        assertTrue(newFile.delete());
+        assertTrue(file.delete());
+        assertTrue(subFolder.delete());
+        assertTrue(filesFolder.setLastModified(folderDate + 1000));
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(filesFolder);
+        assertEquals(Collections.singletonMap(file, FileStatus.REMOVED),
+                fileManager.getChangedFiles());
+    }
+
+    public void testRecentDirectory() throws Exception {
+        File folder = Files.createTempDir();
+        File stateFile = new File(folder, "files.bin");
+        File filesFolder = new File(folder, "files");
+        File file = new File(filesFolder, "a.txt");
+        Files.createParentDirs(file);
+        Files.write("content", file, Charsets.UTF_8);
+        long folderDate = System.currentTimeMillis();
+        assertTrue(filesFolder.setLastModified(folderDate));
+
+        FileManager fileManager = new FileManager();
+        fileManager.addFile(filesFolder);
+        fileManager.write(stateFile);
+        long scanTime = FileStateTable.open(stateFile).getScanTime();
+        assertTrue(scanTime > 0);
+        assertTrue(scanTime <= System.currentTimeMillis());
+
+        // the state is written long after the scan, as at the end of a long task. A file
+        // added meanwhile may not change the date of the directory, which was modified within
+        // the margin of the scan, so it is listed again.
+        assertTrue(stateFile.setLastModified(folderDate + 3600000));
+        File newFile = new File(filesFolder, "b.txt");
+        Files.write("new", newFile, Charsets.UTF_8);
+        assertTrue(filesFolder.setLastModified(folderDate));
+        fileManager = new FileManager();
+        assertTrue(fileManager.load(stateFile));
+        fileManager.addFile(filesFolder);
+        assertEquals(Collections.singletonMap(newFile, FileStatus.NEW),
+                fileManager.getChangedFiles());
+    }
+
     private FileManager getFileManager() throws IOException {
         if (sFileManager == null) {
             File root = TestUtils.getCanonicalRoot("changeManager");
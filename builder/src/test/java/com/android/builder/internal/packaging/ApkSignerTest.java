@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.builder.packaging.CompressionPolicy;
+import com.android.builder.signing.CertificateInfo;
+import com.android.builder.signing.DefaultSigningConfig;
+import com.android.builder.signing.KeystoreHelper;
+import com.android.utils.ILogger;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ApkSignerTest extends TestCase {
+
+    private File mTempFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempFolder = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFolder(mTempFolder);
+        super.tearDown();
+    }
+
+    public void testSignWithSeveralKeys() throws Exception {
+        File res = new File(mTempFolder, "res.zip");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(res));
+        try {
+            zos.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zos.write(new byte[1000]);
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+        File dex = new File(mTempFolder, "classes.dex");
+        Files.write(new byte[1000], dex);
+
+        File unsignedApk = new File(mTempFolder, "unsigned.apk");
+        Packager packager = new Packager(unsignedApk.getPath(), res.getPath(), dex.getPath(),
+                null, CompressionPolicy.DEFAULT, true, false, null, null, new NullLogger());
+        packager.sealApk();
+        byte[] unsigned = Files.toByteArray(unsignedApk);
+
+        CertificateInfo key1 = createKey("key1.keystore");
+        CertificateInfo key2 = createKey("key2.keystore");
+
+        File apk1 = new File(mTempFolder, "out1.apk");
+        Files.copy(unsignedApk, apk1);
+        new ApkSigner(apk1, key1, null, new NullLogger()).sign();
+        checkSigned(apk1, key1);
+
+        File apk2 = new File(mTempFolder, "out2.apk");
+        Files.copy(unsignedApk, apk2);
+        new ApkSigner(apk2, key2, null, new NullLogger()).sign();
+        checkSigned(apk2, key2);
+
+        // the entries were not written again.
+        ZipReader reader = new ZipReader(unsignedApk);
+        try {
+            for (ZipEntryRecord entry : reader.getEntries()) {
+                if (entry.getName().equals("classes.dex")) {
+                    int end = (int) reader.getEndOffset(entry);
+                    assertTrue(Arrays.equals(Arrays.copyOf(unsigned, end),
+                            Arrays.copyOf(Files.toByteArray(apk1), end)));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        // a signed apk can be signed again with another key.
+        new ApkSigner(apk1, key2, null, new NullLogger()).sign();
+        checkSigned(apk1, key2);
+    }
+
+    private CertificateInfo createKey(String name) throws Exception {
+        DefaultSigningConfig signingConfig = new DefaultSigningConfig("");
+        signingConfig.initDebug();
+        signingConfig.setStoreFile(new File(mTempFolder, name));
+        KeystoreHelper.createDebugStore(signingConfig, new NullLogger());
+        return KeystoreHelper.getCertificateInfo(signingConfig);
+    }
+
+    private static void checkSigned(File apk, CertificateInfo key) throws Exception {
+        int count = 0;
+        JarFile jarFile = new JarFile(apk, true);
+        try {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                InputStream is = jarFile.getInputStream(entry);
+                ByteStreams.toByteArray(is);
+                is.close();
+
+                if (!entry.getName().startsWith("META-INF/")) {
+                    Certificate[] certificates = entry.getCertificates();
+                    assertNotNull(entry.getName(), certificates);
+                    assertEquals(1, certificates.length);
+                    assertEquals(key.getCertificate(), certificates[0]);
+                    count++;
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+        assertEquals(2, count);
+    }
+
+    private static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteFolder(file);
+                } else {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        folder.delete();
+    }
+
+    private static final class NullLogger implements ILogger {
+        @Override
+        public void error(Throwable t, String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void warning(String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void info(String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void verbose(String msgFormat, Object... args) {
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ArchiveNormalizerTest extends TestCase {
+
+    private File mTempFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempFolder = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mTempFolder.listFiles()) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mTempFolder.delete();
+        super.tearDown();
+    }
+
+    public void testNormalize() throws Exception {
+        File jar1 = createJar("1.jar", 1000000000000L,
+                "b.txt", "META-INF/MANIFEST.MF", "a/c.txt");
+        File jar2 = createJar("2.jar", 1300000000000L,
+                "META-INF/MANIFEST.MF", "a/c.txt", "b.txt");
+        assertFalse(Arrays.equals(Files.toByteArray(jar1), Files.toByteArray(jar2)));
+
+        ArchiveNormalizer.normalize(jar1);
+        ArchiveNormalizer.normalize(jar2);
+        assertTrue(Arrays.equals(Files.toByteArray(jar1), Files.toByteArray(jar2)));
+        assertFalse(new File(mTempFolder, "1.jar.tmp").exists());
+
+        // the manifest stays first, and the data is kept.
+        List<String> names = Lists.newArrayList();
+        ZipReader reader = new ZipReader(jar1);
+        try {
+            for (ZipEntryRecord entry : reader.getEntries()) {
+                names.add(entry.getName());
+                assertEquals(ZipEntryRecord.NORMALIZED_DOS_TIME, entry.getDosTime());
+                if (entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+
+                InputStream input = reader.getInputStream(entry);
+                try {
+                    assertTrue(Arrays.equals(entry.getName().getBytes("UTF-8"),
+                            ByteStreams.toByteArray(input)));
+                } finally {
+                    input.close();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(Lists.newArrayList("META-INF/MANIFEST.MF", "a/c.txt", "b.txt"), names);
+
+        JarInputStream jis = new JarInputStream(new FileInputStream(jar1));
+        try {
+            assertNotNull(jis.getManifest());
+        } finally {
+            jis.close();
+        }
+    }
+
+    private File createJar(String name, long time, String... entries) throws Exception {
+        File jar = new File(mTempFolder, name);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            for (String entry : entries) {
+                ZipEntry zipEntry = new ZipEntry(entry);
+                zipEntry.setTime(time);
+                zos.putNextEntry(zipEntry);
+                if (entry.equals("META-INF/MANIFEST.MF")) {
+                    zos.write("Manifest-Version: 1.0\r\n\r\n".getBytes("UTF-8"));
+                } else {
+                    zos.write(entry.getBytes("UTF-8"));
+                }
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        return jar;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.builder.packaging.DuplicateFileException;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class DuplicateFileScannerTest extends TestCase {
+
+    private File mTempFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempFolder = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFolder(mTempFolder);
+        super.tearDown();
+    }
+
+    public void testNoConflict() throws Exception {
+        DuplicateFileScanner scanner = new DuplicateFileScanner();
+        scanner.addZipFile(createZip("res.zip", "AndroidManifest.xml", "res/layout/main.xml"));
+        scanner.addFile(createFile("classes.dex"), "classes.dex");
+        // META-INF and class files are not packaged, so they cannot conflict.
+        scanner.addResourcesFromJar(createZip("a.jar", "META-INF/MANIFEST.MF", "a/A.class"));
+        scanner.addResourcesFromJar(createZip("b.jar", "META-INF/MANIFEST.MF", "a/A.class"));
+        scanner.addNativeLibraries(new File(mTempFolder, "missing").getPath(), false, null);
+        scanner.check();
+    }
+
+    public void testAllConflicts() throws Exception {
+        File resFolder = new File(mTempFolder, "resources");
+        File resFile = new File(resFolder, "com/foo/data.txt");
+        Files.createParentDirs(resFile);
+        Files.write(new byte[1], resFile);
+
+        File jniFolder = new File(mTempFolder, "jni");
+        File lib = new File(jniFolder, "armeabi/libfoo.so");
+        Files.createParentDirs(lib);
+        Files.write(new byte[1], lib);
+
+        File jar1 = createZip("a.jar", "com/foo/data.txt", "lib/armeabi/libfoo.so", "a.txt");
+        File jar2 = createZip("b.jar", "a.txt");
+
+        DuplicateFileScanner scanner = new DuplicateFileScanner();
+        scanner.addJavaResourceFolder(resFolder.getPath());
+        scanner.addResourcesFromJar(jar1);
+        scanner.addResourcesFromJar(jar2);
+        scanner.addNativeLibraries(jniFolder.getPath(), false, null);
+
+        try {
+            scanner.check();
+            fail("Expected DuplicateFileException");
+        } catch (DuplicateFileException e) {
+            List<DuplicateFileException> duplicates = e.getDuplicates();
+            assertEquals(3, duplicates.size());
+            checkDuplicate(duplicates.get(0), "com/foo/data.txt", resFile, jar1);
+            checkDuplicate(duplicates.get(1), "a.txt", jar1, jar2);
+            checkDuplicate(duplicates.get(2), "lib/armeabi/libfoo.so", jar1, lib);
+
+            // the exception describes the first conflict.
+            assertEquals("com/foo/data.txt", e.getArchivePath());
+            assertTrue(e.getMessage().contains(jar2.toString()));
+        }
+    }
+
+    public void testJavaResourceOverlays() throws Exception {
+        File main = new File(mTempFolder, "main");
+        File debug = new File(mTempFolder, "debug");
+        File mainFile = createResource(main, "com/foo/data.txt");
+        File mainOnlyFile = createResource(main, "com/foo/main.txt");
+        File debugFile = createResource(debug, "com/foo/data.txt");
+
+        // the files of the last folder replace the others, and do not conflict with them.
+        DuplicateFileScanner scanner = new DuplicateFileScanner();
+        scanner.addJavaResourceFolders(Arrays.asList(main, debug,
+                new File(mTempFolder, "missing")));
+        Map<String, File> files = scanner.check();
+
+        assertEquals(2, files.size());
+        assertEquals(debugFile, files.get("com/foo/data.txt"));
+        assertEquals(mainOnlyFile, files.get("com/foo/main.txt"));
+        assertFalse(files.containsValue(mainFile));
+    }
+
+    private File createResource(File folder, String path) throws Exception {
+        File file = new File(folder, path);
+        Files.createParentDirs(file);
+        Files.write(path.getBytes("UTF-8"), file);
+        return file;
+    }
+
+    private static void checkDuplicate(DuplicateFileException duplicate, String archivePath,
+            File file1, File file2) {
+        assertEquals(archivePath, duplicate.getArchivePath());
+        assertEquals(file1, duplicate.getFile1());
+        assertEquals(file2, duplicate.getFile2());
+    }
+
+    private File createFile(String name) throws Exception {
+        File file = new File(mTempFolder, name);
+        Files.write(new byte[1], file);
+        return file;
+    }
+
+    private File createZip(String name, String... entries) throws Exception {
+        File zip = new File(mTempFolder, name);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            for (String entry : entries) {
+                zos.putNextEntry(new ZipEntry(entry));
+                zos.write(entry.getBytes("UTF-8"));
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        return zip;
+    }
+
+    private static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteFolder(file);
+                } else {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        folder.delete();
+    }
+}
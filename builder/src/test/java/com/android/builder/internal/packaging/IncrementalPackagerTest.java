@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.builder.packaging.CompressionPolicy;
+import com.android.builder.signing.CertificateInfo;
+import com.android.builder.signing.DefaultSigningConfig;
+import com.android.builder.signing.KeystoreHelper;
+import com.android.utils.ILogger;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class IncrementalPackagerTest extends TestCase {
+
+    private File mTempFolder;
+    private File mRes;
+    private File mDex;
+    private File mResourceFolder;
+    private CertificateInfo mCertificateInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempFolder = Files.createTempDir();
+
+        mRes = new File(mTempFolder, "res.zip");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(mRes));
+        try {
+            String[] entries = new String[] { "AndroidManifest.xml", "res/layout/main.xml" };
+            for (int i = 0 ; i < entries.length ; i++) {
+                zos.putNextEntry(new ZipEntry(entries[i]));
+                zos.write(createContent(20000, i));
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+
+        mDex = new File(mTempFolder, "classes.dex");
+        Files.write(createContent(1000, 1), mDex);
+
+        mResourceFolder = new File(mTempFolder, "resources");
+        for (String name : new String[] { "a.txt", "b.txt" }) {
+            File file = new File(mResourceFolder, "com/foo/" + name);
+            Files.createParentDirs(file);
+            Files.write(createContent(20000, name.charAt(0)), file);
+        }
+
+        DefaultSigningConfig signingConfig = new DefaultSigningConfig("");
+        signingConfig.initDebug();
+        signingConfig.setStoreFile(new File(mTempFolder, "debug.keystore"));
+        KeystoreHelper.createDebugStore(signingConfig, new NullLogger());
+        mCertificateInfo = KeystoreHelper.getCertificateInfo(signingConfig);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFolder(mTempFolder);
+        super.tearDown();
+    }
+
+    public void testUpdate() throws Exception {
+        File apk = new File(mTempFolder, "out.apk");
+        packageApk(apk);
+        byte[] before = Files.toByteArray(apk);
+
+        File c = new File(mResourceFolder, "com/foo/c.txt");
+        Files.write(createContent(100, 2), mDex);
+        Files.write(createContent(100, 'c'), c);
+
+        assertTrue(updateApk(apk, mDex, c));
+
+        List<String> names = getVerifiedEntryNames(apk);
+        assertEquals(Lists.newArrayList("AndroidManifest.xml", "res/layout/main.xml"),
+                names.subList(0, 2));
+        // the new entries are at the end.
+        assertEquals(Lists.newArrayList("classes.dex", "com/foo/c.txt"), names.subList(4, 6));
+        checkContent(apk, "classes.dex", createContent(100, 2));
+        checkContent(apk, "com/foo/a.txt", createContent(20000, 'a'));
+
+        // the kept entries did not move.
+        byte[] after = Files.toByteArray(apk);
+        ZipReader reader = new ZipReader(apk);
+        try {
+            for (ZipEntryRecord entry : reader.getEntries()) {
+                String name = entry.getName();
+                if (name.equals("com/foo/a.txt") || name.equals("com/foo/b.txt")) {
+                    int start = (int) entry.getHeaderOffset();
+                    int end = (int) reader.getEndOffset(entry);
+                    assertTrue(Arrays.equals(Arrays.copyOfRange(before, start, end),
+                            Arrays.copyOfRange(after, start, end)));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        // the apk can be updated again, with a file removed.
+        //noinspection ResultOfMethodCallIgnored
+        c.delete();
+        assertTrue(updateApk(apk, c));
+        assertEquals(Lists.newArrayList("AndroidManifest.xml", "res/layout/main.xml",
+                "classes.dex", "com/foo/a.txt", "com/foo/b.txt"),
+                sort(getVerifiedEntryNames(apk), 2));
+        checkContent(apk, "classes.dex", createContent(100, 2));
+    }
+
+    public void testTooMuchUnusedSpace() throws Exception {
+        File apk = new File(mTempFolder, "out.apk");
+        packageApk(apk);
+        byte[] before = Files.toByteArray(apk);
+
+        // the resources are the first half of the apk.
+        assertFalse(updateApk(apk, mRes));
+        assertTrue(Arrays.equals(before, Files.toByteArray(apk)));
+    }
+
+    public void testDeterministic() throws Exception {
+        File apk = new File(mTempFolder, "out.apk");
+        packageApk(apk);
+        byte[] before = Files.toByteArray(apk);
+
+        // a deterministic apk is never updated, since it would depend on the previous builds.
+        Files.write(createContent(100, 2), mDex);
+        assertFalse(updateApk(apk, true, mDex));
+        assertTrue(Arrays.equals(before, Files.toByteArray(apk)));
+    }
+
+    private void packageApk(File apk) throws Exception {
+        Packager packager = new Packager(apk.getPath(), mRes.getPath(), mDex.getPath(),
+                mCertificateInfo, CompressionPolicy.DEFAULT, true, false, null, null,
+                new NullLogger());
+        packager.addSourceFolder(mResourceFolder.getPath());
+        packager.sealApk();
+    }
+
+    private boolean updateApk(File apk, File... changedFiles) throws Exception {
+        return updateApk(apk, false, changedFiles);
+    }
+
+    private boolean updateApk(File apk, boolean deterministic, File... changedFiles)
+            throws Exception {
+        DuplicateFileScanner scanner = new DuplicateFileScanner();
+        scanner.addZipFile(mRes);
+        scanner.addFile(mDex, "classes.dex");
+        scanner.addJavaResourceFolder(mResourceFolder.getPath());
+        Map<String, File> files = scanner.check();
+
+        IncrementalPackager packager = new IncrementalPackager(apk, mCertificateInfo,
+                CompressionPolicy.DEFAULT, true, deterministic, null, null, new NullLogger());
+        return packager.update(files, Collections.singleton(mRes), Arrays.asList(changedFiles));
+    }
+
+    /**
+     * Returns the names of the entries of a signed apk, in order, checking that all of them
+     * are signed.
+     */
+    private static List<String> getVerifiedEntryNames(File apk) throws Exception {
+        List<String> names = Lists.newArrayList();
+        JarFile jarFile = new JarFile(apk, true);
+        try {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                InputStream is = jarFile.getInputStream(entry);
+                ByteStreams.toByteArray(is);
+                is.close();
+
+                if (!entry.getName().startsWith("META-INF/")) {
+                    assertNotNull(entry.getName(), entry.getCodeSigners());
+                    names.add(entry.getName());
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+        return names;
+    }
+
+    /**
+     * Sorts a list of names from a given index.
+     */
+    private static List<String> sort(List<String> names, int from) {
+        Collections.sort(names.subList(from, names.size()));
+        return names;
+    }
+
+    private static void checkContent(File apk, String name, byte[] expected) throws Exception {
+        JarFile jarFile = new JarFile(apk, true);
+        try {
+            InputStream is = jarFile.getInputStream(jarFile.getEntry(name));
+            try {
+                assertTrue(name, Arrays.equals(expected, ByteStreams.toByteArray(is)));
+            } finally {
+                is.close();
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    /**
+     * Returns content that cannot be compressed, so that the size of the entries is known.
+     */
+    private static byte[] createContent(int size, int seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteFolder(file);
+                } else {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        folder.delete();
+    }
+
+    private static final class NullLogger implements ILogger {
+        @Override
+        public void error(Throwable t, String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void warning(String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void info(String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void verbose(String msgFormat, Object... args) {
+        }
+    }
+}
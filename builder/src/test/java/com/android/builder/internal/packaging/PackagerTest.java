@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.builder.packaging.CompressionPolicy;
+import com.android.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class PackagerTest extends TestCase {
+
+    private File mTempFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempFolder = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFolder(mTempFolder);
+        super.tearDown();
+    }
+
+    public void testAbiApks() throws Exception {
+        File res = createZip("res.zip", "AndroidManifest.xml");
+
+        File dex = new File(mTempFolder, "classes.dex");
+        Files.write(new byte[1000], dex);
+
+        File jniFolder = new File(mTempFolder, "jni");
+        for (String abi : new String[] { "armeabi", "x86" }) {
+            File lib = new File(jniFolder, abi + "/libfoo.so");
+            Files.createParentDirs(lib);
+            Files.write(new byte[10], lib);
+        }
+
+        // the apks share the cache in memory.
+        PackagingCache cache = new PackagingCache(null);
+        File armApk = new File(mTempFolder, "arm.apk");
+        File fatApk = new File(mTempFolder, "fat.apk");
+        packageApk(armApk, res, dex, jniFolder, Collections.singleton("armeabi"), cache);
+        packageApk(fatApk, res, dex, jniFolder, null, cache);
+
+        // unsigned apks have a manifest with the digests of their entries.
+        assertEquals(Lists.newArrayList("AndroidManifest.xml", "META-INF/MANIFEST.MF",
+                "classes.dex", "lib/armeabi/libfoo.so"), getEntryNames(armApk));
+        assertEquals(Lists.newArrayList("AndroidManifest.xml", "META-INF/MANIFEST.MF",
+                "classes.dex", "lib/armeabi/libfoo.so", "lib/x86/libfoo.so"),
+                getEntryNames(fatApk));
+    }
+
+    public void testAssets() throws Exception {
+        File res = createZip("res.zip", "AndroidManifest.xml");
+        File dex = new File(mTempFolder, "classes.dex");
+        Files.write(new byte[1000], dex);
+
+        File assetsFolder = new File(mTempFolder, "assets");
+        for (String name : new String[] { "data.txt", "images/icon.png", ".hidden",
+                "_private/data.txt", "backup~", "sub/_name.txt" }) {
+            File asset = new File(assetsFolder, name);
+            Files.createParentDirs(asset);
+            Files.write(new byte[1000], asset);
+        }
+
+        File apk = new File(mTempFolder, "out.apk");
+        Packager packager = new Packager(apk.getPath(), res.getPath(), dex.getPath(), null,
+                CompressionPolicy.DEFAULT.withNoCompress(CompressionPolicy.AAPT_NO_COMPRESS),
+                true, false, null, null, new NullLogger());
+        packager.addAssets(assetsFolder.getPath(), null);
+        packager.sealApk();
+
+        // hidden files, folders starting with '_' and backup files are ignored.
+        assertEquals(Lists.newArrayList("AndroidManifest.xml", "META-INF/MANIFEST.MF",
+                "assets/data.txt", "assets/images/icon.png", "assets/sub/_name.txt",
+                "classes.dex"), getEntryNames(apk));
+
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("assets/data.txt").getMethod());
+            assertEquals(ZipEntry.STORED,
+                    zipFile.getEntry("assets/images/icon.png").getMethod());
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testStoredAssetsNotCached() throws Exception {
+        File res = createZip("res.zip", "AndroidManifest.xml");
+        File dex = new File(mTempFolder, "classes.dex");
+        Files.write(new byte[1000], dex);
+
+        File assetsFolder = new File(mTempFolder, "assets");
+        File asset = new File(assetsFolder, "video.mp4");
+        Files.createParentDirs(asset);
+        Files.write(new byte[200000], asset);
+
+        File cacheFolder = new File(mTempFolder, "cache");
+        File apk = new File(mTempFolder, "out.apk");
+        Packager packager = new Packager(apk.getPath(), res.getPath(), dex.getPath(), null,
+                CompressionPolicy.DEFAULT.withNoCompress(CompressionPolicy.AAPT_NO_COMPRESS),
+                true, false, new PackagingCache(cacheFolder), null, new NullLogger());
+        packager.addAssets(assetsFolder.getPath(), null);
+        packager.sealApk();
+
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("assets/video.mp4").getMethod());
+        } finally {
+            zipFile.close();
+        }
+
+        // the data of the stored asset is not written in any record.
+        File[] records = cacheFolder.listFiles();
+        if (records != null) {
+            for (File record : records) {
+                assertTrue(record.getName(), record.length() < 10000);
+            }
+        }
+    }
+
+    public void testIgnoredAssets() throws Exception {
+        String[] patterns = "!.svn:<dir>build:<file>*.bak:tmp*".split(":");
+        assertTrue(Packager.isIgnoredAsset(".SVN", true, patterns));
+        assertTrue(Packager.isIgnoredAsset("build", true, patterns));
+        assertFalse(Packager.isIgnoredAsset("build", false, patterns));
+        assertTrue(Packager.isIgnoredAsset("a.BAK", false, patterns));
+        assertFalse(Packager.isIgnoredAsset("a.bak", true, patterns));
+        assertTrue(Packager.isIgnoredAsset("tmpfile", false, patterns));
+        assertFalse(Packager.isIgnoredAsset("file.tmp", false, patterns));
+    }
+
+    public void testDeterministic() throws Exception {
+        File res = createZip("res.zip", "AndroidManifest.xml", "res/layout/main.xml");
+        File dex = new File(mTempFolder, "classes.dex");
+        Files.write(new byte[1000], dex);
+
+        File apk1 = new File(mTempFolder, "out1.apk");
+        packageDeterministicApk(apk1, res, dex);
+
+        // the time of the inputs does not matter.
+        assertTrue(dex.setLastModified(dex.lastModified() - 3600000));
+        res = createZip("res.zip", "AndroidManifest.xml", "res/layout/main.xml");
+        Thread.sleep(2000);
+
+        File apk2 = new File(mTempFolder, "out2.apk");
+        packageDeterministicApk(apk2, res, dex);
+
+        assertTrue(Arrays.equals(Files.toByteArray(apk1), Files.toByteArray(apk2)));
+
+        ZipReader reader = new ZipReader(apk1);
+        try {
+            for (ZipEntryRecord entry : reader.getEntries()) {
+                assertEquals(entry.getName(), ZipEntryRecord.NORMALIZED_DOS_TIME,
+                        entry.getDosTime());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testJarIndex() throws Exception {
+        File res = createZip("res.zip", "AndroidManifest.xml");
+        File dex = new File(mTempFolder, "classes.dex");
+        Files.write(new byte[1000], dex);
+        File classesJar = createZip("classes.jar", "META-INF/MANIFEST.MF", "com/foo/A.class");
+        File resourcesJar = createZip("resources.jar", "com/foo/B.class", "com/foo/data.txt");
+
+        File indexFile = new File(mTempFolder, "jars.idx");
+        JarResourceIndex index = new JarResourceIndex(indexFile);
+        packageApk(new File(mTempFolder, "out1.apk"), res, dex, index, classesJar, resourcesJar);
+        index.save();
+
+        index = new JarResourceIndex(indexFile);
+        assertEquals(Collections.emptyList(), index.getResources(classesJar));
+        assertEquals(Collections.singletonList("com/foo/data.txt"),
+                index.getResources(resourcesJar));
+
+        // the jar without resources is not opened anymore.
+        long lastModified = classesJar.lastModified();
+        Files.write(new byte[(int) classesJar.length()], classesJar);
+        assertTrue(classesJar.setLastModified(lastModified));
+        File apk = new File(mTempFolder, "out2.apk");
+        packageApk(apk, res, dex, index, classesJar, resourcesJar);
+        assertEquals(Lists.newArrayList("AndroidManifest.xml", "META-INF/MANIFEST.MF",
+                "classes.dex", "com/foo/data.txt"), getEntryNames(apk));
+
+        // a jar that changed is listed again.
+        createZip("resources.jar", "com/foo/B.class");
+        assertNull(index.getResources(resourcesJar));
+    }
+
+    public void testMetrics() throws Exception {
+        File res = createZip("res.zip", "AndroidManifest.xml", "res/layout/main.xml");
+        File dex = new File(mTempFolder, "classes.dex");
+        Files.write(new byte[1000], dex);
+        File jar = createZip("lib.jar", "META-INF/MANIFEST.MF", "com/foo/A.class",
+                "com/foo/data.txt");
+
+        File apk = new File(mTempFolder, "out.apk");
+        Packager packager = new Packager(apk.getPath(), res.getPath(), dex.getPath(), null,
+                CompressionPolicy.DEFAULT, true, false, null, null, new NullLogger());
+        packager.addResourcesFromJar(jar);
+        packager.sealApk();
+
+        List<PackagingMetrics.InputMetrics> inputs = packager.getMetrics().getInputs();
+        assertEquals(3, inputs.size());
+        checkMetrics(inputs.get(0), res, 2, 0);
+        checkMetrics(inputs.get(1), dex, 1, 0);
+        // the manifest and the class file are skipped.
+        checkMetrics(inputs.get(2), jar, 1, 2);
+        assertEquals(1000, inputs.get(1).getUncompressedBytes());
+        assertTrue(inputs.get(1).getCompressedBytes() < 1000);
+
+        File report = new File(mTempFolder, "out.json");
+        packager.getMetrics().writeReport(apk, report);
+        String json = Files.toString(report, Charsets.UTF_8);
+        assertTrue(json.contains("\"skippedEntries\": 2"));
+    }
+
+    private static void checkMetrics(PackagingMetrics.InputMetrics metrics, File input,
+            int entries, int skippedEntries) {
+        assertEquals(input, metrics.getInput());
+        assertEquals(entries, metrics.getEntries());
+        assertEquals(skippedEntries, metrics.getSkippedEntries());
+    }
+
+    private File createZip(String name, String... entries) throws Exception {
+        File zip = new File(mTempFolder, name);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            for (String entry : entries) {
+                zos.putNextEntry(new ZipEntry(entry));
+                zos.write(new byte[100]);
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        return zip;
+    }
+
+    private static void packageApk(File apk, File res, File dex, File jniFolder,
+            Collection<String> abis, PackagingCache cache) throws Exception {
+        Packager packager = new Packager(apk.getPath(), res.getPath(), dex.getPath(), null,
+                CompressionPolicy.DEFAULT, true, false, cache, null, new NullLogger());
+        packager.addNativeLibraries(jniFolder.getPath(), abis);
+        packager.sealApk();
+    }
+
+    private static void packageDeterministicApk(File apk, File res, File dex)
+            throws Exception {
+        Packager packager = new Packager(apk.getPath(), res.getPath(), dex.getPath(), null,
+                CompressionPolicy.DEFAULT, true, true, null, null, new NullLogger());
+        packager.sealApk();
+    }
+
+    private static void packageApk(File apk, File res, File dex, JarResourceIndex index,
+            File... jars) throws Exception {
+        Packager packager = new Packager(apk.getPath(), res.getPath(), dex.getPath(), null,
+                CompressionPolicy.DEFAULT, true, false, null, null, new NullLogger());
+        packager.setJarIndex(index);
+        for (File jar : jars) {
+            packager.addResourcesFromJar(jar);
+        }
+        packager.sealApk();
+    }
+
+    private static List<String> getEntryNames(File apk) throws Exception {
+        List<String> names = Lists.newArrayList();
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+        } finally {
+            zipFile.close();
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteFolder(file);
+                } else {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        folder.delete();
+    }
+
+    private static final class NullLogger implements ILogger {
+        @Override
+        public void error(Throwable t, String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void warning(String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void info(String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void verbose(String msgFormat, Object... args) {
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+
+public class PackagingCacheTest extends TestCase {
+
+    private File mFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFolder = Files.createTempDir();
+        PackagingCache.clearPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mFolder.delete();
+        super.tearDown();
+    }
+
+    public void testEntry() throws Exception {
+        byte[] content = "some content, some content, some content".getBytes("UTF-8");
+        DeflatedEntry deflatedEntry = DeflatedEntry.deflate(new ByteArrayInputStream(content),
+                new ZipEntryRecord("foo.txt"), 9, "SHA1");
+        String key = PackagingCache.getContentKey(deflatedEntry.getDigest(), content.length, 9);
+
+        new PackagingCache(mFolder).putEntry(key, deflatedEntry);
+
+        // read it back from the disk, with another instance.
+        PackagingCache.clearPool();
+        PackagingCache cache = new PackagingCache(mFolder);
+        ZipEntryRecord entry = new ZipEntryRecord("foo.txt");
+        DeflatedEntry cachedEntry = cache.getEntry(key, entry, true);
+        assertNotNull(cachedEntry);
+        assertSame(entry, cachedEntry.getEntry());
+        assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+        assertEquals(deflatedEntry.getEntry().getCrc(), entry.getCrc());
+        assertEquals(content.length, entry.getSize());
+        assertEquals(deflatedEntry.getData().length, entry.getCompressedSize());
+        assertTrue(Arrays.equals(deflatedEntry.getData(), cachedEntry.getData()));
+        assertTrue(Arrays.equals(deflatedEntry.getDigest(), cachedEntry.getDigest()));
+
+        String otherKey = PackagingCache.getContentKey(deflatedEntry.getDigest(),
+                content.length, 1);
+        assertNull(cache.getEntry(otherKey, new ZipEntryRecord("foo.txt"), false));
+    }
+
+    public void testEntryWithoutDigest() throws Exception {
+        byte[] content = "content".getBytes("UTF-8");
+        DeflatedEntry deflatedEntry = DeflatedEntry.deflate(new ByteArrayInputStream(content),
+                new ZipEntryRecord("foo.txt"), 9, null);
+
+        PackagingCache cache = new PackagingCache(mFolder);
+        cache.putEntry("key", deflatedEntry);
+
+        assertNull(cache.getEntry("key", new ZipEntryRecord("foo.txt"), true));
+        ZipEntryRecord entry = new ZipEntryRecord("foo.txt");
+        assertNotNull(cache.getEntry("key", entry, false));
+        assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+    }
+
+    public void testStoredEntry() throws Exception {
+        byte[] content = new byte[100000];
+        DeflatedEntry deflatedEntry = DeflatedEntry.deflate(new ByteArrayInputStream(content),
+                new ZipEntryRecord("foo.png"), 0, "SHA1");
+
+        PackagingCache cache = new PackagingCache(mFolder);
+        cache.putEntry("key", deflatedEntry);
+
+        // only the digest of a stored entry is kept, in memory and on disk.
+        assertNull(cache.getEntry("key", new ZipEntryRecord("foo.png"), false));
+        assertNotNull(cache.getDigest("key"));
+        PackagingCache.clearPool();
+        cache = new PackagingCache(mFolder);
+        assertNotNull(cache.getDigest("key"));
+        assertEquals(1, mFolder.listFiles().length);
+        assertTrue(mFolder.listFiles()[0].length() < 1000);
+    }
+
+    public void testDigest() throws Exception {
+        ZipEntryRecord entry = new ZipEntryRecord("foo.txt");
+        entry.setCrc(42);
+        entry.setSize(100);
+        entry.setCompressedSize(50);
+        String key = PackagingCache.getZipEntryKey(new File("foo.jar"), entry);
+
+        PackagingCache cache = new PackagingCache(mFolder);
+        assertNull(cache.getDigest(key));
+        cache.putDigest(key, entry, "digest");
+        assertEquals("digest", cache.getDigest(key));
+
+        // a digest-only record cannot provide the entry data.
+        assertNull(cache.getEntry(key, new ZipEntryRecord("foo.txt"), false));
+    }
+
+    public void testPool() throws Exception {
+        byte[] content = "content".getBytes("UTF-8");
+        DeflatedEntry deflatedEntry = DeflatedEntry.deflate(new ByteArrayInputStream(content),
+                new ZipEntryRecord("foo.txt"), 9, null);
+
+        new PackagingCache(null).putEntry("key", deflatedEntry);
+        new PackagingCache(mFolder).putDigest("key2", deflatedEntry.getEntry(), "digest");
+
+        // all the caches share their records in memory.
+        PackagingCache cache = new PackagingCache(null);
+        DeflatedEntry cachedEntry = cache.getEntry("key", new ZipEntryRecord("foo.txt"), false);
+        assertNotNull(cachedEntry);
+        assertSame(deflatedEntry.getData(), cachedEntry.getData());
+        assertEquals("digest", cache.getDigest("key2"));
+
+        // nothing is written on disk without a folder.
+        cache.removeUnusedRecords();
+        assertEquals(1, mFolder.listFiles().length);
+
+        PackagingCache.clearPool();
+        assertNull(cache.getEntry("key", new ZipEntryRecord("foo.txt"), false));
+    }
+
+    public void testRemoveUnusedRecords() throws Exception {
+        ZipEntryRecord entry = new ZipEntryRecord("foo.txt");
+        PackagingCache cache = new PackagingCache(mFolder);
+        cache.putDigest("key1", entry, "digest1");
+        cache.putDigest("key2", entry, "digest2");
+
+        PackagingCache.clearPool();
+        cache = new PackagingCache(mFolder);
+        assertEquals("digest1", cache.getDigest("key1"));
+        cache.removeUnusedRecords();
+
+        PackagingCache.clearPool();
+        cache = new PackagingCache(mFolder);
+        assertEquals("digest1", cache.getDigest("key1"));
+        assertNull(cache.getDigest("key2"));
+        assertEquals(1, mFolder.listFiles().length);
+    }
+}
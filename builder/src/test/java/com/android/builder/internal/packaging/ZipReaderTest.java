@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ZipReaderTest extends TestCase {
+
+    private static final int ENTRY_COUNT = 20;
+
+    private File mArchive;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mArchive = File.createTempFile("zipreader", ".zip");
+
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(mArchive));
+        try {
+            for (int i = 0 ; i < ENTRY_COUNT ; i++) {
+                byte[] content = getContent(i);
+                ZipEntry entry = new ZipEntry(getName(i));
+                if (i % 2 == 0) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setCrc(crc.getValue());
+                    entry.setSize(content.length);
+                }
+                zos.putNextEntry(entry);
+                zos.write(content);
+                zos.closeEntry();
+            }
+            zos.setComment("a comment at the end of the archive");
+        } finally {
+            zos.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        mArchive.delete();
+        super.tearDown();
+    }
+
+    public void testEntries() throws Exception {
+        ZipReader reader = new ZipReader(mArchive);
+        try {
+            List<ZipEntryRecord> entries = reader.getEntries();
+            assertEquals(ENTRY_COUNT, entries.size());
+            for (int i = 0 ; i < ENTRY_COUNT ; i++) {
+                ZipEntryRecord entry = entries.get(i);
+                assertEquals(getName(i), entry.getName());
+                assertEquals(i % 2 == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED,
+                        entry.getMethod());
+                assertEquals(getContent(i).length, entry.getSize());
+                assertTrue(Arrays.equals(getContent(i), read(reader, entry)));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testConcurrentReads() throws Exception {
+        final ZipReader reader = new ZipReader(mArchive);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = Lists.newArrayList();
+            for (int round = 0 ; round < 10 ; round++) {
+                for (int i = 0 ; i < ENTRY_COUNT ; i++) {
+                    final int index = i;
+                    results.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            ZipEntryRecord entry = reader.getEntries().get(index);
+                            return Arrays.equals(getContent(index), read(reader, entry));
+                        }
+                    }));
+                }
+            }
+
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+            reader.close();
+        }
+    }
+
+    private static byte[] read(ZipReader reader, ZipEntryRecord entry) throws Exception {
+        InputStream is = reader.getInputStream(entry);
+        try {
+            return ByteStreams.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static String getName(int index) {
+        return "folder/entry" + index + ".txt";
+    }
+
+    private static byte[] getContent(int index) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0 ; i < 500 * (index + 1) ; i++) {
+            sb.append(i % (index + 7)).append('\n');
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+}
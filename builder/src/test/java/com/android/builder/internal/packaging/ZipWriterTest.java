@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class ZipWriterTest extends TestCase {
+
+    private static final String[] NAMES = new String[] {
+            "a", "ab", "abc", "res/raw/abcd.bin", "lib/armeabi/libfoo.so", "deflated.txt",
+            "lib/x86/libfoo.so"
+    };
+
+    private File mOutput;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mOutput = File.createTempFile("zipwriter", ".zip");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        mOutput.delete();
+        super.tearDown();
+    }
+
+    public void testAlignment() throws Exception {
+        writeArchive(true);
+
+        ZipReader reader = new ZipReader(mOutput);
+        try {
+            for (ZipEntryRecord entry : reader.getEntries()) {
+                InputStream is = reader.getInputStream(entry);
+                try {
+                    assertTrue(entry.getName(),
+                            Arrays.equals(getContent(entry.getName()), ByteStreams.toByteArray(is)));
+                } finally {
+                    is.close();
+                }
+
+                if (entry.getMethod() == ZipEntry.STORED) {
+                    int alignment = entry.getName().endsWith(".so") ?
+                            ZipWriter.LIBRARY_ALIGNMENT : ZipWriter.ALIGNMENT;
+                    assertEquals(entry.getName(), 0, entry.getDataOffset() % alignment);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        // make sure the padding does not confuse other readers.
+        ZipFile zipFile = new ZipFile(mOutput);
+        try {
+            for (String name : NAMES) {
+                ZipEntry entry = zipFile.getEntry(name);
+                assertNotNull(name, entry);
+                InputStream is = zipFile.getInputStream(entry);
+                try {
+                    assertTrue(name,
+                            Arrays.equals(getContent(name), ByteStreams.toByteArray(is)));
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testNoAlignment() throws Exception {
+        writeArchive(false);
+
+        ZipReader reader = new ZipReader(mOutput);
+        try {
+            for (ZipEntryRecord entry : reader.getEntries()) {
+                ByteStreams.toByteArray(reader.getRawInputStream(entry));
+                assertEquals(entry.getName(),
+                        entry.getHeaderOffset() + ZipReader.LOCAL_HEADER_SIZE
+                                + entry.getName().length(),
+                        entry.getDataOffset());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testTransfer() throws Exception {
+        writeArchive(true);
+
+        // the raw data of all the entries is transferred to a new archive, aligned again.
+        File copy = File.createTempFile("zipwriter", ".zip");
+        try {
+            ZipReader reader = new ZipReader(mOutput);
+            ZipWriter writer = new ZipWriter(new FileOutputStream(copy));
+            writer.setAligned(true);
+            try {
+                for (ZipEntryRecord entry : reader.getEntries()) {
+                    writer.putNextRawEntry(new ZipEntryRecord(entry));
+                    reader.transferRawData(entry, writer);
+                    writer.closeEntry();
+                }
+            } finally {
+                writer.close();
+                reader.close();
+            }
+
+            ZipFile zipFile = new ZipFile(copy);
+            try {
+                assertEquals(NAMES.length, zipFile.size());
+                for (String name : NAMES) {
+                    InputStream is = zipFile.getInputStream(zipFile.getEntry(name));
+                    try {
+                        assertTrue(name,
+                                Arrays.equals(getContent(name), ByteStreams.toByteArray(is)));
+                    } finally {
+                        is.close();
+                    }
+                }
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            copy.delete();
+        }
+    }
+
+    public void testLargeEntry() throws Exception {
+        // larger than the buffer of the writer.
+        byte[] content = new byte[1024 * 1024 + 17];
+        new Random(42).nextBytes(content);
+
+        // not a file, so the archive is written through a stream.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipWriter writer = new ZipWriter(out);
+        try {
+            ZipEntryRecord entry = new ZipEntryRecord("large.bin");
+            writer.putNextEntry(entry);
+            writer.write(content, 0, content.length);
+            writer.closeEntry();
+        } finally {
+            writer.close();
+        }
+
+        Files.write(out.toByteArray(), mOutput);
+        ZipFile zipFile = new ZipFile(mOutput);
+        try {
+            InputStream is = zipFile.getInputStream(zipFile.getEntry("large.bin"));
+            try {
+                assertTrue(Arrays.equals(content, ByteStreams.toByteArray(is)));
+            } finally {
+                is.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private void writeArchive(boolean aligned) throws Exception {
+        ZipWriter writer = new ZipWriter(new FileOutputStream(mOutput));
+        writer.setAligned(aligned);
+        try {
+            for (String name : NAMES) {
+                byte[] content = getContent(name);
+                ZipEntryRecord entry = new ZipEntryRecord(name);
+                if (!name.endsWith(".txt")) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setCrc(crc.getValue());
+                    entry.setSize(content.length);
+                }
+                writer.putNextEntry(entry);
+                writer.write(content, 0, content.length);
+                writer.closeEntry();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static byte[] getContent(String name) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0 ; i < 100 ; i++) {
+            sb.append(name).append(' ').append(i).append('\n');
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+}
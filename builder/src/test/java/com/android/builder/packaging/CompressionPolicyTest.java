@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.packaging;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class CompressionPolicyTest extends TestCase {
+
+    public void testDefault() {
+        assertEquals(CompressionPolicy.MAX, CompressionPolicy.DEFAULT.getLevel("classes.dex"));
+        assertFalse(CompressionPolicy.DEFAULT.isStored("lib/armeabi/libfoo.so"));
+    }
+
+    public void testStoreLevel() {
+        CompressionPolicy policy = new CompressionPolicy(CompressionPolicy.STORE, null);
+        assertTrue(policy.isStored("classes.dex"));
+        assertEquals(CompressionPolicy.STORE, policy.getLevel("classes.dex"));
+    }
+
+    public void testSuffixes() {
+        CompressionPolicy policy = new CompressionPolicy(CompressionPolicy.FAST,
+                Arrays.asList(".so", "png"));
+
+        assertTrue(policy.isStored("lib/armeabi/libfoo.so"));
+        assertTrue(policy.isStored("res/drawable/icon.png"));
+        assertTrue(policy.isStored("res/drawable/ICON.PNG"));
+        assertFalse(policy.isStored("classes.dex"));
+        assertEquals(CompressionPolicy.FAST, policy.getLevel("classes.dex"));
+        assertEquals(CompressionPolicy.STORE, policy.getLevel("lib/x86/libfoo.so"));
+    }
+
+    public void testPaths() {
+        CompressionPolicy policy = new CompressionPolicy(CompressionPolicy.MAX,
+                Arrays.asList("assets/", "res/raw/*.ogg", "lib/**.bin"));
+
+        assertTrue(policy.isStored("assets/foo.txt"));
+        assertTrue(policy.isStored("assets/sub/foo.txt"));
+        assertFalse(policy.isStored("res/assets/foo.txt"));
+
+        assertTrue(policy.isStored("res/raw/sound.ogg"));
+        assertFalse(policy.isStored("res/raw/sub/sound.ogg"));
+        assertFalse(policy.isStored("res/raw/sound.ogg.txt"));
+
+        assertTrue(policy.isStored("lib/armeabi/data.bin"));
+        assertFalse(policy.isStored("data.bin"));
+    }
+
+    public void testInvalidLevel() {
+        try {
+            new CompressionPolicy(10, null);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -85,6 +85,43 @@ public class KeyStoreHelperTest extends TestCase {
                 certificate.getNotAfter().compareTo(c.getTime()) > 0);
     }
 
+    public void testCertificateInfoCache() throws Exception {
+        File tempFolder = Files.createTempDir();
+        File keystoreFile = new File(tempFolder, "debug.keystore");
+        keystoreFile.deleteOnExit();
+
+        DefaultSigningConfig signingConfig = new DefaultSigningConfig("");
+        signingConfig.initDebug();
+        signingConfig.setStoreFile(keystoreFile);
+        KeystoreHelper.createDebugStore(signingConfig, new FakeLogger());
+
+        // the key is only read once.
+        CertificateInfo certificateInfo = KeystoreHelper.getCertificateInfo(signingConfig);
+        assertNotNull(certificateInfo);
+        assertSame(certificateInfo, KeystoreHelper.getCertificateInfo(signingConfig));
+
+        // but the passwords are still checked.
+        DefaultSigningConfig wrongPassword = new DefaultSigningConfig("");
+        wrongPassword.initDebug();
+        wrongPassword.setStoreFile(keystoreFile);
+        wrongPassword.setKeyPassword("wrong");
+        try {
+            KeystoreHelper.getCertificateInfo(wrongPassword);
+            fail("Expected KeytoolException");
+        } catch (KeytoolException e) {
+            // expected
+        }
+
+        // a modified keystore is read again.
+        assertTrue(keystoreFile.setLastModified(keystoreFile.lastModified() - 10000));
+        CertificateInfo newCertificateInfo = KeystoreHelper.getCertificateInfo(signingConfig);
+        assertNotSame(certificateInfo, newCertificateInfo);
+        assertEquals(certificateInfo.getCertificate(), newCertificateInfo.getCertificate());
+
+        KeystoreHelper.clearCertificateInfoCache();
+        assertNotSame(newCertificateInfo, KeystoreHelper.getCertificateInfo(signingConfig));
+    }
+
     private static class FakeLogger implements ILogger {
         private String mOut = "";
         private String mErr = "";
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import com.android.builder.internal.packaging.PackagingCache;
+import com.android.builder.packaging.CompressionPolicy;
+import com.android.utils.ILogger;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class SignedJarBuilderTest extends TestCase {
+
+    private File mTempFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTempFolder = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFolder(mTempFolder);
+        super.tearDown();
+    }
+
+    public void testCopyZip() throws Exception {
+        File input = createInputZip();
+        File output = new File(mTempFolder, "out.apk");
+
+        SignedJarBuilder builder = new SignedJarBuilder(
+                new FileOutputStream(output), null, null, null, null);
+        builder.writeZip(input, null);
+        builder.close();
+
+        ZipFile zipFile = new ZipFile(output);
+        try {
+            checkEntry(zipFile, "deflated.txt", ZipEntry.DEFLATED, getDeflatedContent());
+            checkEntry(zipFile, "stored.bin", ZipEntry.STORED, getStoredContent());
+            assertNull(zipFile.getEntry("META-INF/MANIFEST.MF"));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testCopyZipSigned() throws Exception {
+        File keystoreFile = new File(mTempFolder, "debug.keystore");
+        DefaultSigningConfig signingConfig = new DefaultSigningConfig("");
+        signingConfig.initDebug();
+        signingConfig.setStoreFile(keystoreFile);
+        KeystoreHelper.createDebugStore(signingConfig, new NullLogger());
+        CertificateInfo certificateInfo = KeystoreHelper.getCertificateInfo(signingConfig);
+
+        File input = createInputZip();
+        File output = new File(mTempFolder, "out.apk");
+
+        SignedJarBuilder builder = new SignedJarBuilder(
+                new FileOutputStream(output),
+                certificateInfo.getKey(), certificateInfo.getCertificate(), null, null);
+        File file = new File(mTempFolder, "file.txt");
+        Files.write(getDeflatedContent(3), file);
+        builder.writeFile(file, "res/file.txt");
+        builder.writeZip(input, null);
+        builder.close();
+
+        // read all the entries with verification on, and make sure they are all signed.
+        JarFile jarFile = new JarFile(output, true);
+        try {
+            int count = 0;
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                InputStream is = jarFile.getInputStream(entry);
+                ByteStreams.toByteArray(is);
+                is.close();
+
+                if (!entry.getName().startsWith("META-INF/")) {
+                    assertNotNull(entry.getName(), entry.getCodeSigners());
+                    count++;
+                }
+            }
+
+            assertEquals(3, count);
+            checkEntry(jarFile, "deflated.txt", ZipEntry.DEFLATED, getDeflatedContent());
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    public void testWriteFilesInParallel() throws Exception {
+        File output = new File(mTempFolder, "out.apk");
+
+        SignedJarBuilder builder = new SignedJarBuilder(
+                new FileOutputStream(output), null, null, null, null);
+        builder.setThreadCount(4);
+        for (int i = 0 ; i < 50 ; i++) {
+            File file = new File(mTempFolder, "file" + i + ".txt");
+            Files.write(getDeflatedContent(i), file);
+            builder.writeFile(file, "res/file" + i + ".txt");
+        }
+        builder.writeZip(createInputZip(), null);
+        builder.close();
+
+        // entries must be in the order they were added.
+        ZipFile zipFile = new ZipFile(output);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            for (int i = 0 ; i < 50 ; i++) {
+                assertEquals("res/file" + i + ".txt", entries.nextElement().getName());
+                checkEntry(zipFile, "res/file" + i + ".txt", ZipEntry.DEFLATED,
+                        getDeflatedContent(i));
+            }
+            assertEquals("deflated.txt", entries.nextElement().getName());
+            assertEquals("stored.bin", entries.nextElement().getName());
+            assertFalse(entries.hasMoreElements());
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testCompressionPolicy() throws Exception {
+        File output = new File(mTempFolder, "out.apk");
+
+        SignedJarBuilder builder = new SignedJarBuilder(
+                new FileOutputStream(output), null, null, null, null);
+        builder.setThreadCount(1);
+        builder.setCompressionPolicy(new CompressionPolicy(CompressionPolicy.FAST,
+                Arrays.asList("assets/", ".txt")));
+        File file = new File(mTempFolder, "file.dat");
+        Files.write(getDeflatedContent(2), file);
+        builder.writeFile(file, "res/file.dat");
+        builder.writeFile(file, "assets/file.dat");
+        builder.writeZip(createInputZip(), null);
+        builder.close();
+
+        ZipFile zipFile = new ZipFile(output);
+        try {
+            checkEntry(zipFile, "res/file.dat", ZipEntry.DEFLATED, getDeflatedContent(2));
+            checkEntry(zipFile, "assets/file.dat", ZipEntry.STORED, getDeflatedContent(2));
+            // deflated in the input, but stored by the policy.
+            checkEntry(zipFile, "deflated.txt", ZipEntry.STORED, getDeflatedContent());
+            checkEntry(zipFile, "stored.bin", ZipEntry.STORED, getStoredContent());
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testCache() throws Exception {
+        File keystoreFile = new File(mTempFolder, "debug.keystore");
+        DefaultSigningConfig signingConfig = new DefaultSigningConfig("");
+        signingConfig.initDebug();
+        signingConfig.setStoreFile(keystoreFile);
+        KeystoreHelper.createDebugStore(signingConfig, new NullLogger());
+        CertificateInfo certificateInfo = KeystoreHelper.getCertificateInfo(signingConfig);
+
+        File input = createInputZip();
+        File file = new File(mTempFolder, "file.txt");
+        Files.write(getDeflatedContent(3), file);
+        File cacheFolder = new File(mTempFolder, "cache");
+
+        File output1 = new File(mTempFolder, "out1.apk");
+        File output2 = new File(mTempFolder, "out2.apk");
+        for (File output : new File[] { output1, output2 }) {
+            SignedJarBuilder builder = new SignedJarBuilder(
+                    new FileOutputStream(output),
+                    certificateInfo.getKey(), certificateInfo.getCertificate(), null, null);
+            builder.setCache(new PackagingCache(cacheFolder));
+            builder.writeFile(file, "res/file.txt");
+            builder.writeZip(input, null);
+            builder.close();
+        }
+
+        // one record for the file and one for each entry of the zip.
+        assertEquals(3, cacheFolder.listFiles().length);
+
+        // the manifest and its signature only differ by the signature of the certificate.
+        JarFile jarFile1 = new JarFile(output1, true);
+        JarFile jarFile2 = new JarFile(output2, true);
+        try {
+            assertEquals(jarFile1.getManifest(), jarFile2.getManifest());
+            checkEntry(jarFile2, "res/file.txt", ZipEntry.DEFLATED, getDeflatedContent(3));
+            checkEntry(jarFile2, "deflated.txt", ZipEntry.DEFLATED, getDeflatedContent());
+            checkEntry(jarFile2, "stored.bin", ZipEntry.STORED, getStoredContent());
+            assertNotNull(jarFile2.getJarEntry("res/file.txt").getCodeSigners());
+        } finally {
+            jarFile1.close();
+            jarFile2.close();
+        }
+    }
+
+    public void testLongNamesSigned() throws Exception {
+        File keystoreFile = new File(mTempFolder, "debug.keystore");
+        DefaultSigningConfig signingConfig = new DefaultSigningConfig("");
+        signingConfig.initDebug();
+        signingConfig.setStoreFile(keystoreFile);
+        KeystoreHelper.createDebugStore(signingConfig, new NullLogger());
+        CertificateInfo certificateInfo = KeystoreHelper.getCertificateInfo(signingConfig);
+
+        // names that span several lines of the manifest, with multi-byte characters at the
+        // line boundaries.
+        String[] names = new String[] {
+                "res/drawable/" + Strings.repeat("a", 150) + ".png",
+                "res/raw/" + Strings.repeat("\u00e9", 100) + ".txt",
+                "assets/" + Strings.repeat("\u4e2d", 60),
+        };
+
+        File output = new File(mTempFolder, "out.apk");
+        SignedJarBuilder builder = new SignedJarBuilder(
+                new FileOutputStream(output),
+                certificateInfo.getKey(), certificateInfo.getCertificate(), null, null);
+        File file = new File(mTempFolder, "file.txt");
+        Files.write(getDeflatedContent(3), file);
+        for (String name : names) {
+            builder.writeFile(file, name);
+        }
+        builder.close();
+
+        JarFile jarFile = new JarFile(output, true);
+        try {
+            for (String name : names) {
+                JarEntry entry = jarFile.getJarEntry(name);
+                InputStream is = jarFile.getInputStream(entry);
+                ByteStreams.toByteArray(is);
+                is.close();
+                assertNotNull(name, entry.getCodeSigners());
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private static void checkEntry(ZipFile zipFile, String name, int method, byte[] content)
+            throws Exception {
+        ZipEntry entry = zipFile.getEntry(name);
+        assertNotNull(name, entry);
+        assertEquals(method, entry.getMethod());
+        InputStream is = zipFile.getInputStream(entry);
+        try {
+            assertTrue(Arrays.equals(content, ByteStreams.toByteArray(is)));
+        } finally {
+            is.close();
+        }
+    }
+
+    private File createInputZip() throws Exception {
+        File input = new File(mTempFolder, "in.zip");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(input));
+        try {
+            zos.putNextEntry(new ZipEntry("deflated.txt"));
+            zos.write(getDeflatedContent());
+            zos.closeEntry();
+
+            byte[] stored = getStoredContent();
+            ZipEntry storedEntry = new ZipEntry("stored.bin");
+            storedEntry.setMethod(ZipEntry.STORED);
+            storedEntry.setSize(stored.length);
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            storedEntry.setCrc(crc.getValue());
+            zos.putNextEntry(storedEntry);
+            zos.write(stored);
+            zos.closeEntry();
+
+            zos.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            zos.write("Manifest-Version: 1.0\r\n".getBytes("UTF-8"));
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+        return input;
+    }
+
+    private static byte[] getDeflatedContent() throws Exception {
+        return getDeflatedContent(0);
+    }
+
+    private static byte[] getDeflatedContent(int seed) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0 ; i < 1000 ; i++) {
+            sb.append("line ").append(i * seed).append('\n');
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] getStoredContent() {
+        byte[] content = new byte[1024];
+        for (int i = 0 ; i < content.length ; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        return content;
+    }
+
+    private static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteFolder(file);
+                } else {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        folder.delete();
+    }
+
+    private static final class NullLogger implements ILogger {
+        @Override
+        public void error(Throwable t, String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void warning(String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void info(String msgFormat, Object... args) {
+        }
+
+        @Override
+        public void verbose(String msgFormat, Object... args) {
+        }
+    }
+}
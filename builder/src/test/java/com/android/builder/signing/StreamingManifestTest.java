@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.signing;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import junit.framework.TestCase;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.jar.Manifest;
+
+public class StreamingManifestTest extends TestCase {
+
+    public void testManifest() throws Exception {
+        String longName = "res/raw/" + Strings.repeat("\u00e9", 100);
+        StreamingManifest manifest = createManifest(1024 * 1024);
+        manifest.addEntry("classes.dex", getDigest(0));
+        manifest.addEntry(longName, getDigest(1));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.writeManifest(out);
+        manifest.close();
+        byte[] bytes = out.toByteArray();
+
+        String text = new String(bytes, Charsets.UTF_8);
+        for (String line : text.split("\r\n")) {
+            assertTrue(line, line.getBytes(Charsets.UTF_8).length <= 72);
+        }
+
+        // the manifest can be read back.
+        Manifest jarManifest = new Manifest(new ByteArrayInputStream(bytes));
+        assertEquals("1.0", jarManifest.getMainAttributes().getValue("Manifest-Version"));
+        assertEquals("test", jarManifest.getMainAttributes().getValue("Created-By"));
+        assertEquals(2, jarManifest.getEntries().size());
+        assertEquals(new String(Base64.encode(getDigest(1)), Charsets.US_ASCII),
+                SignedJarBuilder.getDigest(jarManifest, longName));
+    }
+
+    public void testSignatureFile() throws Exception {
+        StreamingManifest manifest = createManifest(1024 * 1024);
+        manifest.addEntry("classes.dex", getDigest(0));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.writeManifest(out);
+        String manifestText = new String(out.toByteArray(), Charsets.UTF_8);
+
+        ByteArrayOutputStream sf = new ByteArrayOutputStream();
+        manifest.writeSignatureFile(sf);
+        manifest.close();
+
+        // the signature file contains the digest of the manifest, and of each of its stanzas.
+        Manifest jarSf = new Manifest(new ByteArrayInputStream(sf.toByteArray()));
+        assertEquals(sha1(manifestText),
+                jarSf.getMainAttributes().getValue("SHA1-Digest-Manifest"));
+        String stanza = manifestText.substring(manifestText.indexOf("Name: classes.dex"));
+        assertEquals(sha1(stanza),
+                jarSf.getAttributes("classes.dex").getValue("SHA1-Digest"));
+    }
+
+    public void testSpill() throws Exception {
+        StreamingManifest inMemory = createManifest(1024 * 1024);
+        StreamingManifest spilled = createManifest(100);
+        for (int i = 0 ; i < 1000 ; i++) {
+            inMemory.addEntry("res/raw/file" + i, getDigest(i));
+            spilled.addEntry("res/raw/file" + i, getDigest(i));
+        }
+
+        ByteArrayOutputStream inMemoryOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream spilledOut = new ByteArrayOutputStream();
+        inMemory.writeManifest(inMemoryOut);
+        spilled.writeManifest(spilledOut);
+        assertTrue(Arrays.equals(inMemoryOut.toByteArray(), spilledOut.toByteArray()));
+
+        inMemoryOut.reset();
+        spilledOut.reset();
+        inMemory.writeSignatureFile(inMemoryOut);
+        spilled.writeSignatureFile(spilledOut);
+        assertTrue(Arrays.equals(inMemoryOut.toByteArray(), spilledOut.toByteArray()));
+
+        inMemory.close();
+        spilled.close();
+    }
+
+    private static StreamingManifest createManifest(int spillThreshold) {
+        Map<String, String> mainAttributes = Maps.newLinkedHashMap();
+        mainAttributes.put("Created-By", "test");
+        return new StreamingManifest("SHA1", "SHA1-Digest", mainAttributes, spillThreshold);
+    }
+
+    private static byte[] getDigest(int seed) {
+        byte[] digest = new byte[20];
+        Arrays.fill(digest, (byte) seed);
+        return digest;
+    }
+
+    private static String sha1(String text) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA1");
+        return new String(Base64.encode(md.digest(text.getBytes(Charsets.UTF_8))),
+                Charsets.US_ASCII);
+    }
+}
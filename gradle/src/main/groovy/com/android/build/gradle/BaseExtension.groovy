@@ -23,6 +23,7 @@ import com.android.build.gradle.internal.CompileOptions
 import com.android.build.gradle.internal.dsl.AaptOptionsImpl
 import com.android.build.gradle.internal.dsl.AndroidSourceSetFactory
 import com.android.build.gradle.internal.dsl.DexOptionsImpl
+import com.android.build.gradle.internal.dsl.PackagingOptionsImpl
 import com.android.build.gradle.internal.dsl.ProductFlavorDsl
 import com.android.build.gradle.internal.test.TestOptions
 import com.android.builder.BuilderConstants
@@ -51,6 +52,7 @@ public abstract class BaseExtension {
     final DefaultProductFlavor defaultConfig
     final AaptOptionsImpl aaptOptions
     final DexOptionsImpl dexOptions
+    final PackagingOptionsImpl packagingOptions
     final TestOptions testOptions
     final CompileOptions compileOptions
 
@@ -76,6 +78,7 @@ public abstract class BaseExtension {
 
         aaptOptions = instantiator.newInstance(AaptOptionsImpl.class)
         dexOptions = instantiator.newInstance(DexOptionsImpl.class)
+        packagingOptions = instantiator.newInstance(PackagingOptionsImpl.class)
         testOptions = instantiator.newInstance(TestOptions.class)
         compileOptions = instantiator.newInstance(CompileOptions.class)
 
@@ -162,6 +165,11 @@ public abstract class BaseExtension {
         action.execute(dexOptions)
     }
 
+    void packagingOptions(Action<PackagingOptionsImpl> action) {
+        plugin.checkTasksAlreadyCreated();
+        action.execute(packagingOptions)
+    }
+
     void testOptions(Action<TestOptions> action) {
         plugin.checkTasksAlreadyCreated();
         action.execute(testOptions)
@@ -36,7 +36,6 @@ import com.android.build.gradle.internal.tasks.DependencyReportTask
 import com.android.build.gradle.internal.tasks.DeviceProviderInstrumentTestLibraryTask
 import com.android.build.gradle.internal.tasks.DeviceProviderInstrumentTestTask
 import com.android.build.gradle.internal.tasks.InstallTask
-import com.android.build.gradle.internal.tasks.OutputFileTask
 import com.android.build.gradle.internal.tasks.PrepareDependenciesTask
 import com.android.build.gradle.internal.tasks.PrepareLibraryTask
 import com.android.build.gradle.internal.tasks.SigningReportTask
@@ -60,16 +59,17 @@ import com.android.build.gradle.tasks.ProcessAndroidResources
 import com.android.build.gradle.tasks.ProcessAppManifest
 import com.android.build.gradle.tasks.ProcessTestManifest
 import com.android.build.gradle.tasks.RenderscriptCompile
-import com.android.build.gradle.tasks.ZipAlign
 import com.android.builder.AndroidBuilder
 import com.android.builder.DefaultProductFlavor
 import com.android.builder.SdkParser
 import com.android.builder.VariantConfiguration
 import com.android.builder.dependency.JarDependency
 import com.android.builder.dependency.LibraryDependency
+import com.android.builder.internal.packaging.PackagingCache
 import com.android.builder.model.ProductFlavor
 import com.android.builder.model.SigningConfig
 import com.android.builder.model.SourceProvider
+import com.android.builder.signing.KeystoreHelper
 import com.android.builder.testing.ConnectedDeviceProvider
 import com.android.builder.testing.api.DeviceProvider
 import com.android.builder.testing.api.TestServer
@@ -89,6 +89,7 @@ import org.gradle.api.artifacts.ResolvedArtifact
 import org.gradle.api.artifacts.SelfResolvingDependency
 import org.gradle.api.artifacts.result.ResolvedDependencyResult
 import org.gradle.api.artifacts.result.ResolvedModuleVersionResult
+import org.gradle.api.file.SourceDirectorySet
 import org.gradle.api.logging.LogLevel
 import org.gradle.api.plugins.JavaBasePlugin
 import org.gradle.api.plugins.JavaPlugin
@@ -193,6 +194,13 @@ public abstract class BasePlugin {
         project.afterEvaluate {
             createAndroidTasks(false)
         }
+
+        // the APK entries compressed in memory and the signing keys are only shared by the
+        // packagings of a build.
+        project.gradle.buildFinished {
+            PackagingCache.clearPool()
+            KeystoreHelper.clearCertificateInfoCache()
+        }
     }
 
     protected void setBaseExtension(@NonNull BaseExtension extension) {
@@ -532,8 +540,9 @@ public abstract class BasePlugin {
             variantData.mergeResourcesTask.outputDir
         }
 
+        // the assets are left out of aapt when the packaging adds them directly.
         processResources.conventionMapping.assetsDir =  {
-            variantData.mergeAssetsTask.outputDir
+            extension.packagingOptions.directAssets ? null : variantData.mergeAssetsTask.outputDir
         }
 
         processResources.conventionMapping.libraries = {
@@ -590,6 +599,34 @@ public abstract class BasePlugin {
         }
     }
 
+    /**
+     * Returns whether the java resources of a variant are packaged from the output of its
+     * processJavaResources task rather than from its source sets.
+     *
+     * This is the case when the task was returned by the variant API, since it may have been
+     * customized, or when the resources of the source sets are filtered.
+     */
+    private static boolean isJavaResourcesCopyPackaged(BaseVariantData variantData) {
+        if (variantData.processJavaResourcesUsed) {
+            return true
+        }
+
+        VariantConfiguration variantConfiguration = variantData.variantConfiguration
+        List<SourceProvider> sourceSets = [ variantConfiguration.defaultSourceSet ]
+        if (variantConfiguration.type != VariantConfiguration.Type.TEST) {
+            sourceSets.add(variantConfiguration.buildTypeSourceSet)
+        }
+        if (variantConfiguration.hasFlavors()) {
+            sourceSets.addAll(variantConfiguration.flavorSourceSets)
+        }
+
+        return sourceSets.any {
+            SourceDirectorySet resources = ((AndroidSourceSet) it).resources
+            !resources.includes.isEmpty() || !resources.excludes.isEmpty() ||
+                    !resources.filter.includes.isEmpty() || !resources.filter.excludes.isEmpty()
+        }
+    }
+
     protected void createAidlTask(BaseVariantData variantData) {
         VariantConfiguration variantConfiguration = variantData.variantConfiguration
 
@@ -1046,10 +1083,12 @@ public abstract class BasePlugin {
         // Add a task to generate application package
         def packageApp = project.tasks.create("package${variantData.name}", PackageApplication)
         variantData.packageApplicationTask = packageApp
-        packageApp.dependsOn variantData.processResourcesTask, dexTask, variantData.processJavaResources
+        packageApp.dependsOn variantData.processResourcesTask, dexTask
 
         packageApp.plugin = this
         packageApp.variant = variantData
+        packageApp.incrementalFolder =
+                project.file("$project.buildDir/incremental/package/$variantData.dirName")
 
         VariantConfiguration config = variantData.variantConfiguration
 
@@ -1060,11 +1099,37 @@ public abstract class BasePlugin {
 
         packageApp.conventionMapping.packagedJars = { config.packagedJars }
 
-        packageApp.conventionMapping.javaResourceDir = {
-            getOptionalDir(variantData.processJavaResources.destinationDir)
+        // the java resources are packaged from the source sets, without being copied first,
+        // unless the copy may differ from the source sets.
+        packageApp.dependsOn {
+            isJavaResourcesCopyPackaged(variantData) ? variantData.processJavaResources : []
+        }
+        packageApp.conventionMapping.javaResourceDirs = {
+            isJavaResourcesCopyPackaged(variantData) ?
+                    [ variantData.processJavaResources.destinationDir ] :
+                    config.javaResourcesSourceList
         }
 
         packageApp.conventionMapping.jniDebugBuild = { config.buildType.jniDebugBuild }
+        packageApp.conventionMapping.zipAlign = { variantData.zipAlign }
+        packageApp.conventionMapping.deterministic = {
+            extension.packagingOptions.deterministic
+        }
+        packageApp.conventionMapping.compressionLevel = { config.buildType.compressionLevel }
+        packageApp.conventionMapping.assetsDir = {
+            extension.packagingOptions.directAssets ?
+                getOptionalDir(variantData.mergeAssetsTask.outputDir) : null
+        }
+        packageApp.conventionMapping.ignoreAssets = { extension.aaptOptions.ignoreAssets }
+        packageApp.conventionMapping.noCompress = {
+            // the assets added directly are stored like aapt would store them.
+            List<String> noCompress = extension.packagingOptions.noCompress
+            if (extension.packagingOptions.directAssets && extension.aaptOptions.noCompress) {
+                noCompress = noCompress + extension.aaptOptions.noCompress
+            }
+            noCompress
+        }
+        packageApp.conventionMapping.abiSplits = { extension.packagingOptions.abiSplits }
 
         SigningConfigDsl sc = (SigningConfigDsl) config.signingConfig
         packageApp.conventionMapping.signingConfig = { sc }
@@ -1082,44 +1147,28 @@ public abstract class BasePlugin {
             packageApp.dependsOn validateSigningTask
         }
 
+        // the package task aligns the APK itself, there is no separate zipalign step.
         def signedApk = variantData.isSigned()
-        def apkName = signedApk ?
-            "${project.archivesBaseName}-${variantData.baseName}-unaligned.apk" :
-            "${project.archivesBaseName}-${variantData.baseName}-unsigned.apk"
+        def apkName
+        if (!signedApk) {
+            apkName = "${project.archivesBaseName}-${variantData.baseName}-unsigned.apk"
+        } else if (variantData.zipAlign) {
+            apkName = "${project.archivesBaseName}-${variantData.baseName}.apk"
+        } else {
+            apkName = "${project.archivesBaseName}-${variantData.baseName}-unaligned.apk"
+        }
 
         packageApp.conventionMapping.outputFile = {
             project.file("$project.buildDir/apk/${apkName}")
         }
 
-        Task appTask = packageApp
-        OutputFileTask outputFileTask = packageApp
-
         if (signedApk) {
-            if (variantData.zipAlign) {
-                // Add a task to zip align application package
-                def zipAlignTask = project.tasks.create("zipalign${variantData.name}", ZipAlign)
-                variantData.zipAlignTask = zipAlignTask
-
-                zipAlignTask.dependsOn packageApp
-                zipAlignTask.conventionMapping.inputFile = { packageApp.outputFile }
-                zipAlignTask.conventionMapping.outputFile = {
-                    project.file(
-                            "$project.buildDir/apk/${project.archivesBaseName}-${variantData.baseName}.apk")
-                }
-                zipAlignTask.conventionMapping.zipAlignExe = { getSdkParser().zipAlign }
-
-                appTask = zipAlignTask
-                outputFileTask = zipAlignTask
-                variantData.outputFile = project.file(
-                        "$project.buildDir/apk/${project.archivesBaseName}-${variantData.baseName}.apk")
-            }
-
             // Add a task to install the application package
             def installTask = project.tasks.create("install${variantData.name}", InstallTask)
             installTask.description = "Installs the " + variantData.description
             installTask.group = INSTALL_GROUP
-            installTask.dependsOn appTask
-            installTask.conventionMapping.packageFile = { outputFileTask.outputFile }
+            installTask.dependsOn packageApp
+            installTask.conventionMapping.packageFile = { packageApp.outputFile }
             installTask.conventionMapping.adbExe = { getSdkParser().adb }
 
             variantData.installTask = installTask
@@ -1131,10 +1180,10 @@ public abstract class BasePlugin {
             assembleTask.description = "Assembles the " + variantData.description
             assembleTask.group = org.gradle.api.plugins.BasePlugin.BUILD_GROUP
         }
-        assembleTask.dependsOn appTask
+        assembleTask.dependsOn packageApp
         variantData.assembleTask = assembleTask
 
-        variantData.outputFile = { outputFileTask.outputFile }
+        variantData.outputFile = { packageApp.outputFile }
 
         // add an uninstall task
         def uninstallTask = project.tasks.create("uninstall${variantData.name}", UninstallTask)
@@ -38,6 +38,7 @@ import com.android.builder.dependency.JarDependency
 import com.android.builder.dependency.LibraryBundle
 import com.android.builder.dependency.LibraryDependency
 import com.android.builder.dependency.ManifestDependency
+import com.android.builder.internal.packaging.ArchiveNormalizer
 import com.android.builder.model.AndroidLibrary
 import com.google.common.collect.Maps
 import com.google.common.collect.Sets
@@ -46,6 +47,7 @@ import org.gradle.api.Project
 import org.gradle.api.internal.project.ProjectInternal
 import org.gradle.api.plugins.MavenPlugin
 import org.gradle.api.tasks.Sync
+import org.gradle.api.tasks.bundling.AbstractArchiveTask
 import org.gradle.api.tasks.bundling.Jar
 import org.gradle.api.tasks.bundling.Zip
 import org.gradle.internal.reflect.Instantiator
@@ -244,6 +246,7 @@ public class LibraryPlugin extends BasePlugin implements Plugin<Project> {
         jar.exclude(packageName + "/Manifest.class")
         jar.exclude(packageName + "/Manifest\$*.class")
         jar.exclude(packageName + "/BuildConfig.class")
+        normalizeArchive(jar)
 
         // package the aidl files into the bundle folder
         Sync packageAidl = project.tasks.create("package${variantData.name}Aidl", Sync)
@@ -285,6 +288,7 @@ public class LibraryPlugin extends BasePlugin implements Plugin<Project> {
             bundle.classifier = variantData.baseName
         }
         bundle.from(project.file("$project.buildDir/$DIR_BUNDLES/${variantData.dirName}"))
+        normalizeArchive(bundle)
 
         variantData.packageLibTask = bundle
         variantData.outputFile = bundle.archivePath
@@ -340,6 +344,19 @@ public class LibraryPlugin extends BasePlugin implements Plugin<Project> {
         return files.toArray()
     }
 
+    /**
+     * Rewrites the archive of a task with a fixed time and a stable order for its entries when
+     * the packaging is deterministic, so that an unchanged library gives the same archive.
+     */
+    private void normalizeArchive(AbstractArchiveTask task) {
+        task.inputs.property("deterministic", { extension.packagingOptions.deterministic })
+        task.doLast {
+            if (extension.packagingOptions.deterministic) {
+                ArchiveNormalizer.normalize(task.archivePath)
+            }
+        }
+    }
+
     private void createTestVariant(@NonNull TestVariantData testVariantData,
                                    @NonNull LibraryVariantData testedVariantData) {
 
@@ -80,8 +80,11 @@ public interface ApkVariant extends BaseVariant {
 
     /**
      * Returns the Zip align task.
+     *
+     * @deprecated the APK is aligned by the packaging task, this always returns null.
      */
     @Nullable
+    @Deprecated
     ZipAlign getZipAlign();
 
     /**
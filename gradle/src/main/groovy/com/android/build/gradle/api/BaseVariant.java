@@ -128,6 +128,11 @@ public interface BaseVariant {
 
     /**
      * Returns the Java resource processing task.
+     *
+     * The java resources of the APKs are packaged straight from the source sets, unless
+     * their resources are filtered, or this task was returned by this method. The changes
+     * made to the task through other means, such as looking it up by name, do not affect
+     * the APKs.
      */
     @NonNull
     Copy getProcessJavaResources();
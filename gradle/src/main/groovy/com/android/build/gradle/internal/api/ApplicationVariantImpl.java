@@ -111,11 +111,7 @@ public class ApplicationVariantImpl implements ApplicationVariant {
 
     @Override
     public void setOutputFile(@NonNull File outputFile) {
-        if (variantData.zipAlignTask != null) {
-            variantData.zipAlignTask.setOutputFile(outputFile);
-        } else {
-            variantData.packageApplicationTask.setOutputFile(outputFile);
-        }
+        variantData.packageApplicationTask.setOutputFile(outputFile);
     }
 
     @Override
@@ -172,6 +168,8 @@ public class ApplicationVariantImpl implements ApplicationVariant {
     @Override
     @NonNull
     public Copy getProcessJavaResources() {
+        // the task may be customized, so the APK is packaged from its output.
+        variantData.processJavaResourcesUsed = true;
         return variantData.processJavaResources;
     }
 
@@ -186,8 +184,9 @@ public class ApplicationVariantImpl implements ApplicationVariant {
     }
 
     @Override
+    @Deprecated
     public ZipAlign getZipAlign() {
-        return variantData.zipAlignTask;
+        return null;
     }
 
     @Override
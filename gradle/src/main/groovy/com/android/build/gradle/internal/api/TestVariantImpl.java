@@ -105,11 +105,7 @@ public class TestVariantImpl implements TestVariant {
 
     @Override
     public void setOutputFile(@NonNull File outputFile) {
-        if (variantData.zipAlignTask != null) {
-            variantData.zipAlignTask.setOutputFile(outputFile);
-        } else {
-            variantData.packageApplicationTask.setOutputFile(outputFile);
-        }
+        variantData.packageApplicationTask.setOutputFile(outputFile);
     }
 
     @Override
@@ -170,6 +166,8 @@ public class TestVariantImpl implements TestVariant {
     @Override
     @NonNull
     public Copy getProcessJavaResources() {
+        // the task may be customized, so the APK is packaged from its output.
+        variantData.processJavaResourcesUsed = true;
         return variantData.processJavaResources;
     }
 
@@ -184,8 +182,9 @@ public class TestVariantImpl implements TestVariant {
     }
 
     @Override
+    @Deprecated
     public ZipAlign getZipAlign() {
-        return variantData.zipAlignTask;
+        return null;
     }
 
     @Override
@@ -19,6 +19,7 @@ import com.android.annotations.NonNull
 import com.android.builder.BuilderConstants
 import com.android.builder.DefaultBuildType
 import com.android.builder.model.SigningConfig
+import com.android.builder.packaging.CompressionPolicy
 import org.gradle.api.internal.file.FileResolver
 
 /**
@@ -39,6 +40,7 @@ public class BuildTypeDsl extends DefaultBuildType implements Serializable {
         if (BuilderConstants.DEBUG.equals(getName())) {
             setDebuggable(true)
             setZipAlign(false)
+            setCompressionLevel(CompressionPolicy.FAST)
 
             assert debugSigningConfig != null
             setSigningConfig(debugSigningConfig)
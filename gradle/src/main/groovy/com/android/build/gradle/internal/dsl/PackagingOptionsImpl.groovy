@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.dsl
+
+import com.android.builder.PackagingOptions
+import org.gradle.api.tasks.Input
+
+public class PackagingOptionsImpl implements PackagingOptions {
+
+    @Input
+    private List<String> noCompressList = Collections.emptyList()
+
+    @Input
+    private List<String> abiSplitList = Collections.emptyList()
+
+    @Input
+    private boolean directAssets = false
+
+    @Input
+    private boolean deterministic = false
+
+    public void setNoCompress(String noCompress) {
+        noCompressList = Collections.singletonList(noCompress)
+    }
+
+    public void setNoCompress(String... noCompress) {
+        noCompressList = Arrays.asList(noCompress)
+    }
+
+    @Override
+    List<String> getNoCompress() {
+        return noCompressList
+    }
+
+    public void setAbiSplits(String abi) {
+        abiSplitList = Collections.singletonList(abi)
+    }
+
+    public void setAbiSplits(String... abis) {
+        abiSplitList = Arrays.asList(abis)
+    }
+
+    @Override
+    List<String> getAbiSplits() {
+        return abiSplitList
+    }
+
+    public void setDirectAssets(boolean directAssets) {
+        this.directAssets = directAssets
+    }
+
+    @Override
+    boolean isDirectAssets() {
+        return directAssets
+    }
+
+    public void setDeterministic(boolean deterministic) {
+        this.deterministic = deterministic
+    }
+
+    @Override
+    boolean isDeterministic() {
+        return deterministic
+    }
+
+    // -- DSL Methods. TODO remove once the instantiator does what I expect it to do.
+
+    public void noCompress(String noCompress) {
+        noCompressList = Collections.singletonList(noCompress)
+    }
+
+    public void noCompress(String... noCompress) {
+        noCompressList = Arrays.asList(noCompress)
+    }
+
+    public void abiSplits(String abi) {
+        abiSplitList = Collections.singletonList(abi)
+    }
+
+    public void abiSplits(String... abis) {
+        abiSplitList = Arrays.asList(abis)
+    }
+
+    public void directAssets(boolean directAssets) {
+        this.directAssets = directAssets
+    }
+
+    public void deterministic(boolean deterministic) {
+        this.deterministic = deterministic
+    }
+}
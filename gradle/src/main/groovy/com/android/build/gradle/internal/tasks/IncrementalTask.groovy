@@ -19,11 +19,9 @@ import com.android.builder.internal.incremental.ChangeManager
 import com.android.ide.common.res2.FileStatus
 import com.android.ide.common.res2.SourceSet
 import com.google.common.collect.Lists
-import org.gradle.api.file.FileCollection
 import org.gradle.api.tasks.Optional
 import org.gradle.api.tasks.OutputDirectory
 import org.gradle.api.tasks.TaskAction
-import org.gradle.api.tasks.TaskInputs
 
 public abstract class IncrementalTask extends BaseTask {
 
@@ -60,6 +58,17 @@ public abstract class IncrementalTask extends BaseTask {
         return Collections.emptyList();
     }
 
+    /**
+     * Returns the inputs to check for changes, which default to all the files of the inputs of
+     * the task.
+     *
+     * Tasks whose inputs are folders should return the folders, so that the folders that did
+     * not change are not listed again.
+     */
+    protected Collection<File> getInputForIncrementalBuild() {
+        return getInputs().getFiles().files
+    }
+
     /**
      * Actual entry point for the action.
      * Calls out to the doTaskAction as needed.
@@ -77,10 +86,7 @@ public abstract class IncrementalTask extends BaseTask {
             boolean fullBuild = !changeManager.load(incrementalFolder)
 
             // update with current files.
-            TaskInputs inputs = getInputs()
-            FileCollection inputCollection = inputs.getFiles()
-
-            for (File f : inputCollection.files) {
+            for (File f : getInputForIncrementalBuild()) {
                 changeManager.addInput(f)
             }
 
@@ -18,7 +18,6 @@ package com.android.build.gradle.internal.variant;
 import com.android.annotations.NonNull;
 import com.android.build.gradle.tasks.Dex;
 import com.android.build.gradle.tasks.PackageApplication;
-import com.android.build.gradle.tasks.ZipAlign;
 import com.android.builder.VariantConfiguration;
 import org.gradle.api.DefaultTask;
 import proguard.gradle.ProGuardTask;
@@ -31,7 +30,6 @@ public abstract class ApkVariantData extends BaseVariantData {
     public ProGuardTask proguardTask;
     public Dex dexTask;
     public PackageApplication packageApplicationTask;
-    public ZipAlign zipAlignTask;
 
     public DefaultTask installTask;
     public DefaultTask uninstallTask;
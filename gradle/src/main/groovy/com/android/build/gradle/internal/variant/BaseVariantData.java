@@ -58,6 +58,11 @@ public abstract class BaseVariantData {
 
     public JavaCompile javaCompileTask;
     public Copy processJavaResources;
+    /**
+     * Whether {@link #processJavaResources} was returned by the variant API, in which case
+     * the APK is packaged from its output rather than from the source sets.
+     */
+    public boolean processJavaResourcesUsed = false;
 
     private Object outputFile;
 
@@ -21,6 +21,7 @@ import com.android.ide.common.res2.FileStatus
 import com.android.ide.common.res2.FileValidity
 import com.android.ide.common.res2.MergeConsumer
 import com.android.ide.common.res2.MergedAssetWriter
+import com.google.common.collect.Lists
 import org.gradle.api.tasks.InputFiles
 import org.gradle.api.tasks.OutputDirectory
 
@@ -54,6 +55,11 @@ public class MergeAssets extends IncrementalTask {
         return Collections.singletonList(getOutputDir())
     }
 
+    @Override
+    protected Collection<File> getInputForIncrementalBuild() {
+        return Lists.newArrayList(getRawInputFolders())
+    }
+
     @Override
     protected void doFullTaskAction() {
         // this is full run, clean the previous output
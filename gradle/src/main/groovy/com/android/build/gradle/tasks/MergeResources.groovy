@@ -21,6 +21,7 @@ import com.android.ide.common.res2.MergeConsumer
 import com.android.ide.common.res2.MergedResourceWriter
 import com.android.ide.common.res2.ResourceMerger
 import com.android.ide.common.res2.ResourceSet
+import com.google.common.collect.Lists
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFiles
 import org.gradle.api.tasks.OutputDirectory
@@ -58,6 +59,11 @@ public class MergeResources extends IncrementalTask {
         return Collections.singletonList(getOutputDir())
     }
 
+    @Override
+    protected Collection<File> getInputForIncrementalBuild() {
+        return Lists.newArrayList(getRawInputFolders())
+    }
+
     @Override
     protected void doFullTaskAction() {
         // this is full run, clean the previous output
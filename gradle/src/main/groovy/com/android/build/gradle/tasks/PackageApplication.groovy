@@ -18,7 +18,9 @@ package com.android.build.gradle.tasks
 import com.android.build.gradle.internal.dsl.SigningConfigDsl
 import com.android.build.gradle.internal.tasks.IncrementalTask
 import com.android.build.gradle.internal.tasks.OutputFileTask
+import com.android.builder.packaging.CompressionPolicy
 import com.android.builder.packaging.DuplicateFileException
+import com.android.ide.common.res2.FileStatus
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputDirectory
 import org.gradle.api.tasks.InputFile
@@ -26,6 +28,7 @@ import org.gradle.api.tasks.InputFiles
 import org.gradle.api.tasks.Nested
 import org.gradle.api.tasks.Optional
 import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.OutputFiles
 import org.gradle.tooling.BuildException
 
 public class PackageApplication extends IncrementalTask implements OutputFileTask {
@@ -38,8 +41,13 @@ public class PackageApplication extends IncrementalTask implements OutputFileTas
     @InputFile
     File dexFile
 
+    /** The java resource folders of the source sets, in ascending order of importance. */
+    @InputFiles
+    List<File> javaResourceDirs
+
+    /** The merged assets folder, when the assets are not packaged by aapt. */
     @InputDirectory @Optional
-    File javaResourceDir
+    File assetsDir
 
     @InputDirectory @Optional
     File jniDir
@@ -55,9 +63,39 @@ public class PackageApplication extends IncrementalTask implements OutputFileTas
     @Input
     boolean jniDebugBuild
 
+    @Input
+    boolean zipAlign
+
+    @Input
+    boolean deterministic
+
+    @Input
+    int compressionLevel
+
+    @Input
+    List<String> noCompress
+
+    @Input
+    List<String> abiSplits
+
+    @Input @Optional
+    String ignoreAssets
+
     @Nested @Optional
     SigningConfigDsl signingConfig
 
+    @Override
+    protected boolean isIncremental() {
+        // the per-ABI APKs are always packaged from scratch, and so are the deterministic
+        // ones, since an updated APK depends on the previous builds.
+        return getAbiSplits().isEmpty() && !getDeterministic()
+    }
+
+    @Override
+    protected Collection<File> getOutputForIncrementalBuild() {
+        return Collections.singletonList(getOutputFile())
+    }
+
     @Override
     protected void doFullTaskAction() {
         try {
@@ -65,21 +103,167 @@ public class PackageApplication extends IncrementalTask implements OutputFileTas
                     getResourceFile().absolutePath,
                     getDexFile().absolutePath,
                     getPackagedJars(),
-                    getJavaResourceDir()?.absolutePath,
+                    getJavaResourceDirs(),
+                    getAssetsDir()?.absolutePath,
+                    getIgnoreAssets(),
+                    getJniDir()?.absolutePath,
+                    getJniDebugBuild(),
+                    getZipAlign(),
+                    getDeterministic(),
+                    getSigningConfig(),
+                    new CompressionPolicy(getCompressionLevel(), getNoCompress()),
+                    getCacheFolder(),
+                    getAbiOutputLocations(),
+                    getOutputFile().absolutePath)
+        } catch (DuplicateFileException e) {
+            logDuplicates(e)
+            throw new BuildException(e.getMessage(), e);
+        } catch (Exception e) {
+            throw new BuildException(e.getMessage(), e);
+        }
+
+        // record how the entries were compressed, for the next incremental run.
+        File optionsFile = getPackagingOptionsFile()
+        if (optionsFile != null) {
+            optionsFile.parentFile.mkdirs()
+            optionsFile.text = getPackagingOptionsString()
+        }
+    }
+
+    /**
+     * Updates the existing APK in place, rewriting only the entries of the changed inputs.
+     *
+     * Falls back to a full run if the entries of the APK would not be compressed the same way
+     * anymore, if an input that is not packaged changed (e.g. the keystore), or if the APK
+     * cannot be updated.
+     */
+    @Override
+    protected void doIncrementalTaskAction(Map<File, FileStatus> changedInputs) {
+        File optionsFile = getPackagingOptionsFile()
+        if (!optionsFile.isFile() || optionsFile.text != getPackagingOptionsString()) {
+            project.logger.info("Changed packaging options: full task run")
+            doFullTaskAction()
+            return
+        }
+
+        for (File file : changedInputs.keySet()) {
+            if (!isPackagedInput(file)) {
+                project.logger.info("Changed input ${file}: full task run")
+                doFullTaskAction()
+                return
+            }
+        }
+
+        boolean updated
+        try {
+            updated = getBuilder().updateApk(
+                    getResourceFile().absolutePath,
+                    getDexFile().absolutePath,
+                    getPackagedJars(),
+                    getJavaResourceDirs(),
+                    getAssetsDir()?.absolutePath,
+                    getIgnoreAssets(),
                     getJniDir()?.absolutePath,
                     getJniDebugBuild(),
+                    getZipAlign(),
+                    getDeterministic(),
                     getSigningConfig(),
+                    new CompressionPolicy(getCompressionLevel(), getNoCompress()),
+                    getCacheFolder(),
+                    changedInputs.keySet(),
                     getOutputFile().absolutePath)
         } catch (DuplicateFileException e) {
-            def logger = getLogger()
-            logger.error("Error: duplicate files during packaging of APK " + getOutputFile().absolutePath)
-            logger.error("\tPath in archive: " + e.archivePath)
-            logger.error("\tOrigin 1: " + e.file1)
-            logger.error("\tOrigin 2: " + e.file2)
+            logDuplicates(e)
             throw new BuildException(e.getMessage(), e);
         } catch (Exception e) {
             throw new BuildException(e.getMessage(), e);
         }
+
+        if (!updated) {
+            project.logger.info("APK cannot be updated: full task run")
+            doFullTaskAction()
+        }
+    }
+
+    private void logDuplicates(DuplicateFileException e) {
+        def logger = getLogger()
+        logger.error("Error: duplicate files during packaging of APK " + getOutputFile().absolutePath)
+        for (DuplicateFileException duplicate : e.duplicates) {
+            logger.error("\tPath in archive: " + duplicate.archivePath)
+            logger.error("\tOrigin 1: " + duplicate.file1)
+            logger.error("\tOrigin 2: " + duplicate.file2)
+        }
+    }
+
+    /**
+     * Returns whether a file is one of the packaged inputs, or is inside one of them.
+     */
+    private boolean isPackagedInput(File file) {
+        File absoluteFile = file.absoluteFile
+        return absoluteFile == getResourceFile().absoluteFile ||
+                absoluteFile == getDexFile().absoluteFile ||
+                getPackagedJars().any { it.absoluteFile == absoluteFile } ||
+                getJavaResourceDirs().any { isInFolder(absoluteFile, it) } ||
+                isInFolder(absoluteFile, getAssetsDir()) ||
+                isInFolder(absoluteFile, getJniDir())
+    }
+
+    private static boolean isInFolder(File file, File folder) {
+        return folder != null &&
+                file.path.startsWith(folder.absolutePath + File.separator)
+    }
+
+    /**
+     * Returns the file recording the options the entries of the APK were compressed with.
+     */
+    private File getPackagingOptionsFile() {
+        File incrementalFolder = getIncrementalFolder()
+        return incrementalFolder != null ? new File(incrementalFolder, "packaging.txt") : null
+    }
+
+    /**
+     * Returns the options that the entries kept by an incremental run must have been
+     * compressed with. The signing and the packaged files are checked by the builder.
+     */
+    private String getPackagingOptionsString() {
+        return "compressionLevel=${getCompressionLevel()}\n" +
+                "noCompress=${getNoCompress()}\n" +
+                "zipAlign=${getZipAlign()}\n" +
+                "deterministic=${getDeterministic()}\n" +
+                "assets=${getAssetsDir() != null}\n"
+    }
+
+    /**
+     * Returns the APKs containing the native libraries of a single ABI, next to the main one.
+     */
+    @OutputFiles
+    List<File> getAbiOutputFiles() {
+        return getAbiSplits().collect { String abi -> getAbiOutputFile(abi) }
+    }
+
+    private Map<String, String> getAbiOutputLocations() {
+        Map<String, String> locations = [:]
+        for (String abi : getAbiSplits()) {
+            locations.put(abi, getAbiOutputFile(abi).absolutePath)
+        }
+        return locations
+    }
+
+    private File getAbiOutputFile(String abi) {
+        File outputFile = getOutputFile()
+        String name = outputFile.name
+        if (name.endsWith(".apk")) {
+            name = name.substring(0, name.length() - ".apk".length())
+        }
+        return new File(outputFile.parentFile, "$name-${abi}.apk")
+    }
+
+    /**
+     * Returns the folder caching the compressed entries and their digests across builds.
+     */
+    private File getCacheFolder() {
+        File incrementalFolder = getIncrementalFolder()
+        return incrementalFolder != null ? new File(incrementalFolder, "entries") : null
     }
 
 }
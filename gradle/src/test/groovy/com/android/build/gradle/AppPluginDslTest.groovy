@@ -288,15 +288,11 @@ public class AppPluginDslTest extends BaseTest {
         assertNotNull(variant.assemble)
         assertNotNull(variant.uninstall)
 
+        // the package task aligns the APK.
+        assertNull(variant.zipAlign)
+
         if (variant.isSigningReady()) {
             assertNotNull(variant.install)
-
-            // tested variant are never zipAligned.
-            if (!isTestVariant && variant.buildType.zipAlign) {
-                assertNotNull(variant.zipAlign)
-            } else {
-                assertNull(variant.zipAlign)
-            }
         } else {
             assertNull(variant.install)
         }